@@ -0,0 +1,148 @@
+package soac.java.hopscotch;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.Util;
+
+//Builds a table from a vector of keys (and one of values, for maps) in phases
+//that soac.hopscotch runs on the fork/join pool:
+// - hashKeys, in parallel over ranges of the input
+// - partition, which buckets the input by which range of slots its home is in
+// - fill, in parallel over those ranges, each laying out its keys in its own
+//   slots of one shared TableBuilder
+// - toSet/toMap, which gathers the layout into a table in one pass, then
+//   inserts the few leftovers that wouldn't fit inside their range.
+//Keys may repeat; for maps the last value wins, as with into.
+public final class BulkLoader {
+	final IPersistentVector ks;
+	final PersistentPrimHashTable proto;
+	final TableBuilder b;
+	final int[] keyHashes;
+	final int partShift;
+	//Indexes into ks, ordered by part, and where each part starts
+	int[] order;
+	int[] partStart;
+	final int[] partSizes;
+	final int[][] leftovers;
+	final int[] nLeftovers;
+	//Homes that have had a key fail to fit.  Later keys with those homes are
+	//left over too, so that repeats are still applied in order.
+	final long[] failedHomes;
+
+	//Parts are this many slots, unless the whole table is smaller.  It's a
+	//multiple of 64, so parts own whole words of failedHomes.
+	static final int partShiftMax = 16;
+
+	//proto supplies the storage, spreader, hash caching and free value
+	public BulkLoader(IPersistentVector ks, PersistentPrimHashTable proto) {
+		this.ks = ks;
+		this.proto = proto;
+		final int n = ks.count();
+		int capacity = PersistentPrimHashTable.neighborhood;
+		while(capacity * PersistentPrimHashTable.rehashThresholdHi < n) capacity <<= 1;
+		this.b = new TableBuilder(capacity);
+		this.keyHashes = new int[n];
+		this.partShift = Math.min(partShiftMax, Integer.numberOfTrailingZeros(capacity));
+		final int nParts = capacity >>> partShift;
+		this.partSizes = new int[nParts];
+		this.leftovers = new int[nParts][];
+		this.nLeftovers = new int[nParts];
+		this.failedHomes = new long[(capacity + 63) >>> 6];
+	}
+
+	public int count(){
+		return keyHashes.length;
+	}
+
+	public int parts(){
+		return partSizes.length;
+	}
+
+	public void hashKeys(int lo, int hi){
+		for(int i=lo; i<hi; i++){
+			final Object k = ks.nth(i);
+			//As lookups compare, so an Integer can't pass for a Long free value
+			if(Util.equiv(k, proto._free)) throw new RuntimeException("Cannot sensibly conj free value");
+			keyHashes[i] = proto.hashOf(k);
+		}
+	}
+
+	//A stable counting sort of the input by part
+	public void partition(){
+		final int n = keyHashes.length;
+		final int[] starts = new int[parts() + 1];
+		for(int i=0; i<n; i++) starts[partOf(keyHashes[i]) + 1]++;
+		for(int p=0; p<parts(); p++) starts[p + 1] += starts[p];
+		final int[] next = starts.clone();
+		final int[] out = new int[n];
+		for(int i=0; i<n; i++) out[next[partOf(keyHashes[i])]++] = i;
+		order = out;
+		partStart = starts;
+	}
+
+	int partOf(int hash){
+		return b.bitMod(hash) >>> partShift;
+	}
+
+	public void fill(int part){
+		final int lo = part << partShift;
+		final int hi = lo + (1 << partShift);
+		int size = 0;
+		int[] left = new int[4];
+		int nLeft = 0;
+		for(int i=partStart[part]; i<partStart[part + 1]; i++){
+			final int src = order[i];
+			final int hash = keyHashes[src];
+			final int home = b.bitMod(hash);
+			final int found = b.find(ks, src, hash);
+			if(found >= 0){
+				b.from[found] = src;
+				continue;
+			}
+			if((failedHomes[home >>> 6] & (1L << home)) == 0){
+				if(b.addWithin(src, hash, lo, hi)){
+					size++;
+					continue;
+				}
+				failedHomes[home >>> 6] |= 1L << home;
+			}
+			if(nLeft == left.length){
+				final int[] bigger = new int[nLeft * 2];
+				System.arraycopy(left, 0, bigger, 0, nLeft);
+				left = bigger;
+			}
+			left[nLeft++] = src;
+		}
+		partSizes[part] = size;
+		leftovers[part] = left;
+		nLeftovers[part] = nLeft;
+	}
+
+	int size(){
+		int size = 0;
+		for(int s : partSizes) size += s;
+		return size;
+	}
+
+	public PersistentPrimHashSet toSet(){
+		final IPersistentVector newKs = b.gather(ks, proto._free);
+		final PersistentPrimHashSet laidOut = new PersistentPrimHashSet(newKs, b.hops(newKs, proto._hashes != null),
+				proto._hashes == null ? null : b.hashes(newKs), proto._spreader, null, size(), proto._free);
+		final TransientPrimHashSet t = laidOut.asTransient();
+		for(int p=0; p<parts(); p++){
+			for(int i=0; i<nLeftovers[p]; i++) t.conj(ks.nth(leftovers[p][i]));
+		}
+		return t.persistent();
+	}
+
+	//vs must be the same length as ks, in the same storage as proto's values
+	public PersistentPrimHashMap toMap(IPersistentVector vs){
+		final IPersistentVector newKs = b.gather(ks, proto._free);
+		final PersistentPrimHashMap laidOut = new PersistentPrimHashMap(newKs, b.gather(vs, 0L), b.hops(newKs, proto._hashes != null),
+				proto._hashes == null ? null : b.hashes(newKs), proto._spreader, null, size(), proto._free);
+		final TransientPrimHashMap t = laidOut.asTransient();
+		for(int p=0; p<parts(); p++){
+			for(int i=0; i<nLeftovers[p]; i++) t.assoc(ks.nth(leftovers[p][i]), vs.nth(leftovers[p][i]));
+		}
+		return t.persistent();
+	}
+}
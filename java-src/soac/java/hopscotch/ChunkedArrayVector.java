@@ -0,0 +1,400 @@
+package soac.java.hopscotch;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import clojure.lang.AFn;
+import clojure.lang.APersistentVector;
+import clojure.lang.ASeq;
+import clojure.lang.ArrayChunk;
+import clojure.lang.BigInt;
+import clojure.lang.Counted;
+import clojure.lang.IChunk;
+import clojure.lang.IChunkedSeq;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientVector;
+import clojure.lang.Obj;
+import clojure.lang.PersistentList;
+import clojure.lang.Util;
+
+//A persistent vector of primitives, stored as a flat array of equally-sized
+//primitive array "chunks".  An update copies the outer array and the one chunk
+//it touches, so for n elements in chunks of sqrt(n) that's O(sqrt(n)) rather
+//than a Vec's O(log n) - but a read is a shift, a mask and an array access,
+//with no tree to walk.  This is intended as the fixed-size, probe-heavy
+//storage of the hash tables, which do their bulk modification through the
+//transient and compare keys in place via probe.
+public abstract class ChunkedArrayVector extends APersistentVector implements IObj, IEditableCollection {
+	public static final long serialVersionUID = 1L;
+	final Object[] chunks;
+	final int cnt;
+	final int shift;
+	final IPersistentMap _meta;
+
+	ChunkedArrayVector(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		this.chunks = chunks;
+		this.cnt = cnt;
+		this.shift = shift;
+		this._meta = meta;
+	}
+
+	//The type-specific parts
+	abstract Object newChunk(int size);
+	abstract Object getBoxed(Object chunk, int i);
+	abstract void setBoxed(Object chunk, int i, Object o);
+	abstract void fill(Object chunk, Object o);
+	abstract ChunkedArrayVector create(Object[] chunks, int cnt, int shift, IPersistentMap meta);
+	//Tests the n slots from pos on for something equiv to o, unboxed,
+	//wrapping at cnt (which must be a power of 2).  Returns the matching slot
+	//or -1.
+	abstract int probe(Object[] chunks, int cnt, Object o, int pos, int n);
+
+	//The chunk size, as a shift, of vectors that start out empty
+	public final static int defaultShift = 5;
+
+	//Roughly sqrt(n), so the chunks and the outer array are about the same size
+	static int chunkShiftFor(int n){
+		final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(n - 1, 1));
+		return Math.max(5, (bits + 1) / 2);
+	}
+
+	//Whether Util.equiv could find o equal to some long
+	static boolean isIntegral(Object o){
+		if(o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) return true;
+		if(o instanceof BigInt) return ((BigInt)o).bitLength() < 64;
+		if(o instanceof BigInteger) return ((BigInteger)o).bitLength() < 64;
+		return false;
+	}
+
+	//Whether Util.equiv could find o equal to some double
+	static boolean isFloating(Object o){
+		return o instanceof Double || o instanceof Float;
+	}
+
+	int mask(){
+		return (1 << shift) - 1;
+	}
+
+	Object cloneChunk(Object chunk){
+		final Object out = newChunk(1 << shift);
+		System.arraycopy(chunk, 0, out, 0, 1 << shift);
+		return out;
+	}
+
+	//A vector of n copies of o, sized so that chunk copies stay cheap
+	public ChunkedArrayVector filled(int n, Object o){
+		final int newShift = chunkShiftFor(n);
+		final Object[] newChunks = new Object[(n + (1 << newShift) - 1) >>> newShift];
+		for(int i=0; i<newChunks.length; i++){
+			newChunks[i] = newChunk(1 << newShift);
+			fill(newChunks[i], o);
+		}
+		return create(newChunks, n, newShift, null);
+	}
+
+	//A vector of the same type and of from's length, sized like filled, holding
+	//our element from[i] at each i, or fill where from[i] is negative.
+	public ChunkedArrayVector gather(int[] from, Object fill){
+		final ChunkedArrayVector out = filled(from.length, fill);
+		final int outMask = out.mask();
+		for(int i=0; i<from.length; i++){
+			final int src = from[i];
+			if(src >= 0) System.arraycopy(chunks[src >>> shift], src & mask(), out.chunks[i >>> out.shift], i & outMask, 1);
+		}
+		return out;
+	}
+
+	public int probe(Object o, int pos, int n){
+		return probe(chunks, cnt, o, pos, n);
+	}
+
+	@Override
+	public IPersistentMap meta() {
+		return _meta;
+	}
+
+	@Override
+	public ChunkedArrayVector withMeta(IPersistentMap meta) {
+		return create(chunks, cnt, shift, meta);
+	}
+
+	@Override
+	public int count() {
+		return cnt;
+	}
+
+	@Override
+	public Object nth(int i) {
+		if(i < 0 || i >= cnt) throw new IndexOutOfBoundsException();
+		return getBoxed(chunks[i >>> shift], i & mask());
+	}
+
+	@Override
+	public ChunkedArrayVector assocN(int i, Object o) {
+		if(i == cnt) return cons(o);
+		if(i < 0 || i > cnt) throw new IndexOutOfBoundsException();
+		final Object[] newChunks = chunks.clone();
+		final Object chunk = cloneChunk(chunks[i >>> shift]);
+		setBoxed(chunk, i & mask(), o);
+		newChunks[i >>> shift] = chunk;
+		return create(newChunks, cnt, shift, _meta);
+	}
+
+	@Override
+	public ChunkedArrayVector cons(Object o) {
+		final int ci = cnt >>> shift;
+		final Object[] newChunks;
+		final Object chunk;
+		if(ci < chunks.length){
+			newChunks = chunks.clone();
+			chunk = cloneChunk(chunks[ci]);
+		} else {
+			newChunks = Arrays.copyOf(chunks, ci + 1);
+			chunk = newChunk(1 << shift);
+		}
+		setBoxed(chunk, cnt & mask(), o);
+		newChunks[ci] = chunk;
+		return create(newChunks, cnt + 1, shift, _meta);
+	}
+
+	//Starts over at the default chunk size, rather than one sized for us
+	@Override
+	public ChunkedArrayVector empty() {
+		return create(new Object[0], 0, defaultShift, _meta);
+	}
+
+	//Leaves the popped element in place in a shared chunk, where it's invisible
+	@Override
+	public ChunkedArrayVector pop() {
+		if(cnt == 0) throw new IllegalStateException("Can't pop empty vector");
+		final int nChunks = (cnt - 1 + mask()) >>> shift;
+		return create(nChunks == chunks.length ? chunks : Arrays.copyOf(chunks, nChunks), cnt - 1, shift, _meta);
+	}
+
+	@Override
+	public ISeq seq() {
+		if(cnt == 0) return null;
+		return new ChunkedSeq(null, 0, 0);
+	}
+
+	@Override
+	public Transient asTransient() {
+		return new Transient();
+	}
+
+	//Chunks of 32 boxed elements, regardless of how we're stored
+	class ChunkedSeq extends ASeq implements IChunkedSeq, Counted {
+		private static final long serialVersionUID = 1L;
+		final Object[] block;
+		final int i;
+		final int offset;
+
+		ChunkedSeq(IPersistentMap meta, int i, int offset) {
+			super(meta);
+			this.i = i;
+			this.offset = offset;
+			this.block = new Object[Math.min(32, cnt - i)];
+			for(int j=0; j<block.length; j++) block[j] = nth(i + j);
+		}
+
+		ChunkedSeq(IPersistentMap meta, Object[] block, int i, int offset) {
+			super(meta);
+			this.block = block;
+			this.i = i;
+			this.offset = offset;
+		}
+
+		@Override
+		public IChunk chunkedFirst() {
+			return new ArrayChunk(block, offset);
+		}
+
+		@Override
+		public ISeq chunkedNext() {
+			if(i + block.length < cnt) return new ChunkedSeq(null, i + block.length, 0);
+			return null;
+		}
+
+		@Override
+		public ISeq chunkedMore() {
+			final ISeq out = chunkedNext();
+			if(out == null) return PersistentList.EMPTY;
+			return out;
+		}
+
+		@Override
+		public Object first() {
+			return block[offset];
+		}
+
+		@Override
+		public ISeq next() {
+			if(offset + 1 < block.length) return new ChunkedSeq(null, block, i, offset + 1);
+			return chunkedNext();
+		}
+
+		@Override
+		public int count() {
+			return cnt - (i + offset);
+		}
+
+		@Override
+		public Obj withMeta(IPersistentMap meta) {
+			return new ChunkedSeq(meta, block, i, offset);
+		}
+	}
+
+	//Owns a private copy of the outer array, and copies each chunk the first
+	//time it writes to it.
+	public class Transient extends AFn implements ITransientVector, Counted {
+		Object[] tChunks;
+		boolean[] owned;
+		int tCnt;
+		Thread owner;
+		final Object scratch;
+
+		Transient() {
+			this.tChunks = chunks.clone();
+			this.owned = new boolean[tChunks.length];
+			this.tCnt = cnt;
+			this.owner = Thread.currentThread();
+			this.scratch = newChunk(1);
+		}
+
+		void ensureEditable(){
+			if(owner == Thread.currentThread()) return;
+			if(owner != null) throw new IllegalAccessError("Transient used by non-owner thread");
+			throw new IllegalAccessError("Transient used after persistent! call");
+		}
+
+		Object editableChunk(int ci){
+			if(!owned[ci]){
+				tChunks[ci] = cloneChunk(tChunks[ci]);
+				owned[ci] = true;
+			}
+			return tChunks[ci];
+		}
+
+		public int probe(Object o, int pos, int n){
+			ensureEditable();
+			return ChunkedArrayVector.this.probe(tChunks, tCnt, o, pos, n);
+		}
+
+		//The chunk holding i, which may be shared with other vectors.  Only
+		//read from it, at indexInArray(i).
+		public Object arrayFor(int i){
+			if(i < 0 || i >= tCnt) throw new IndexOutOfBoundsException();
+			return tChunks[i >>> shift];
+		}
+
+		//The chunk holding i, copied into our ownership if necessary so that
+		//it may be written to directly at indexInArray(i).
+		public Object editableArrayFor(int i){
+			ensureEditable();
+			if(i < 0 || i >= tCnt) throw new IndexOutOfBoundsException();
+			return editableChunk(i >>> shift);
+		}
+
+		public int indexInArray(int i){
+			return i & mask();
+		}
+
+		//Exchanges two elements without boxing either
+		public void swap(int i, int j){
+			ensureEditable();
+			if(i < 0 || i >= tCnt || j < 0 || j >= tCnt) throw new IndexOutOfBoundsException();
+			final Object iChunk = editableChunk(i >>> shift);
+			final Object jChunk = editableChunk(j >>> shift);
+			System.arraycopy(iChunk, i & mask(), scratch, 0, 1);
+			System.arraycopy(jChunk, j & mask(), iChunk, i & mask(), 1);
+			System.arraycopy(scratch, 0, jChunk, j & mask(), 1);
+		}
+
+		@Override
+		public int count() {
+			ensureEditable();
+			return tCnt;
+		}
+
+		@Override
+		public Object nth(int i) {
+			ensureEditable();
+			if(i < 0 || i >= tCnt) throw new IndexOutOfBoundsException();
+			return getBoxed(tChunks[i >>> shift], i & mask());
+		}
+
+		@Override
+		public Object nth(int i, Object notFound) {
+			if(i >= 0 && i < count()) return nth(i);
+			return notFound;
+		}
+
+		@Override
+		public Object valAt(Object key) {
+			return valAt(key, null);
+		}
+
+		@Override
+		public Object valAt(Object key, Object notFound) {
+			if(Util.isInteger(key)) return nth(((Number)key).intValue(), notFound);
+			return notFound;
+		}
+
+		@Override
+		public Object invoke(Object arg1) {
+			if(Util.isInteger(arg1)) return nth(((Number)arg1).intValue());
+			throw new IllegalArgumentException("Key must be integer");
+		}
+
+		@Override
+		public Transient assocN(int i, Object o) {
+			ensureEditable();
+			if(i == tCnt) return conj(o);
+			if(i < 0 || i > tCnt) throw new IndexOutOfBoundsException();
+			setBoxed(editableChunk(i >>> shift), i & mask(), o);
+			return this;
+		}
+
+		@Override
+		public Transient assoc(Object key, Object o) {
+			if(Util.isInteger(key)) return assocN(((Number)key).intValue(), o);
+			throw new IllegalArgumentException("Key must be integer");
+		}
+
+		@Override
+		public Transient conj(Object o) {
+			ensureEditable();
+			final int ci = tCnt >>> shift;
+			if(ci == tChunks.length){
+				tChunks = Arrays.copyOf(tChunks, Math.max(1, tChunks.length * 2));
+				owned = Arrays.copyOf(owned, tChunks.length);
+			}
+			if(tChunks[ci] == null){
+				tChunks[ci] = newChunk(1 << shift);
+				owned[ci] = true;
+			}
+			setBoxed(editableChunk(ci), tCnt & mask(), o);
+			tCnt++;
+			return this;
+		}
+
+		@Override
+		public Transient pop() {
+			ensureEditable();
+			if(tCnt == 0) throw new IllegalStateException("Can't pop empty vector");
+			tCnt--;
+			return this;
+		}
+
+		@Override
+		public ChunkedArrayVector persistent() {
+			ensureEditable();
+			owner = null;
+			final int nChunks = (tCnt + mask()) >>> shift;
+			return create(nChunks == tChunks.length ? tChunks : Arrays.copyOf(tChunks, nChunks), tCnt, shift, _meta);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package soac.java.hopscotch;
+
+import java.util.Arrays;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.RT;
+
+public class DoubleChunkedArrayVector extends ChunkedArrayVector {
+	public static final long serialVersionUID = 1L;
+	public static final DoubleChunkedArrayVector EMPTY = new DoubleChunkedArrayVector(new Object[0], 0, defaultShift, null);
+
+	DoubleChunkedArrayVector(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		super(chunks, cnt, shift, meta);
+	}
+
+	@Override
+	Object newChunk(int size) {
+		return new double[size];
+	}
+
+	@Override
+	Object getBoxed(Object chunk, int i) {
+		return ((double[])chunk)[i];
+	}
+
+	@Override
+	void setBoxed(Object chunk, int i, Object o) {
+		((double[])chunk)[i] = RT.doubleCast(o);
+	}
+
+	@Override
+	void fill(Object chunk, Object o) {
+		Arrays.fill((double[])chunk, RT.doubleCast(o));
+	}
+
+	@Override
+	ChunkedArrayVector create(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		return new DoubleChunkedArrayVector(chunks, cnt, shift, meta);
+	}
+
+	public double getDouble(int i){
+		if(i < 0 || i >= cnt) throw new IndexOutOfBoundsException();
+		return ((double[])chunks[i >>> shift])[i & mask()];
+	}
+
+	@Override
+	int probe(Object[] chunks, int cnt, Object o, int pos, int n) {
+		if(!isFloating(o)) return -1;
+		final double k = ((Number)o).doubleValue();
+		final int mask = mask();
+		double[] chunk = (double[])chunks[pos >>> shift];
+		for(int ctr=0; ctr<n; ctr++){
+			if(chunk[pos & mask] == k) return pos;
+			pos = (pos + 1) & (cnt - 1);
+			if((pos & mask) == 0) chunk = (double[])chunks[pos >>> shift];
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,49 @@
+package soac.java.hopscotch;
+
+import clojure.lang.IFn;
+
+//Turns a key's hash into the one the tables place it by.  Tables only look at
+//the low bits of a hash, so raw Integer/Long hashes of sequential IDs, or of
+//IDs that are all multiples of some power of 2, crowd into a few
+//neighborhoods and force rehashes at low load; a spreader mixes the high bits
+//down first.
+public abstract class HashSpreader {
+	public abstract int spread(int h);
+
+	//The murmur3 32-bit finalizer
+	public static final HashSpreader MURMUR = new HashSpreader(){
+		@Override
+		public int spread(int h){
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+	};
+
+	//No mixing, for keys already known to be well distributed
+	public static final HashSpreader IDENTITY = new HashSpreader(){
+		@Override
+		public int spread(int h){
+			return h;
+		}
+	};
+
+	//A spreader calling f, a function of one (int) hash returning another
+	public static HashSpreader fromFn(final IFn f){
+		if(f instanceof IFn.LL) return new HashSpreader(){
+			@Override
+			public int spread(int h){
+				return (int)((IFn.LL)f).invokePrim(h);
+			}
+		};
+		return new HashSpreader(){
+			@Override
+			public int spread(int h){
+				return ((Number)f.invoke(h)).intValue();
+			}
+		};
+	}
+}
@@ -0,0 +1,69 @@
+package soac.java.hopscotch;
+
+import java.util.Arrays;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.RT;
+
+public class IntChunkedArrayVector extends ChunkedArrayVector {
+	public static final long serialVersionUID = 1L;
+	public static final IntChunkedArrayVector EMPTY = new IntChunkedArrayVector(new Object[0], 0, defaultShift, null);
+
+	IntChunkedArrayVector(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		super(chunks, cnt, shift, meta);
+	}
+
+	@Override
+	Object newChunk(int size) {
+		return new int[size];
+	}
+
+	@Override
+	Object getBoxed(Object chunk, int i) {
+		return ((int[])chunk)[i];
+	}
+
+	@Override
+	void setBoxed(Object chunk, int i, Object o) {
+		((int[])chunk)[i] = RT.intCast(o);
+	}
+
+	@Override
+	void fill(Object chunk, Object o) {
+		Arrays.fill((int[])chunk, RT.intCast(o));
+	}
+
+	@Override
+	ChunkedArrayVector create(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		return new IntChunkedArrayVector(chunks, cnt, shift, meta);
+	}
+
+	//A copy of a, chunked as filled would
+	public static IntChunkedArrayVector of(int[] a){
+		final int shift = chunkShiftFor(a.length);
+		final Object[] chunks = new Object[(a.length + (1 << shift) - 1) >>> shift];
+		for(int i=0; i<chunks.length; i++) chunks[i] = Arrays.copyOfRange(a, i << shift, (i + 1) << shift);
+		return new IntChunkedArrayVector(chunks, a.length, shift, null);
+	}
+
+	public int getInt(int i){
+		if(i < 0 || i >= cnt) throw new IndexOutOfBoundsException();
+		return ((int[])chunks[i >>> shift])[i & mask()];
+	}
+
+	@Override
+	int probe(Object[] chunks, int cnt, Object o, int pos, int n) {
+		if(!isIntegral(o)) return -1;
+		final long lk = ((Number)o).longValue();
+		if(lk < Integer.MIN_VALUE || lk > Integer.MAX_VALUE) return -1;
+		final int k = (int)lk;
+		final int mask = mask();
+		int[] chunk = (int[])chunks[pos >>> shift];
+		for(int ctr=0; ctr<n; ctr++){
+			if(chunk[pos & mask] == k) return pos;
+			pos = (pos + 1) & (cnt - 1);
+			if((pos & mask) == 0) chunk = (int[])chunks[pos >>> shift];
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,59 @@
+package soac.java.hopscotch;
+
+import java.util.Arrays;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.RT;
+
+public class LongChunkedArrayVector extends ChunkedArrayVector {
+	public static final long serialVersionUID = 1L;
+	public static final LongChunkedArrayVector EMPTY = new LongChunkedArrayVector(new Object[0], 0, defaultShift, null);
+
+	LongChunkedArrayVector(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		super(chunks, cnt, shift, meta);
+	}
+
+	@Override
+	Object newChunk(int size) {
+		return new long[size];
+	}
+
+	@Override
+	Object getBoxed(Object chunk, int i) {
+		return ((long[])chunk)[i];
+	}
+
+	@Override
+	void setBoxed(Object chunk, int i, Object o) {
+		((long[])chunk)[i] = RT.longCast(o);
+	}
+
+	@Override
+	void fill(Object chunk, Object o) {
+		Arrays.fill((long[])chunk, RT.longCast(o));
+	}
+
+	@Override
+	ChunkedArrayVector create(Object[] chunks, int cnt, int shift, IPersistentMap meta) {
+		return new LongChunkedArrayVector(chunks, cnt, shift, meta);
+	}
+
+	public long getLong(int i){
+		if(i < 0 || i >= cnt) throw new IndexOutOfBoundsException();
+		return ((long[])chunks[i >>> shift])[i & mask()];
+	}
+
+	@Override
+	int probe(Object[] chunks, int cnt, Object o, int pos, int n) {
+		if(!isIntegral(o)) return -1;
+		final long k = ((Number)o).longValue();
+		final int mask = mask();
+		long[] chunk = (long[])chunks[pos >>> shift];
+		for(int ctr=0; ctr<n; ctr++){
+			if(chunk[pos & mask] == k) return pos;
+			pos = (pos + 1) & (cnt - 1);
+			if((pos & mask) == 0) chunk = (long[])chunks[pos >>> shift];
+		}
+		return -1;
+	}
+}
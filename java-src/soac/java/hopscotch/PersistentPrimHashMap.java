@@ -1,60 +1,67 @@
 package soac.java.hopscotch;
 
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import clojure.lang.AFn;
 import clojure.lang.APersistentMap;
 import clojure.lang.ASeq;
 import clojure.lang.ChunkBuffer;
 import clojure.lang.IChunk;
 import clojure.lang.IChunkedSeq;
+import clojure.lang.IDeref;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IFn;
 import clojure.lang.IHashEq;
 import clojure.lang.IMapEntry;
 import clojure.lang.IObj;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
 import clojure.lang.ISeq;
 import clojure.lang.MapEntry;
 import clojure.lang.MapEquivalence;
+import clojure.lang.Murmur3;
 import clojure.lang.Obj;
 import clojure.lang.PersistentHashSet;
 import clojure.lang.PersistentList;
 import clojure.lang.RT;
-import clojure.lang.SeqIterator;
 import clojure.lang.Util;
 
 @SuppressWarnings("rawtypes")
-public class PersistentPrimHashMap extends PersistentPrimHashTable implements Map, IObj, IPersistentMap, Iterable, IHashEq, MapEquivalence{
+public class PersistentPrimHashMap extends PersistentPrimHashTable implements Map, IObj, IPersistentMap, Iterable, IHashEq, MapEquivalence, IEditableCollection, IReduce{
 	final IPersistentVector _vs;
 
-	private PersistentPrimHashMap(IPersistentVector ks, IPersistentVector vs, IPersistentMap meta, int size, Object free) {
-		super(ks, meta, size, free);
+	PersistentPrimHashMap(IPersistentVector ks, IPersistentVector vs, IPersistentVector hops, IPersistentVector hashes,
+			HashSpreader spreader, IPersistentMap meta, int size, Object free) {
+		super(ks, hops, hashes, spreader, meta, size, free);
 		this._vs = vs;
 	}
 	
 	public static PersistentPrimHashMap fromProto(IPersistentVector ks, IPersistentVector vs, Object free){
-		IPersistentVector newKs = (IPersistentVector)ks.empty();
-		IPersistentVector newVs = (IPersistentVector)vs.empty();
-		for(int i = 0; i<neighborhood; i++){
-			newKs = newKs.cons(free);
-			//Everything can store some version of 0
-			newVs = newVs.cons(0);
-		}
-		return new PersistentPrimHashMap(newKs, newVs, null, 0, free);
+		return fromProto(ks, vs, free, 0, false, HashSpreader.MURMUR);
 	}
 	
 	public static PersistentPrimHashMap fromProto(IPersistentVector ks, IPersistentVector vs, Object free, int size){
+		return fromProto(ks, vs, free, size, false, HashSpreader.MURMUR);
+	}
+	
+	//cacheHashes stores each key's hash alongside it, see PersistentPrimHashTable._hashes
+	public static PersistentPrimHashMap fromProto(IPersistentVector ks, IPersistentVector vs, Object free, int size,
+			boolean cacheHashes, HashSpreader spreader){
 		IPersistentVector newKs = (IPersistentVector)ks.empty();
 		IPersistentVector newVs = (IPersistentVector)vs.empty();
 		
-		for(int i=0; i<Math.max(neighborhood, (Integer.highestOneBit(size)<<1)); i++){
+		final int capacity = Math.max(neighborhood, (Integer.highestOneBit(size)<<1));
+		for(int i=0; i<capacity; i++){
 			newKs = newKs.cons(free);
-			newVs = newVs.cons(free);
+			//Everything can store some version of 0
+			newVs = newVs.cons(0);
 		}
-		return new PersistentPrimHashMap(newKs, newVs, null, 0, free);
+		return new PersistentPrimHashMap(newKs, newVs, hopColumnOf(newKs, new int[capacity], cacheHashes),
+				cacheHashes ? intColumnOf(newKs, new int[capacity]) : null, spreader, null, 0, free);
 	}	
 	
 	public IPersistentVector getRawVals(){
@@ -65,30 +72,17 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 		return rehash(1);
 	}
 	
-	//TODO: Specialize this for when _ks or _vs is an IEditableCollection
+	//Builds the new table in one pass, via TableBuilder
 	public PersistentPrimHashMap rehash(int increment){
-		int newCapacity = increment>0 ? _capacity << increment : _capacity >> -increment;
-		IPersistentVector newKs, newVs;
-		if(isEmpty()){
-			newKs = _ks;
-			newVs = _vs;
-		} else {
-			newKs = (IPersistentVector)_ks.empty();
-			newVs = (IPersistentVector)_vs.empty();
-		}
-		while(newKs.count() < newCapacity) {
-			newKs = newKs.cons(_free);
-			newVs = newVs.cons(0);
-		}
-		
-		PersistentPrimHashMap out = new PersistentPrimHashMap(newKs, newVs, _meta, 0, _free);
-		//Avoid traversing to check for free when we have no data
-		if(size()==0) return out;
-		for(ISeq es = seq(); es != null; es = es.next()){
-			final Map.Entry e = (Map.Entry)es.first();
-			out = (PersistentPrimHashMap)out.assoc(e.getKey(), e.getValue());
-		}
-		return out;
+		final int newCapacity = increment>0 ? _capacity << increment : _capacity >> -increment;
+		final TableBuilder b = TableBuilder.rebuild(_ks, _hashes, _spreader, _free, newCapacity);
+		final IPersistentVector ks = b.gather(_ks, _free);
+		return new PersistentPrimHashMap(ks, b.gather(_vs, 0L), b.hops(ks, _hashes != null), _hashes == null ? null : b.hashes(ks), _spreader, _meta, b.size, _free);
+	}
+	
+	@Override
+	public TransientPrimHashMap asTransient() {
+		return new TransientPrimHashMap(this);
 	}
 	
 	@Override
@@ -97,60 +91,7 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 	}	
 	@Override
 	public IPersistentMap assoc(Object k, Object v) {
-		if(Util.equiv(_free,k)) throw new RuntimeException("Cannot sensibly have free value as a key");
-		if(load() > rehashThresholdHi) return rehash().assoc(k,v);
-
-		//Find the first free position, or the element if it exists in the neighborhood
-		int pos = bitMod(k.hashCode()); int ct = 0; int freePos = -1;
-		for(;;){
-			final Object thisK = _ks.nth(pos);
-			if(Util.equiv(k, thisK)) {
-				return new PersistentPrimHashMap(_ks, _vs.assocN(pos, v), _meta, _size, _free);
-			}
-			if(thisK.equals(_free)) {
-				if(ct<neighborhood && freePos == -1) freePos = pos;
-				else if(ct >= neighborhood) break;
-			}
-			pos = wrappingInc(pos);
-			ct++;
-		}
-		//first free element is now at ct away from optimal insertion point, and stored in freePos
-		//if inside neighborhood; otherwise freePos is -1 and value is stored in pos.
-		if(freePos != -1) {
-			return new PersistentPrimHashMap(_ks.assocN(freePos, k), _vs.assocN(freePos, v), _meta, _size+1, _free);
-		} 
-		//Otherwise it's at pos.  Shift elements, recursively if necessary
-		else {
-			//Temporarily store o in its invalid pos, while we search for a valid exchange
-			IPersistentVector newKs = _ks.assocN(pos, k);
-			IPersistentVector newVs = _vs.assocN(pos, v);
-			int topPos = pos;
-			int bottomPos = firstShiftablePos(pos);
-			ct = 0;
-			while(ct < neighborhood){
-				//Can the bottom element be shifted to the top?
-				if(checkPosition(_ks.nth(bottomPos), topPos)){
-					//And the top element switched to the bottom?
-					if(checkPosition(k, bottomPos)){
-						//Cool, make the switch and return
-						return new PersistentPrimHashMap(exchange(_ks, bottomPos, topPos), exchange(_vs, bottomPos, topPos)
-								,_meta, _size+1, _free);
-					}
-					//Swap them anyway, and check further down for a valid swap, checking the new positions. 
-					else {
-						newKs = exchange(newKs, bottomPos, topPos);
-						newVs = exchange(newVs, bottomPos, topPos);
-						topPos = bottomPos;
-						bottomPos = firstShiftablePos(bottomPos);
-						ct = 0;
-					}
-				} else {
-					bottomPos = wrappingInc(bottomPos);
-					ct++;
-				}
-			}
-			return rehash().assoc(k,v);
-		}
+		return asTransient().assoc(k, v).persistent();
 	}
 	@Override
 	public IPersistentMap assocEx(Object k, Object v) {
@@ -184,7 +125,7 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 	}
 	@Override
 	public IPersistentCollection empty() {
-		return fromProto(_ks, _vs, _free);
+		return fromProto(_ks, _vs, _free, 0, _hashes != null, _spreader);
 	}
 	@Override
 	public IMapEntry entryAt(Object o) {
@@ -209,12 +150,12 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 		if(m.size() != size())
 			return false;
 
-		for(ISeq s = seq(); s != null; s = s.next())
+		for(EntryIterator it = iterator(); it.hasNext(); it.advance())
 			{
-			Map.Entry e = (Map.Entry) s.first();
-			boolean found = m.containsKey(e.getKey());
+			final Object k = it.key();
+			boolean found = m.containsKey(k);
 
-			if(!found || !Util.equiv(e.getValue(), m.get(e.getKey())))
+			if(!found || !Util.equiv(it.val(), m.get(k)))
 				return false;
 			}
 
@@ -231,11 +172,21 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 	}
 	@Override
 	public int hashCode() {
-		return APersistentMap.mapHash(this);
+		int sum = 0;
+		for(EntryIterator it = iterator(); it.hasNext(); it.advance()){
+			sum += Util.hash(it.key()) ^ Util.hash(it.val());
+		}
+		return sum;
 	}
+	//Same as APersistentMap.mapHasheq, with each MapEntry's hasheq worked
+	//out without making it
 	@Override
 	public int hasheq() {
-		return APersistentMap.mapHasheq(this);
+		int sum = 0;
+		for(EntryIterator it = iterator(); it.hasNext(); it.advance()){
+			sum += Murmur3.mixCollHash(31 * (31 + Util.hasheq(it.key())) + Util.hasheq(it.val()), 2);
+		}
+		return Murmur3.mixCollHash(sum, _size);
 	}
 	
 	private class FilteredSeq extends ASeq implements IChunkedSeq{
@@ -359,6 +310,80 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 		if(_size==0) return null;
 		return new FilteredSeq((IChunkedSeq)_ks.seq(), (IChunkedSeq)_vs.seq(), null);
 	}
+	
+	//Calls (f acc k v) on each entry, with no MapEntry in between, and with
+	//unboxed keys and values if f takes them.  soac.hopscotch extends
+	//IKVReduce to this, so it backs reduce-kv.
+	public Object kvreduce(IFn f, Object init) {
+		return kvreduceFrom(0, f, init);
+	}
+	
+	Object kvreduceFrom(int i, IFn f, Object acc){
+		while(i < _capacity){
+			final Object ka = arrayFor(_ks, i);
+			final Object va = arrayFor(_vs, i);
+			final int kOff = indexInArray(_ks, i);
+			final int vOff = indexInArray(_vs, i);
+			final int n = Math.min(Math.min(blockLength(_ks, i), blockLength(_vs, i)), _capacity - i);
+			final boolean longKs = isIntegralArray(ka), doubleKs = isFloatingArray(ka);
+			final boolean longVs = isIntegralArray(va), doubleVs = isFloatingArray(va);
+			if(f instanceof IFn.OLLO && longKs && longVs){
+				for(int j=0; j<n; j++){
+					if(isFreeAt(ka, kOff + j)) continue;
+					acc = ((IFn.OLLO)f).invokePrim(acc, longAt(ka, kOff + j), longAt(va, vOff + j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else if(f instanceof IFn.OLDO && longKs && doubleVs){
+				for(int j=0; j<n; j++){
+					if(isFreeAt(ka, kOff + j)) continue;
+					acc = ((IFn.OLDO)f).invokePrim(acc, longAt(ka, kOff + j), doubleAt(va, vOff + j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else if(f instanceof IFn.ODLO && doubleKs && longVs){
+				for(int j=0; j<n; j++){
+					if(isFreeAt(ka, kOff + j)) continue;
+					acc = ((IFn.ODLO)f).invokePrim(acc, doubleAt(ka, kOff + j), longAt(va, vOff + j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else if(f instanceof IFn.ODDO && doubleKs && doubleVs){
+				for(int j=0; j<n; j++){
+					if(isFreeAt(ka, kOff + j)) continue;
+					acc = ((IFn.ODDO)f).invokePrim(acc, doubleAt(ka, kOff + j), doubleAt(va, vOff + j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else {
+				for(int j=0; j<n; j++){
+					if(isFreeAt(ka, kOff + j)) continue;
+					acc = f.invoke(acc, boxedAt(ka, kOff + j), boxedAt(va, vOff + j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			}
+			i += n;
+		}
+		return acc;
+	}
+	
+	//Reducing over entries is a kvreduce that makes the MapEntry
+	static IFn entryReducer(final IFn f){
+		return new AFn(){
+			@Override
+			public Object invoke(Object acc, Object k, Object v){
+				return f.invoke(acc, new MapEntry(k, v));
+			}
+		};
+	}
+	
+	@Override
+	public Object reduce(IFn f) {
+		final int start = nextLive(0);
+		if(start == _capacity) return f.invoke();
+		return kvreduceFrom(start + 1, entryReducer(f), new MapEntry(_ks.nth(start), _vs.nth(start)));
+	}
+	@Override
+	public Object reduce(IFn f, Object init) {
+		return kvreduceFrom(0, entryReducer(f), init);
+	}
+	
 	@Override
 	public Collection values() {
 		IPersistentVector out = (IPersistentVector)_vs.empty();
@@ -381,11 +406,8 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 	}
 	@Override
 	public IPersistentMap without(Object k) {
-		if(load() < rehashThresholdLo && _capacity > neighborhood) 
-			return rehash(-1).without(k);
-		final int pos = findIndex(k);
-		if(pos>=0) return new PersistentPrimHashMap(_ks.assocN(pos,_free), _vs, _meta, _size-1, _free);
-		return this;
+		if(!containsKey(k)) return this;
+		return asTransient().without(k).persistent();
 	}
 	@Override
 	public boolean isEmpty() {
@@ -393,15 +415,43 @@ public class PersistentPrimHashMap extends PersistentPrimHashTable implements Ma
 	}
 	@Override
 	public Set keySet() {
-		return new PersistentPrimHashSet(_ks, null, _size, _free);
+		return new PersistentPrimHashSet(_ks, _hops, _hashes, _spreader, null, _size, _free);
 	}
 	@Override
-	public Iterator iterator() {
-		return new SeqIterator(seq());
+	public EntryIterator iterator() {
+		return new EntryIterator(this);
+	}
+	public SlotIterator keyIterator() {
+		return new SlotIterator(this, _ks);
+	}
+	public SlotIterator valIterator() {
+		return new SlotIterator(this, _vs);
+	}
+	
+	//Yields MapEntrys.  nextLong and friends give just the values, as for
+	//valIterator.
+	public static class EntryIterator extends SlotIterator {
+		EntryIterator(PersistentPrimHashMap m) {
+			super(m, m._vs);
+		}
+		//The current entry's key and value, before advance()
+		Object key(){
+			return PersistentPrimHashTable.boxedAt(ks, slot + kOff);
+		}
+		Object val(){
+			return PersistentPrimHashTable.boxedAt(arr, slot + off);
+		}
+		@Override
+		public Object next() {
+			checkNext();
+			final Object out = new MapEntry(key(), val());
+			advance();
+			return out;
+		}
 	}
 	@Override
 	public IObj withMeta(IPersistentMap meta) {
-		return new PersistentPrimHashMap(_ks, _vs, meta, _size, _free);
+		return new PersistentPrimHashMap(_ks, _vs, _hops, _hashes, _spreader, meta, _size, _free);
 	}
 	@Override
 	public int size() {
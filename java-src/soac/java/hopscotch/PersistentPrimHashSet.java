@@ -1,47 +1,57 @@
 package soac.java.hopscotch;
 
+import java.lang.reflect.Array;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.Set;
 
 import clojure.lang.ASeq;
 import clojure.lang.ChunkBuffer;
 import clojure.lang.IChunk;
 import clojure.lang.IChunkedSeq;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
 import clojure.lang.IHashEq;
 import clojure.lang.IObj;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
 import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
 import clojure.lang.ISeq;
 import clojure.lang.Obj;
 import clojure.lang.PersistentList;
 import clojure.lang.RT;
-import clojure.lang.SeqIterator;
 import clojure.lang.Util;
 
 @SuppressWarnings("rawtypes")
 public class PersistentPrimHashSet 
 	extends PersistentPrimHashTable 
-	implements IObj, Collection, Set, IPersistentSet, IHashEq {
+	implements IObj, Collection, Set, IPersistentSet, IHashEq, IEditableCollection, IReduce {
 	
-	PersistentPrimHashSet(IPersistentVector data, IPersistentMap meta, int size, Object free) {
-		super(data, meta, size, free);
+	PersistentPrimHashSet(IPersistentVector data, IPersistentVector hops, IPersistentVector hashes,
+			HashSpreader spreader, IPersistentMap meta, int size, Object free) {
+		super(data, hops, hashes, spreader, meta, size, free);
 	}
 	
 	public static PersistentPrimHashSet fromProto(IPersistentVector data, Object free){
-		IPersistentVector dataStore = (IPersistentVector)data.empty();
-		for(int i=0; i<neighborhood; i++) dataStore = dataStore.cons(free);
-		return new PersistentPrimHashSet(dataStore, null, 0, free);
+		return fromProto(data, free, 0, false, HashSpreader.MURMUR);
 	}
 	
 	public static PersistentPrimHashSet fromProto(IPersistentVector data, Object free, int size){
+		return fromProto(data, free, size, false, HashSpreader.MURMUR);
+	}
+	
+	//cacheHashes stores each key's hash alongside it, see PersistentPrimHashTable._hashes
+	public static PersistentPrimHashSet fromProto(IPersistentVector data, Object free, int size,
+			boolean cacheHashes, HashSpreader spreader){
 		IPersistentVector dataStore = (IPersistentVector)data.empty();
-		for(int i=0; i<Math.max(neighborhood, (Integer.highestOneBit(size)<<1)); i++){
+		final int capacity = Math.max(neighborhood, (Integer.highestOneBit(size)<<1));
+		for(int i=0; i<capacity; i++){
 			dataStore = dataStore.cons(free);
 		}
-		return new PersistentPrimHashSet(dataStore, null, 0, free);
+		return new PersistentPrimHashSet(dataStore, hopColumnOf(dataStore, new int[capacity], cacheHashes),
+				cacheHashes ? intColumnOf(dataStore, new int[capacity]) : null, spreader, null, 0, free);
 	}
 	
 	
@@ -49,78 +59,112 @@ public class PersistentPrimHashSet
 		return rehash(1);
 	}
 	
-	//TODO: Specialize this for when _ks is an IEditableCollection
+	//Builds the new table in one pass, via TableBuilder
 	public PersistentPrimHashSet rehash(int increment){
-		int newCapacity = increment>0 ? _capacity << increment : _capacity >> -increment;
-		IPersistentVector newData = isEmpty() ? _ks : (IPersistentVector)_ks.empty();
-		while(newData.count() < newCapacity) newData = newData.cons(_free);
-		
-		PersistentPrimHashSet out = new PersistentPrimHashSet(newData, _meta, 0, _free);
-		//Avoid traversing to check for free when we have no data
-		if(size()==0) return out;
-		for(Object o : this){
-			out = (PersistentPrimHashSet)out.cons(o);
-		}
-		return out;
+		final int newCapacity = increment>0 ? _capacity << increment : _capacity >> -increment;
+		final TableBuilder b = TableBuilder.rebuild(_ks, _hashes, _spreader, _free, newCapacity);
+		final IPersistentVector ks = b.gather(_ks, _free);
+		return new PersistentPrimHashSet(ks, b.hops(ks, _hashes != null), _hashes == null ? null : b.hashes(ks), _spreader, _meta, b.size, _free);
 	}
 	
-	@Override
-	public IPersistentCollection cons(Object o) {
-		if(Util.equiv(_free,o)) throw new RuntimeException("Cannot sensibly conj free value");
-		if(load() > rehashThresholdHi) return rehash().cons(o);
-
-		//Find the first free position, or the element if it exists inside the neighborhood
-		//Could make this slightly faster by scanning thru backing array directly instead
-		//of using nth
-		int pos = bitMod(o.hashCode()); int ct = 0; int freePos = -1;
-		for(;;){
-			final Object k = _ks.nth(pos);
-			if(Util.equiv(k, o)) return this;
-			if(k.equals(_free)){
-				//Element may be beyond the free position, but still in the neighborhood
-				if(ct<neighborhood && freePos == -1) freePos = pos;
-				//If we're outside the neighborhood though, the element is guaranteed not to be there.
-				else if(ct >= neighborhood) break;
+	/* Set algebra against another prim hash set.  Rather than a persistent
+	 * cons or disjoin per element, these walk one table's slots in place,
+	 * look each key up in the other - reusing its hash when the two share a
+	 * spreader, so that same-capacity tables compare neighborhood to
+	 * neighborhood - and build the result in one go.*/
+	
+	//Every key in either set.  Keeps the larger's layout, and places the
+	//smaller's missing keys into it after at most one rehash.
+	public PersistentPrimHashSet union(PersistentPrimHashSet other){
+		if(other._size > _size) return other.union(this);
+		final int[] missing = new int[other._size];
+		final int[] missingHashes = new int[other._size];
+		final boolean checkFree = !Util.equiv(_free, other._free);
+		int n = 0;
+		for(SlotIterator it = other.iterator(); it.hasNext(); it.advance()){
+			final Object k = it.current();
+			if(checkFree && Util.equiv(_free, k)) throw new RuntimeException("Cannot sensibly conj free value");
+			final int hash = other._spreader == _spreader ? other.hashAt(it.slot, k) : hashOf(k);
+			if(findIndex(k, hash) < 0){
+				missing[n] = it.slot;
+				missingHashes[n++] = hash;
 			}
-			pos = wrappingInc(pos);
-			ct++;
 		}
-
-		//freePos now represents the first free slot, and ct how far away it is from the insert point
-		if(ct<neighborhood) {
-			//freePos will be set to a valid position IFF there is a free position in the neighborhood
-			//and the element is not in the neighborhood already
-			return new PersistentPrimHashSet(_ks.assocN(freePos, o), _meta, _size+1, _free);
-		} 
-		//Shift elements, recursively if necessary
-		else {
-			//Temporarily store o in its invalid pos, while we search for a valid exchange
-			IPersistentVector newData = _ks.assocN(pos, o);
-			int topPos = pos;
-			int bottomPos = firstShiftablePos(pos);
-			ct = 0;
-			while(ct < neighborhood){
-				//Can the bottom element be shifted to the top?
-				if(checkPosition(newData.nth(bottomPos), topPos)){
-					//And the top element switched to the bottom?
-					if(checkPosition(o, bottomPos)){
-						//Cool, make the switch and return
-						return new PersistentPrimHashSet(exchange(newData, bottomPos, topPos), _meta, _size+1, _free);
-					}
-					//Swap them anyway, and check further down for a valid swap, checking the new positions. 
-					else {
-						newData = exchange(newData, bottomPos, topPos);
-						topPos = bottomPos;
-						bottomPos = firstShiftablePos(bottomPos);
-						ct = 0;
-					}
-				} else {
-					bottomPos = wrappingInc(bottomPos);
-					ct++;
-				}
+		if(n == 0) return this;
+		int increment = 0;
+		while(_size + n > (_capacity << increment) * rehashThresholdHi) increment++;
+		final TransientPrimHashSet t = asTransient();
+		if(increment > 0) t.rehash(increment);
+		for(int i=0; i<n; i++) t.placeKey(other._ks.nth(missing[i]), missingHashes[i]);
+		return t.persistent();
+	}
+	
+	//The keys in both sets, laid out in the smaller's slots
+	public PersistentPrimHashSet intersection(PersistentPrimHashSet other){
+		if(other._size < _size) return other.retain(this, true);
+		return retain(other, true);
+	}
+	
+	//Our keys that aren't in other.  If other is much smaller, it's cheaper
+	//to remove its keys one by one than to look every one of ours up.
+	public PersistentPrimHashSet difference(PersistentPrimHashSet other){
+		if(other._size * 4 < _size){
+			final TransientPrimHashSet t = asTransient();
+			for(SlotIterator it = other.iterator(); it.hasNext();) t.disjoin(it.next());
+			return t.persistent();
+		}
+		return retain(other, false);
+	}
+	
+	public boolean isSubset(PersistentPrimHashSet other){
+		if(_size > other._size) return false;
+		for(SlotIterator it = iterator(); it.hasNext(); it.advance()){
+			final Object k = it.current();
+			final int hash = other._spreader == _spreader ? hashAt(it.slot, k) : other.hashOf(k);
+			if(other.findIndex(k, hash) < 0) return false;
+		}
+		return true;
+	}
+	
+	//Our keys that are in other if keep, or that aren't if not.  They stay in
+	//their slots unless so few are left that the table should shrink, in
+	//which case they're laid out afresh.
+	PersistentPrimHashSet retain(PersistentPrimHashSet other, boolean keep){
+		final int[] slots = new int[_size];
+		final int[] hashes = new int[_size];
+		int n = 0;
+		for(SlotIterator it = iterator(); it.hasNext(); it.advance()){
+			final Object k = it.current();
+			final int hash = hashAt(it.slot, k);
+			final int otherHash = other._spreader == _spreader ? hash : other.hashOf(k);
+			if((other.findIndex(k, otherHash) >= 0) == keep){
+				slots[n] = it.slot;
+				hashes[n++] = hash;
 			}
-			return rehash().cons(o);
 		}
+		if(n == _size) return this;
+		int capacity = _capacity;
+		while(capacity > neighborhood && n < capacity * rehashThresholdLo) capacity >>= 1;
+		final TableBuilder b = capacity == _capacity ? TableBuilder.keep(slots, hashes, n, capacity)
+		                                             : TableBuilder.layout(slots, hashes, n, capacity);
+		final IPersistentVector ks = b.gather(_ks, _free);
+		return new PersistentPrimHashSet(ks, b.hops(ks, _hashes != null), _hashes == null ? null : b.hashes(ks), _spreader, _meta, b.size, _free);
+	}
+	
+	@Override
+	public TransientPrimHashSet asTransient() {
+		return new TransientPrimHashSet(this);
+	}
+	
+	@Override
+	public IPersistentCollection cons(Object o) {
+		if(Util.equiv(_free,o)) throw new RuntimeException("Cannot sensibly conj free value");
+		//Probes once, and only makes a transient to place a key that's absent
+		final int hash = hashOf(o);
+		if(findIndex(o, hash) >= 0) return this;
+		final TransientPrimHashSet t = asTransient();
+		t.placeKey(o, hash);
+		return t.persistent();
 	}
 	@Override
 	public boolean contains(Object o) {
@@ -136,11 +180,8 @@ public class PersistentPrimHashSet
 	}
 	@Override
 	public IPersistentSet disjoin(Object o) {
-		if(load() < rehashThresholdLo && _capacity > neighborhood) 
-			return rehash(-1).disjoin(o);
-		int pos = findIndex(o);
-		if(pos<0) return this;
-		return new PersistentPrimHashSet(_ks.assocN(pos, _free), _meta, _size - 1, _free);
+		if(!contains(o)) return this;
+		return asTransient().disjoin(o).persistent();
 	}
 
 	@Override
@@ -148,7 +189,7 @@ public class PersistentPrimHashSet
 		if(! (o instanceof Set)) return false;
 		final Set oset = (Set)o;
 		if(oset.size() != size()) return false;
-		for(Object i : oset) if(!contains(i)) return false;
+		for(SlotIterator it = iterator(); it.hasNext();) if(!oset.contains(it.next())) return false;
 		return true;
 	}
 	@Override
@@ -249,23 +290,66 @@ public class PersistentPrimHashSet
 		if(_size==0) return null;
 		return new FilteredSeq((IChunkedSeq)_ks.seq(), null);
 	}
+	
+	@Override
+	public Object reduce(IFn f) {
+		final int start = nextLive(0);
+		if(start == _capacity) return f.invoke();
+		return reduceFrom(start + 1, f, _ks.nth(start));
+	}
+	@Override
+	public Object reduce(IFn f, Object init) {
+		return reduceFrom(0, f, init);
+	}
+	
+	//Walks the keys a backing array at a time, skipping free slots without
+	//boxing them, and calling f on unboxed keys if it takes them.
+	Object reduceFrom(int i, IFn f, Object acc){
+		while(i < _capacity){
+			final Object a = arrayFor(_ks, i);
+			final int off = indexInArray(_ks, i);
+			final int end = off + Math.min(blockLength(_ks, i), _capacity - i);
+			if(f instanceof IFn.OLO && isIntegralArray(a)){
+				for(int j=off; j<end; j++){
+					if(isFreeAt(a, j)) continue;
+					acc = ((IFn.OLO)f).invokePrim(acc, longAt(a, j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else if(f instanceof IFn.ODO && isFloatingArray(a)){
+				for(int j=off; j<end; j++){
+					if(isFreeAt(a, j)) continue;
+					acc = ((IFn.ODO)f).invokePrim(acc, doubleAt(a, j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			} else {
+				for(int j=off; j<end; j++){
+					if(isFreeAt(a, j)) continue;
+					acc = f.invoke(acc, boxedAt(a, j));
+					if(RT.isReduced(acc)) return ((IDeref)acc).deref();
+				}
+			}
+			i += end - off;
+		}
+		return acc;
+	}
+	
 	@Override
 	public IObj withMeta(IPersistentMap meta) {
-		return new PersistentPrimHashSet(_ks, meta, _size, _free);
+		return new PersistentPrimHashSet(_ks, _hops, _hashes, _spreader, meta, _size, _free);
 	}
 	@Override
 	public PersistentPrimHashSet empty() {
-		return fromProto(_ks, _free);
+		return fromProto(_ks, _free, 0, _hashes != null, _spreader);
 	}	@Override
 	public int hashCode() {
 		int sum = 0;
-		for(Object o: this) sum+= Util.hash(o);
+		for(SlotIterator it = iterator(); it.hasNext();) sum+= Util.hash(it.next());
 		return sum;
 	}
 	@Override
 	public int hasheq() {
 		int sum = 0;
-		for(Object o: this) sum+= Util.hasheq(o);
+		for(SlotIterator it = iterator(); it.hasNext();) sum+= Util.hasheq(it.next());
 		return sum;
 	}
 	@Override
@@ -273,8 +357,8 @@ public class PersistentPrimHashSet
 		return _size==0;
 	}
 	@Override
-	public Iterator iterator() {
-		return new SeqIterator(seq());
+	public SlotIterator iterator() {
+		return new SlotIterator(this, _ks);
 	}
 	@Override
 	public int size() { return _size; }
@@ -284,9 +368,15 @@ public class PersistentPrimHashSet
 	}
 		
 	@Override
-	public Object[] toArray() { return RT.seqToArray(seq()); }
+	public Object[] toArray() { return toArray(new Object[_size]); }
 	@Override
-	public Object[] toArray(Object[] a) { return RT.seqToPassedArray(seq(), a); }
+	public Object[] toArray(Object[] a) {
+		if(a.length < _size) a = (Object[])Array.newInstance(a.getClass().getComponentType(), _size);
+		int i = 0;
+		for(SlotIterator it = iterator(); it.hasNext();) a[i++] = it.next();
+		if(i < a.length) a[i] = null;
+		return a;
+	}
 	@Override
 	public boolean add(Object e) { throw new UnsupportedOperationException(); }
 	@Override
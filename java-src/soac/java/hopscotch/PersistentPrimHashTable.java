@@ -1,14 +1,18 @@
 package soac.java.hopscotch;
 
-import clojure.core.ArrayManager;
+import java.util.Arrays;
+
 import clojure.core.Vec;
 import clojure.lang.AFn;
 import clojure.lang.Counted;
 import clojure.lang.IObj;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentVector;
+import clojure.lang.Keyword;
 import clojure.lang.PersistentVector;
+import clojure.lang.RT;
 import clojure.lang.Util;
+import soac.java.util.TransientVec;
 
 /* A note on ==, equiv and equals:
  * We can in general never use ==, since values may be stored as primitives and
@@ -21,6 +25,19 @@ import clojure.lang.Util;
 public abstract class PersistentPrimHashTable extends AFn implements IObj, Counted {
 	//Under normal circumstances, also an IChunkedSeq
 	final IPersistentVector _ks;
+	//Hop info: bit j of bucket i is set when slot i+j holds a key whose home
+	//is i.  Lookups only look at those slots, and displacement reads homes
+	//from here rather than rehashing keys.  An int column of the same kind
+	//of storage as _ks.  Null for primitive keys without cached hashes, which
+	//lookups compare unboxed across the neighborhood instead (see findIndex),
+	//so that single persistent updates don't pay to copy it.
+	final IPersistentVector _hops;
+	//Optionally, each slot's key's hash, so it's computed once per key rather
+	//than on every rehash, and most non-matching keys can be skipped without
+	//an equality check.  Worthwhile for :object keys with expensive hashCodes.
+	//Null if not in use.
+	final IPersistentVector _hashes;
+	final HashSpreader _spreader;
 	final int _size, _capacity;
 	final Object _free;
 	final IPersistentMap _meta;
@@ -29,8 +46,14 @@ public abstract class PersistentPrimHashTable extends AFn implements IObj, Count
 	final static double rehashThresholdHi = 0.8;
 	final static double rehashThresholdLo = 0.25;
 	
-	public PersistentPrimHashTable(IPersistentVector ks, IPersistentMap meta, int size, Object free) {
+	static final IPersistentVector EMPTY_INT_VEC = (IPersistentVector)RT.var("clojure.core", "vector-of").invoke(Keyword.intern("int"));
+	
+	public PersistentPrimHashTable(IPersistentVector ks, IPersistentVector hops, IPersistentVector hashes,
+			HashSpreader spreader, IPersistentMap meta, int size, Object free) {
 		this._ks = ks;
+		this._hops = hops;
+		this._hashes = hashes;
+		this._spreader = spreader;
 		this._meta = meta;
 		this._size = size;
 		this._free = free;
@@ -53,46 +76,139 @@ public abstract class PersistentPrimHashTable extends AFn implements IObj, Count
 		return i & (_capacity - 1);
 	}
 	
+	//A hash that agrees whenever Util.equiv does.  Boxed hashCodes don't for
+	//numbers: Integer -1 and Long -1 hash differently, as do Floats and
+	//Doubles, and 0.0 and -0.0.
+	static int canonicalHash(Object o){
+		if(ChunkedArrayVector.isIntegral(o)){
+			final long l = ((Number)o).longValue();
+			return (int)(l ^ (l >>> 32));
+		}
+		if(ChunkedArrayVector.isFloating(o)){
+			final double d = ((Number)o).doubleValue();
+			if(d == 0.0) return 0;
+			final long bits = Double.doubleToLongBits(d);
+			return (int)(bits ^ (bits >>> 32));
+		}
+		return o.hashCode();
+	}
+	
+	//The hash o is placed by
+	public int hashOf(Object o){
+		return _spreader.spread(canonicalHash(o));
+	}
+	
+	//The hop info column to go with keys stored in ks, holding a copy of
+	//hops, or null if the table doesn't keep one
+	static IPersistentVector hopColumnOf(IPersistentVector ks, int[] hops, boolean cachesHashes){
+		if(!cachesHashes && (ks instanceof Vec || ks instanceof ChunkedArrayVector)) return null;
+		return intColumnOf(ks, hops);
+	}
+	
+	//An int column (hop info or hashes) to go with keys stored in ks, holding
+	//a copy of vals
+	static IPersistentVector intColumnOf(IPersistentVector ks, int[] vals){
+		if(ks instanceof ChunkedArrayVector) return IntChunkedArrayVector.of(vals);
+		//Capacities are powers of 2 no smaller than 32, so every leaf is full
+		final TransientVec out = new TransientVec((Vec)EMPTY_INT_VEC);
+		for(int i=0; i<vals.length; i+=32) out.conjLeaf(Arrays.copyOfRange(vals, i, i + 32));
+		return out.persistent();
+	}
+	
+	static int intAt(IPersistentVector v, int i){
+		if(v instanceof IntChunkedArrayVector) return ((IntChunkedArrayVector)v).getInt(i);
+		if(v instanceof Vec) return ((int[])((Vec)v).arrayFor(i))[i & 0x1f];
+		return ((Number)v.nth(i)).intValue();
+	}
+	
+	int hopInfo(int bucket){
+		return intAt(_hops, bucket);
+	}
+	
+	//Primitive keys are compared unboxed, straight down the neighborhood:
+	//most sit in their home slot or just after it, and the whole of it is a
+	//few adjacent cache lines, which are cheaper to scan than the hop info is
+	//to fetch.  Object keys, whose equality may cost anything, and cached
+	//hashes go by the hop info, after trying the home slot.  Either way a
+	//free slot can match a lookup of the free value, which is never present.
 	public int findIndex(Object o){
-		int pos = bitMod(o.hashCode());
-		int ctr = 0;
+		return findIndex(o, hashOf(o));
+	}
+	
+	//hash must be hashOf(o), when the caller already has it
+	int findIndex(Object o, int hash){
+		final int home = bitMod(hash);
 		
-		if(_ks instanceof Vec){
-			final Vec vData = (Vec)_ks;
-			final ArrayManager am = (ArrayManager)vData.am;
-			Object afor = vData.arrayFor(pos);
-			int localPos = pos & 0x1f;
-			while(ctr<neighborhood){
-				if(Util.equiv(am.aget(afor, localPos),o)) return pos;
-				localPos = (localPos + 1) & 31;
-				ctr++;
-				pos = wrappingInc(pos);
-				if(localPos==0) afor = vData.arrayFor(pos);
+		if(_hashes != null){
+			for(int hops = hopInfo(home); hops != 0; hops &= hops - 1){
+				final int pos = bitMod(home + Integer.numberOfTrailingZeros(hops));
+				if(intAt(_hashes, pos) == hash && Util.equiv(_ks.nth(pos),o)) return pos;
 			}
+			return -1;
+		} else if(_ks instanceof ChunkedArrayVector){
+			final int pos = ((ChunkedArrayVector)_ks).probe(o, home, neighborhood);
+			return pos >= 0 && Util.equiv(_free, o) ? -1 : pos;
+		} else if(_ks instanceof Vec){
+			final int pos = scan((Vec)_ks, o, home, neighborhood);
+			return pos >= 0 && Util.equiv(_free, o) ? -1 : pos;
 		} else if(_ks instanceof PersistentVector){
 			final PersistentVector vData = (PersistentVector)_ks;
-			Object[] afor = vData.arrayFor(pos);
-			int localPos = pos & 31;
-			while(ctr<neighborhood){
-				if(Util.equiv(afor[localPos],o)) return pos;
-				localPos = (localPos + 1) & 31;
-				ctr++;
-				pos = wrappingInc(pos);
-				if(localPos==0) afor = vData.arrayFor(pos);
+			if(Util.equiv(vData.arrayFor(home)[home & 0x1f],o)) return Util.equiv(_free, o) ? -1 : home;
+			for(int hops = hopInfo(home) & ~1; hops != 0; hops &= hops - 1){
+				final int pos = bitMod(home + Integer.numberOfTrailingZeros(hops));
+				if(Util.equiv(vData.arrayFor(pos)[pos & 0x1f],o)) return pos;
 			}
 			return -1;
 		}
 		
-		while(ctr<neighborhood){
+		for(int hops = hopInfo(home); hops != 0; hops &= hops - 1){
+			final int pos = bitMod(home + Integer.numberOfTrailingZeros(hops));
 			if(Util.equiv(_ks.nth(pos),o)) return pos;
-			pos = wrappingInc(pos);
-			ctr++;
 		}
 		return -1;
 	}
 	
-	public int firstShiftablePos(int i){
-		return bitMod(i - neighborhood + 1);
+	//The slot among the n from pos on of Vec storage holding something equiv
+	//to o, or -1
+	int scan(Vec v, Object o, int pos, int n){
+		for(int done = 0; done < n; ){
+			final int from = pos & 0x1f;
+			final int len = Math.min(n - done, 32 - from);
+			final int j = indexOf(v.arrayFor(pos), o, from, from + len);
+			if(j >= 0) return pos - from + j;
+			done += len;
+			pos = bitMod(pos + len);
+		}
+		return -1;
+	}
+	
+	//The first index from from to to of a, a leaf of keys, holding something
+	//equiv to o, or -1.  Unboxed for the primitive arrays keys are usually
+	//stored in.
+	static int indexOf(Object a, Object o, int from, int to){
+		if(a instanceof long[]){
+			if(!ChunkedArrayVector.isIntegral(o)) return -1;
+			final long k = ((Number)o).longValue();
+			final long[] la = (long[])a;
+			for(int j = from; j < to; j++) if(la[j] == k) return j;
+			return -1;
+		}
+		if(a instanceof double[]){
+			if(!ChunkedArrayVector.isFloating(o)) return -1;
+			final double k = ((Number)o).doubleValue();
+			final double[] da = (double[])a;
+			for(int j = from; j < to; j++) if(da[j] == k) return j;
+			return -1;
+		}
+		if(a instanceof int[]){
+			if(!ChunkedArrayVector.isIntegral(o)) return -1;
+			final long k = ((Number)o).longValue();
+			final int[] ia = (int[])a;
+			for(int j = from; j < to; j++) if(ia[j] == k) return j;
+			return -1;
+		}
+		for(int j = from; j < to; j++) if(Util.equiv(boxedAt(a, j), o)) return j;
+		return -1;
 	}
 	
 	public double load(){
@@ -110,17 +226,112 @@ public abstract class PersistentPrimHashTable extends AFn implements IObj, Count
 	public IPersistentVector getRawKeys(){
 		return _ks;
 	}
-
-	public boolean checkPosition(Object o, int pos){
-		if(_free.equals(o)) return true;
-		final int bottom = bitMod(o.hashCode());
-		final int top = bitMod(o.hashCode() + neighborhood);
-		if(top > bottom) return (top > pos && pos >= bottom);
-		else return (top > pos || pos >= bottom);
+	
+	//Null unless the table keeps hop info
+	public IPersistentVector getRawHops(){
+		return _hops;
+	}
+	
+	//Null unless hashes are cached
+	public IPersistentVector getRawHashes(){
+		return _hashes;
+	}
+	
+	/* Walking storage a backing array at a time, for reduce.  Every kind of
+	 * vector we store into hands out the array holding a slot; anything else
+	 * gets boxed a slot at a time.*/
+	
+	static Object arrayFor(IPersistentVector v, int i){
+		if(v instanceof ChunkedArrayVector){
+			final ChunkedArrayVector c = (ChunkedArrayVector)v;
+			return c.chunks[i >>> c.shift];
+		}
+		if(v instanceof Vec) return ((Vec)v).arrayFor(i);
+		if(v instanceof PersistentVector) return ((PersistentVector)v).arrayFor(i);
+		return new Object[]{v.nth(i)};
+	}
+	
+	static int indexInArray(IPersistentVector v, int i){
+		if(v instanceof ChunkedArrayVector) return i & ((ChunkedArrayVector)v).mask();
+		if(v instanceof Vec || v instanceof PersistentVector) return i & 0x1f;
+		return 0;
+	}
+	
+	//How many slots from i on are in the same array
+	static int blockLength(IPersistentVector v, int i){
+		if(v instanceof ChunkedArrayVector){
+			final ChunkedArrayVector c = (ChunkedArrayVector)v;
+			return (1 << c.shift) - (i & c.mask());
+		}
+		if(v instanceof Vec || v instanceof PersistentVector) return 32 - (i & 0x1f);
+		return 1;
+	}
+	
+	static boolean isIntegralArray(Object a){
+		return a instanceof long[] || a instanceof int[] || a instanceof short[] || a instanceof byte[];
+	}
+	
+	static boolean isFloatingArray(Object a){
+		return a instanceof double[] || a instanceof float[];
+	}
+	
+	//Unboxed for isIntegralArray arrays
+	static long longAt(Object a, int j){
+		if(a instanceof long[]) return ((long[])a)[j];
+		if(a instanceof int[]) return ((int[])a)[j];
+		if(a instanceof short[]) return ((short[])a)[j];
+		if(a instanceof byte[]) return ((byte[])a)[j];
+		return RT.longCast(boxedAt(a, j));
+	}
+	
+	//Unboxed for arrays no wider than int[]; anything else is range-checked
+	//as RT.intCast does, so a value that doesn't fit throws, not wraps
+	static int intAt(Object a, int j){
+		if(a instanceof int[]) return ((int[])a)[j];
+		if(a instanceof short[]) return ((short[])a)[j];
+		if(a instanceof byte[]) return ((byte[])a)[j];
+		if(a instanceof long[]) return RT.intCast(((long[])a)[j]);
+		return RT.intCast(boxedAt(a, j));
+	}
+	
+	//Unboxed for isFloatingArray arrays
+	static double doubleAt(Object a, int j){
+		if(a instanceof double[]) return ((double[])a)[j];
+		if(a instanceof float[]) return ((float[])a)[j];
+		return RT.doubleCast(boxedAt(a, j));
+	}
+	
+	//Boxed the same way the vectors' nth would
+	static Object boxedAt(Object a, int j){
+		if(a instanceof Object[]) return ((Object[])a)[j];
+		if(a instanceof long[]) return ((long[])a)[j];
+		if(a instanceof int[]) return ((int[])a)[j];
+		if(a instanceof double[]) return ((double[])a)[j];
+		if(a instanceof float[]) return ((float[])a)[j];
+		if(a instanceof short[]) return ((short[])a)[j];
+		if(a instanceof byte[]) return ((byte[])a)[j];
+		if(a instanceof char[]) return ((char[])a)[j];
+		return ((boolean[])a)[j];
+	}
+	
+	//Whether slot j of a, an array of our keys, is free.  Compares
+	//primitives where it can, rather than boxing.
+	boolean isFreeAt(Object a, int j){
+		if(a instanceof Object[]) return _free.equals(((Object[])a)[j]);
+		if(a instanceof long[]) return ((long[])a)[j] == ((Number)_free).longValue();
+		if(a instanceof int[]) return ((int[])a)[j] == ((Number)_free).intValue();
+		if(a instanceof double[]) return ((double[])a)[j] == ((Number)_free).doubleValue();
+		return _free.equals(boxedAt(a, j));
+	}
+	
+	//The hash of our key k, at slot i
+	int hashAt(int i, Object k){
+		return _hashes != null ? intAt(_hashes, i) : hashOf(k);
 	}
 	
-	public static IPersistentVector exchange(IPersistentVector v, int i, int j){
-		Object iObj = v.nth(i);
-		return v.assocN(i, v.nth(j)).assocN(j, iObj);
+	//The first live slot at or after i, or _capacity if there isn't one
+	int nextLive(int i){
+		while(i < _capacity && _ks.nth(i).equals(_free)) i++;
+		return i;
 	}
-}
+}
\ No newline at end of file
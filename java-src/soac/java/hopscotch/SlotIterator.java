@@ -0,0 +1,104 @@
+package soac.java.hopscotch;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import clojure.lang.IPersistentVector;
+
+//Iterates over one column (keys or values) of a table's live slots, reading
+//the backing arrays in place a block at a time.  Besides next() there are
+//nextLong/nextInt/nextDouble, which don't box when the column is primitive.
+@SuppressWarnings("rawtypes")
+public class SlotIterator implements Iterator {
+	final PersistentPrimHashTable table;
+	final IPersistentVector col;
+	//Arrays holding the current block of keys and of col, and the offsets
+	//from a slot to its index in them
+	Object ks;
+	int kOff;
+	Object arr;
+	int off;
+	int blockEnd = 0;
+	//The next live slot, or the table's capacity when we're done
+	int slot = -1;
+
+	SlotIterator(PersistentPrimHashTable table, IPersistentVector col) {
+		this.table = table;
+		this.col = col;
+		advance();
+	}
+
+	//Loads the arrays holding slot, returning where the block ends
+	int loadBlock(int slot){
+		final IPersistentVector tks = table._ks;
+		ks = PersistentPrimHashTable.arrayFor(tks, slot);
+		kOff = PersistentPrimHashTable.indexInArray(tks, slot) - slot;
+		int n = PersistentPrimHashTable.blockLength(tks, slot);
+		if(col == tks){
+			arr = ks;
+			off = kOff;
+		} else {
+			arr = PersistentPrimHashTable.arrayFor(col, slot);
+			off = PersistentPrimHashTable.indexInArray(col, slot) - slot;
+			n = Math.min(n, PersistentPrimHashTable.blockLength(col, slot));
+		}
+		return slot + Math.min(n, table._capacity - slot);
+	}
+
+	void advance(){
+		final int capacity = table._capacity;
+		while(++slot < capacity){
+			if(slot >= blockEnd) blockEnd = loadBlock(slot);
+			if(!table.isFreeAt(ks, slot + kOff)) return;
+		}
+	}
+
+	void checkNext(){
+		if(slot >= table._capacity) throw new NoSuchElementException();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return slot < table._capacity;
+	}
+
+	//The current element, before advance()
+	Object current(){
+		return PersistentPrimHashTable.boxedAt(arr, slot + off);
+	}
+
+	@Override
+	public Object next() {
+		checkNext();
+		final Object out = current();
+		advance();
+		return out;
+	}
+
+	public long nextLong() {
+		checkNext();
+		final long out = PersistentPrimHashTable.longAt(arr, slot + off);
+		advance();
+		return out;
+	}
+
+	//Throws for a value that doesn't fit in an int, rather than truncating it
+	public int nextInt() {
+		checkNext();
+		final int out = PersistentPrimHashTable.intAt(arr, slot + off);
+		advance();
+		return out;
+	}
+
+	public double nextDouble() {
+		checkNext();
+		final double out = PersistentPrimHashTable.doubleAt(arr, slot + off);
+		advance();
+		return out;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,200 @@
+package soac.java.hopscotch;
+
+import java.util.Arrays;
+
+import clojure.core.ArrayManager;
+import clojure.core.Vec;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientVector;
+import clojure.lang.Util;
+import soac.java.util.TransientVec;
+
+//Bulk reconstruction of a hash table's storage at a new capacity.  Rather than
+//inserting entry by entry into persistent or transient vectors, we lay the new
+//table out in int[] scratch buffers - for each new slot, the old slot that
+//moves there and its hash, and each bucket's hop info - and then gather each
+//old vector into a new one of the same type in a single pass, copying
+//primitives directly where we can.  Nothing is allocated per entry, and each
+//key's hash is computed once.
+final class TableBuilder {
+	final int capacity;
+	//Old slot moving to each new slot, or -1 if it'll be free
+	final int[] from;
+	final int[] hashes;
+	final int[] hops;
+	int size = 0;
+
+	static final int neighborhood = PersistentPrimHashTable.neighborhood;
+
+	TableBuilder(int capacity) {
+		this.capacity = capacity;
+		this.from = new int[capacity];
+		this.hashes = new int[capacity];
+		this.hops = new int[capacity];
+		Arrays.fill(from, -1);
+	}
+
+	//Lays out every live key of ks in a table of at least the given
+	//capacity, doubling it if a neighborhood overflows.  Takes the keys'
+	//hashes from hashes if it's non-null, otherwise computes them with
+	//spreader.
+	static TableBuilder rebuild(IPersistentVector ks, IPersistentVector hashes, HashSpreader spreader, Object free, int capacity){
+		final int n = ks.count();
+		final int[] live = new int[n];
+		final int[] liveHashes = new int[n];
+		int nLive = 0;
+		for(int i=0; i<n; i++){
+			final Object k = ks.nth(i);
+			if(Util.equiv(k, free)) continue;
+			live[nLive] = i;
+			liveHashes[nLive++] = hashes == null ? spreader.spread(PersistentPrimHashTable.canonicalHash(k))
+			                                     : PersistentPrimHashTable.intAt(hashes, i);
+		}
+		return layout(live, liveHashes, nLive, capacity);
+	}
+	
+	//Lays out the first n of srcs, with the given hashes, in a table of at
+	//least the given capacity
+	static TableBuilder layout(int[] srcs, int[] hashes, int n, int capacity){
+		outer:
+		for(;;){
+			final TableBuilder out = new TableBuilder(capacity);
+			for(int i=0; i<n; i++){
+				if(!out.add(srcs[i], hashes[i])){
+					capacity <<= 1;
+					continue outer;
+				}
+			}
+			return out;
+		}
+	}
+	
+	//Keeps the first n of slots, with the given hashes, where they are in a
+	//table of this capacity.  Dropping keys from a valid layout leaves a
+	//valid layout, so there's nothing to place.
+	static TableBuilder keep(int[] slots, int[] hashes, int n, int capacity){
+		final TableBuilder out = new TableBuilder(capacity);
+		for(int i=0; i<n; i++){
+			final int slot = slots[i];
+			final int home = out.bitMod(hashes[i]);
+			out.from[slot] = slot;
+			out.hashes[slot] = hashes[i];
+			out.hops[home] |= 1 << out.bitMod(slot - home);
+		}
+		out.size = n;
+		return out;
+	}
+
+	int bitMod(int i){
+		return i & (capacity - 1);
+	}
+
+	//Places the entry from old slot src, returning false if its neighborhood
+	//is full and nothing can be displaced out of it.
+	boolean add(int src, int hash){
+		final int home = bitMod(hash);
+		int pos = home;
+		while(from[pos] >= 0) pos = bitMod(pos + 1);
+		while(bitMod(pos - home) >= neighborhood){
+			final int next = hopFree(pos);
+			if(next < 0) return false;
+			pos = next;
+		}
+		from[pos] = src;
+		hashes[pos] = hash;
+		hops[home] |= 1 << bitMod(pos - home);
+		size++;
+		return true;
+	}
+
+	//Like add, but only reads and writes slots in [lo, hi), without wrapping,
+	//so that disjoint ranges can be filled concurrently.  The entry's home
+	//must be in range.
+	boolean addWithin(int src, int hash, int lo, int hi){
+		final int home = bitMod(hash);
+		int pos = home;
+		while(pos < hi && from[pos] >= 0) pos++;
+		if(pos == hi) return false;
+		while(pos - home >= neighborhood){
+			final int next = hopFree(pos, Math.min(neighborhood - 1, pos - lo));
+			if(next < 0) return false;
+			pos = next;
+		}
+		from[pos] = src;
+		hashes[pos] = hash;
+		hops[home] |= 1 << (pos - home);
+		return true;
+	}
+
+	//The slot holding an entry equiv to ks[src], with the given hash, or -1
+	int find(IPersistentVector ks, int src, int hash){
+		final int home = bitMod(hash);
+		for(int bits = hops[home]; bits != 0; bits &= bits - 1){
+			final int pos = bitMod(home + Integer.numberOfTrailingZeros(bits));
+			if(hashes[pos] == hash && Util.equiv(ks.nth(from[pos]), ks.nth(src))) return pos;
+		}
+		return -1;
+	}
+
+	int hopFree(int pos){
+		return hopFree(pos, neighborhood - 1);
+	}
+
+	//Same as TransientPrimHashTable.hopFree, against the scratch buffers, and
+	//looking no more than maxDist slots back
+	int hopFree(int pos, int maxDist){
+		for(int dist = maxDist; dist > 0; dist--){
+			final int bucket = bitMod(pos - dist);
+			final int movable = hops[bucket] & ((1 << dist) - 1);
+			if(movable != 0){
+				final int hop = Integer.numberOfTrailingZeros(movable);
+				final int candidate = bitMod(bucket + hop);
+				from[pos] = from[candidate];
+				hashes[pos] = hashes[candidate];
+				from[candidate] = -1;
+				hops[bucket] ^= (1 << hop) | (1 << dist);
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	//The hop info column to go with the gathered keys ks, if the table keeps
+	//one
+	IPersistentVector hops(IPersistentVector ks, boolean cachesHashes){
+		return PersistentPrimHashTable.hopColumnOf(ks, hops, cachesHashes);
+	}
+
+	//The hash column to go with the gathered keys ks.  Free slots hold junk.
+	IPersistentVector hashes(IPersistentVector ks){
+		return PersistentPrimHashTable.intColumnOf(ks, hashes);
+	}
+
+	//A vector of the same type as old, holding its elements in their new
+	//slots and fill everywhere else.
+	IPersistentVector gather(IPersistentVector old, Object fill){
+		if(old instanceof ChunkedArrayVector) return ((ChunkedArrayVector)old).gather(from, fill);
+		if(old instanceof Vec) return gather((Vec)old, fill);
+		final ITransientVector out = TransientPrimHashTable.transientOf((IPersistentVector)old.empty());
+		for(int i=0; i<capacity; i++) out.conj(from[i] < 0 ? fill : old.nth(from[i]));
+		return (IPersistentVector)out.persistent();
+	}
+
+	//Copies primitives leaf to leaf.  Capacities are powers of 2 no smaller
+	//than 32, so every leaf is full.
+	IPersistentVector gather(Vec old, Object fill){
+		final ArrayManager am = (ArrayManager)old.am;
+		final TransientVec out = new TransientVec((Vec)old.empty());
+		final Object blank = am.array(32);
+		for(int i=0; i<32; i++) am.aset(blank, i, fill);
+		for(int leafStart=0; leafStart<capacity; leafStart+=32){
+			final Object leaf = am.aclone(blank);
+			for(int i=0; i<32; i++){
+				final int src = from[leafStart + i];
+				if(src >= 0) System.arraycopy(old.arrayFor(src), src & 0x1f, leaf, i, 1);
+			}
+			out.conjLeaf(leaf);
+		}
+		return out.persistent();
+	}
+}
@@ -0,0 +1,108 @@
+package soac.java.hopscotch;
+
+import java.util.Map;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
+import clojure.lang.ITransientVector;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+public class TransientPrimHashMap extends TransientPrimHashTable implements ITransientMap {
+	ITransientVector _vs;
+
+	TransientPrimHashMap(PersistentPrimHashMap m) {
+		super(m);
+		this._vs = transientOf(m._vs);
+	}
+
+	@Override
+	void exchange(int i, int j){
+		super.exchange(i, j);
+		exchange(_vs, i, j);
+	}
+
+	@Override
+	void rehash(int increment){
+		final IPersistentVector oldKs = (IPersistentVector)_ks.persistent();
+		final IPersistentVector oldVs = (IPersistentVector)_vs.persistent();
+		final IPersistentVector oldHashes = _hashes == null ? null : (IPersistentVector)_hashes.persistent();
+		final TableBuilder b = TableBuilder.rebuild(oldKs, oldHashes, _spreader, _free, newCapacity(increment));
+		final IPersistentVector ks = b.gather(oldKs, _free);
+		_ks = transientOf(ks);
+		final IPersistentVector hops = b.hops(ks, _hashes != null);
+		_hops = hops == null ? null : transientOf(hops);
+		if(_hashes != null) _hashes = transientOf(b.hashes(ks));
+		_vs = transientOf(b.gather(oldVs, 0L));
+		_capacity = b.capacity;
+		_size = b.size;
+	}
+
+	@Override
+	public TransientPrimHashMap assoc(Object k, Object v) {
+		if(Util.equiv(_free, k)) throw new RuntimeException("Cannot sensibly have free value as a key");
+		final int hash = hashOf(k);
+		int pos = findIndex(k, hash);
+		if(pos < 0) pos = placeKey(k, hash);
+		_vs.assocN(pos, v);
+		return this;
+	}
+
+	@Override
+	public TransientPrimHashMap conj(Object o) {
+		if(o instanceof Map.Entry){
+			final Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+			return assoc(e.getKey(), e.getValue());
+		} else if (o instanceof IPersistentVector){
+			final IPersistentVector v = (IPersistentVector)o;
+			if(v.count()!=2) throw new IllegalArgumentException("Vector arg to map conj must be a pair");
+			return assoc(v.nth(0), v.nth(1));
+		}
+		//Assume a seq of Map.Entrys
+		for(ISeq es = RT.seq(o); es != null; es = es.next()){
+			final Map.Entry<?, ?> e = (Map.Entry<?, ?>) es.first();
+			assoc(e.getKey(), e.getValue());
+		}
+		return this;
+	}
+
+	@Override
+	public TransientPrimHashMap without(Object k) {
+		ensureEditable();
+		removeKey(k);
+		return this;
+	}
+
+	@Override
+	public Object valAt(Object k) {
+		final int pos = findIndex(k);
+		if(pos >= 0) return _vs.nth(pos);
+		return null;
+	}
+
+	@Override
+	public Object valAt(Object k, Object notFound) {
+		final int pos = findIndex(k);
+		if(pos >= 0) return _vs.nth(pos);
+		return notFound;
+	}
+
+	@Override
+	public Object invoke(Object arg1) {
+		return valAt(arg1);
+	}
+
+	@Override
+	public Object invoke(Object arg1, Object notFound) {
+		return valAt(arg1, notFound);
+	}
+
+	@Override
+	public PersistentPrimHashMap persistent() {
+		ensureEditable();
+		_owner = null;
+		return new PersistentPrimHashMap((IPersistentVector)_ks.persistent(), (IPersistentVector)_vs.persistent(), _hops == null ? null : (IPersistentVector)_hops.persistent(),
+				_hashes == null ? null : (IPersistentVector)_hashes.persistent(), _spreader, _meta, _size, _free);
+	}
+}
@@ -0,0 +1,71 @@
+package soac.java.hopscotch;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientSet;
+import clojure.lang.Util;
+
+public class TransientPrimHashSet extends TransientPrimHashTable implements ITransientSet {
+
+	TransientPrimHashSet(PersistentPrimHashSet s) {
+		super(s);
+	}
+
+	@Override
+	void rehash(int increment){
+		final IPersistentVector oldKs = (IPersistentVector)_ks.persistent();
+		final IPersistentVector oldHashes = _hashes == null ? null : (IPersistentVector)_hashes.persistent();
+		final TableBuilder b = TableBuilder.rebuild(oldKs, oldHashes, _spreader, _free, newCapacity(increment));
+		final IPersistentVector ks = b.gather(oldKs, _free);
+		_ks = transientOf(ks);
+		final IPersistentVector hops = b.hops(ks, _hashes != null);
+		_hops = hops == null ? null : transientOf(hops);
+		if(_hashes != null) _hashes = transientOf(b.hashes(ks));
+		_capacity = b.capacity;
+		_size = b.size;
+	}
+
+	@Override
+	public TransientPrimHashSet conj(Object o) {
+		if(Util.equiv(_free, o)) throw new RuntimeException("Cannot sensibly conj free value");
+		final int hash = hashOf(o);
+		if(findIndex(o, hash) < 0) placeKey(o, hash);
+		return this;
+	}
+
+	@Override
+	public TransientPrimHashSet disjoin(Object o) {
+		ensureEditable();
+		removeKey(o);
+		return this;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return findIndex(o) >= 0;
+	}
+
+	@Override
+	public Object get(Object o) {
+		if(findIndex(o) >= 0) return o;
+		return null;
+	}
+
+	@Override
+	public Object invoke(Object arg1) {
+		return get(arg1);
+	}
+
+	@Override
+	public Object invoke(Object arg1, Object notFound) {
+		if(findIndex(arg1) >= 0) return arg1;
+		return notFound;
+	}
+
+	@Override
+	public PersistentPrimHashSet persistent() {
+		ensureEditable();
+		_owner = null;
+		return new PersistentPrimHashSet((IPersistentVector)_ks.persistent(), _hops == null ? null : (IPersistentVector)_hops.persistent(),
+				_hashes == null ? null : (IPersistentVector)_hashes.persistent(), _spreader, _meta, _size, _free);
+	}
+}
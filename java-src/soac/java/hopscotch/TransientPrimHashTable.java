@@ -0,0 +1,250 @@
+package soac.java.hopscotch;
+
+import clojure.lang.AFn;
+import clojure.lang.Counted;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientVector;
+import clojure.lang.Util;
+import soac.java.util.TransientVec;
+
+//The editable counterpart to PersistentPrimHashTable.  Keys (and values, for
+//maps) live in transients of the persistent table's vectors, so we own their
+//backing arrays and insertion and displacement happen in place.  persistent!
+//just freezes those vectors, and is O(1).
+//The persistent tables do their own modifications through this, so this is the
+//only implementation of hopscotch insertion.
+public abstract class TransientPrimHashTable extends AFn implements ITransientCollection, Counted {
+	ITransientVector _ks;
+	//Null if the table doesn't keep hop info
+	ITransientVector _hops;
+	//Null unless hashes are cached
+	ITransientVector _hashes;
+	final HashSpreader _spreader;
+	int _size, _capacity;
+	Thread _owner;
+	final Object _free;
+	final IPersistentMap _meta;
+
+	static final int neighborhood = PersistentPrimHashTable.neighborhood;
+	static final double rehashThresholdHi = PersistentPrimHashTable.rehashThresholdHi;
+	static final double rehashThresholdLo = PersistentPrimHashTable.rehashThresholdLo;
+
+	TransientPrimHashTable(PersistentPrimHashTable t) {
+		this._ks = transientOf(t._ks);
+		this._hops = t._hops == null ? null : transientOf(t._hops);
+		this._hashes = t._hashes == null ? null : transientOf(t._hashes);
+		this._spreader = t._spreader;
+		this._size = t._size;
+		this._capacity = t._capacity;
+		this._free = t._free;
+		this._meta = t._meta;
+		this._owner = Thread.currentThread();
+	}
+
+	static ITransientVector transientOf(IPersistentVector v){
+		return TransientVec.transientOf(v);
+	}
+
+	void ensureEditable(){
+		if(_owner == Thread.currentThread()) return;
+		if(_owner != null) throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	@Override
+	public int count() {
+		ensureEditable();
+		return _size;
+	}
+
+	int wrappingInc(int i){
+		return (i+1) & (_capacity - 1);
+	}
+
+	int bitMod(int i){
+		return i & (_capacity - 1);
+	}
+
+	double load(){
+		return ((double)_size) / ((double)_capacity);
+	}
+
+	//Reads and writes of int columns, unboxed where we can
+	static int intAt(ITransientVector v, int i){
+		if(v instanceof TransientVec) return ((int[])((TransientVec)v).arrayFor(i))[i & 0x1f];
+		if(v instanceof ChunkedArrayVector.Transient){
+			final ChunkedArrayVector.Transient t = (ChunkedArrayVector.Transient)v;
+			return ((int[])t.arrayFor(i))[t.indexInArray(i)];
+		}
+		return ((Number)v.nth(i)).intValue();
+	}
+
+	static void setInt(ITransientVector v, int i, int val){
+		if(v instanceof TransientVec){
+			((int[])((TransientVec)v).editableArrayFor(i))[i & 0x1f] = val;
+		} else if(v instanceof ChunkedArrayVector.Transient){
+			final ChunkedArrayVector.Transient t = (ChunkedArrayVector.Transient)v;
+			((int[])t.editableArrayFor(i))[t.indexInArray(i)] = val;
+		} else {
+			v.assocN(i, val);
+		}
+	}
+
+	int hashOf(Object o){
+		return _spreader.spread(PersistentPrimHashTable.canonicalHash(o));
+	}
+
+	int hopInfo(int bucket){
+		return intAt(_hops, bucket);
+	}
+
+	//Toggles the given hop info bits of bucket, if we keep them
+	void flipHops(int bucket, int bits){
+		if(_hops == null) return;
+		setInt(_hops, bucket, intAt(_hops, bucket) ^ bits);
+	}
+
+	public int findIndex(Object o){
+		return findIndex(o, hashOf(o));
+	}
+
+	//Callers that go on to insert or remove pass in the hash, so it's only
+	//computed once.  Probes as PersistentPrimHashTable.findIndex does.
+	int findIndex(Object o, int hash){
+		ensureEditable();
+		final int home = bitMod(hash);
+		if(_hashes != null){
+			for(int hops = hopInfo(home); hops != 0; hops &= hops - 1){
+				final int pos = bitMod(home + Integer.numberOfTrailingZeros(hops));
+				if(intAt(_hashes, pos) == hash && Util.equiv(_ks.nth(pos), o)) return pos;
+			}
+			return -1;
+		}
+		if(_ks instanceof ChunkedArrayVector.Transient){
+			final int pos = ((ChunkedArrayVector.Transient)_ks).probe(o, home, neighborhood);
+			return pos >= 0 && Util.equiv(_free, o) ? -1 : pos;
+		}
+		if(_ks instanceof TransientVec){
+			final int pos = scan((TransientVec)_ks, o, home, neighborhood);
+			return pos >= 0 && Util.equiv(_free, o) ? -1 : pos;
+		}
+		for(int hops = hopInfo(home); hops != 0; hops &= hops - 1){
+			final int pos = bitMod(home + Integer.numberOfTrailingZeros(hops));
+			if(Util.equiv(_ks.nth(pos), o)) return pos;
+		}
+		return -1;
+	}
+
+	//As PersistentPrimHashTable.scan
+	int scan(TransientVec v, Object o, int pos, int n){
+		for(int done = 0; done < n; ){
+			final int from = pos & 0x1f;
+			final int len = Math.min(n - done, 32 - from);
+			final int j = PersistentPrimHashTable.indexOf(v.arrayFor(pos), o, from, from + len);
+			if(j >= 0) return pos - from + j;
+			done += len;
+			pos = bitMod(pos + len);
+		}
+		return -1;
+	}
+
+	boolean isFree(int pos){
+		return _ks.nth(pos).equals(_free);
+	}
+
+	//Swaps the contents of two slots.  Maps override this to carry values along.
+	void exchange(int i, int j){
+		exchange(_ks, i, j);
+		if(_hashes != null) exchange(_hashes, i, j);
+	}
+
+	static void exchange(ITransientVector v, int i, int j){
+		if(v instanceof ChunkedArrayVector.Transient){
+			((ChunkedArrayVector.Transient)v).swap(i, j);
+			return;
+		}
+		final Object iObj = v.nth(i);
+		v.assocN(i, v.nth(j));
+		v.assocN(j, iObj);
+	}
+
+	//Stores k, which must not already be present and hashes to hash, and
+	//returns its slot.
+	int placeKey(Object k, int hash){
+		if(load() > rehashThresholdHi) rehash(1);
+		final int home = bitMod(hash);
+		//Linear probe for the first free slot.  The load factor guarantees there is one.
+		int pos = home;
+		while(!isFree(pos)) pos = wrappingInc(pos);
+		//Hop the free slot backwards until it's inside the neighborhood
+		while(bitMod(pos - home) >= neighborhood){
+			final int next = hopFree(pos);
+			if(next < 0){
+				rehash(1);
+				return placeKey(k, hash);
+			}
+			pos = next;
+		}
+		_ks.assocN(pos, k);
+		if(_hashes != null) setInt(_hashes, pos, hash);
+		flipHops(home, 1 << bitMod(pos - home));
+		_size++;
+		return pos;
+	}
+
+	//Finds the furthest-back bucket within a neighborhood of the free slot at
+	//pos that has a key stored before pos, and moves its first such key into
+	//pos.  Returns the slot that is now free, or -1 if nothing could be moved.
+	int hopFree(int pos){
+		if(_hops == null) return hopFreeByHash(pos);
+		for(int dist = neighborhood - 1; dist > 0; dist--){
+			final int bucket = bitMod(pos - dist);
+			final int movable = hopInfo(bucket) & ((1 << dist) - 1);
+			if(movable != 0){
+				final int hop = Integer.numberOfTrailingZeros(movable);
+				final int candidate = bitMod(bucket + hop);
+				exchange(candidate, pos);
+				flipHops(bucket, (1 << hop) | (1 << dist));
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	//As hopFree, without hop info: hashes each candidate to find its home
+	int hopFreeByHash(int pos){
+		for(int dist = neighborhood - 1; dist > 0; dist--){
+			final int candidate = bitMod(pos - dist);
+			if(bitMod(pos - hashOf(_ks.nth(candidate))) < neighborhood){
+				exchange(candidate, pos);
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	//Frees the slot holding k, returning it, or -1 if k isn't present.
+	int removeKey(Object k){
+		if(Util.equiv(_free, k)) return -1;
+		if(load() < rehashThresholdLo && _capacity > neighborhood) rehash(-1);
+		final int hash = hashOf(k);
+		final int pos = findIndex(k, hash);
+		if(pos >= 0){
+			final int home = bitMod(hash);
+			_ks.assocN(pos, _free);
+			flipHops(home, 1 << bitMod(pos - home));
+			_size--;
+		}
+		return pos;
+	}
+
+	//Moves every element into freshly built storage of (at least) the new
+	//capacity, via TableBuilder
+	abstract void rehash(int increment);
+
+	int newCapacity(int increment){
+		return increment>0 ? _capacity << increment : _capacity >> -increment;
+	}
+}
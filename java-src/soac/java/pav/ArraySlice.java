@@ -0,0 +1,14 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// An array vector as a view of part of a backing array, which pop and subvec
+// share rather than copy.  A short view keeps all of a long array alive, so
+// compact lets go of the rest.
+public interface ArraySlice extends IPersistentVector {
+	// The elements from start up to end, sharing the backing array
+	ArraySlice subvec(int start, int end);
+	// Itself, or if it's a view of only part of its backing array, a copy of
+	// just that part
+	ArraySlice compact();
+}
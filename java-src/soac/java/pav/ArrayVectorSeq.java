@@ -0,0 +1,80 @@
+package soac.java.pav;
+
+import clojure.core.ArrayChunk;
+import clojure.core.ArrayManager;
+import clojure.lang.ASeq;
+import clojure.lang.Counted;
+import clojure.lang.IChunk;
+import clojure.lang.IChunkedSeq;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
+import clojure.lang.Obj;
+import clojure.lang.PersistentList;
+
+// A seq over an array vector's backing array, which it shares.  It's chunked
+// as a single chunk of everything from i up to end, so map, filter, doseq
+// and the like take each element straight from the array, without a seq node
+// of its own.  am is null for an Object[].
+public final class ArrayVectorSeq extends ASeq implements IChunkedSeq, Counted, IReduce {
+	public static final long serialVersionUID = 1L;
+	final ArrayManager am;
+	final Object array;
+	final int i;
+	final int end;
+
+	ArrayVectorSeq(ArrayManager am, Object array, int i, int end, IPersistentMap meta) {
+		super(meta);
+		this.am = am;
+		this.array = array;
+		this.i = i;
+		this.end = end;
+	}
+
+	@Override
+	public Object first() {
+		return am == null ? ((Object[])array)[i] : am.aget(array, i);
+	}
+
+	@Override
+	public ISeq next() {
+		return i + 1 < end ? new ArrayVectorSeq(am, array, i + 1, end, null) : null;
+	}
+
+	@Override
+	public IChunk chunkedFirst() {
+		if (am == null) return new clojure.lang.ArrayChunk((Object[])array, i, end);
+		return new ArrayChunk(am, array, i, end);
+	}
+
+	@Override
+	public ISeq chunkedNext() {
+		return null;
+	}
+
+	@Override
+	public ISeq chunkedMore() {
+		return PersistentList.EMPTY;
+	}
+
+	@Override
+	public int count() {
+		return end - i;
+	}
+
+	@Override
+	public Obj withMeta(IPersistentMap meta) {
+		return new ArrayVectorSeq(am, array, i, end, meta);
+	}
+
+	@Override
+	public Object reduce(IFn f) {
+		return ArrayVectors.reduce(array, i + 1, end, f, first());
+	}
+
+	@Override
+	public Object reduce(IFn f, Object init) {
+		return ArrayVectors.reduce(array, i, end, f, init);
+	}
+}
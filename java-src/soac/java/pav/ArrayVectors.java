@@ -0,0 +1,461 @@
+package soac.java.pav;
+
+import clojure.core.Vec;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.Murmur3;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+// Loops straight over the array vectors' backing arrays, for what
+// APersistentVector would do an element (and a box) at a time through nth or
+// an iterator.  Where a reducing fn takes primitives - (fn ^long [^long acc
+// ^long x] ...) is an IFn.LLL, (fn [acc ^double x] ...) an IFn.ODO - elements
+// are passed to it unboxed, and a primitive accumulator stays unboxed.
+// Hashes are those APersistentVector computes over the boxed elements.
+public final class ArrayVectors {
+	private ArrayVectors() {}
+
+	// Reduces f over elements lo to hi of a primitive or Object array,
+	// stopping early at a reduced value, which is unwrapped
+	public static Object reduce(Object a, int lo, int hi, IFn f, Object init){
+		return unreduced(reduceRange(a, lo, hi, f, init));
+	}
+
+	// As reduce, over elements lo to hi of a Vec, a leaf at a time
+	public static Object reduceVec(Vec v, int lo, int hi, IFn f, Object init){
+		Object acc = init;
+		for (int i = lo; i < hi; i = (i | 31) + 1) {
+			acc = reduceRange(v.arrayFor(i), i & 31, Math.min(hi - (i & ~31), 32), f, acc);
+			if (RT.isReduced(acc)) break;
+		}
+		return unreduced(acc);
+	}
+
+	// t, if it's a multiple of unit from unit to 1024
+	static int checkThreshold(int t, int unit){
+		if (t < unit || t > 1024 || t % unit != 0) {
+			throw new IllegalArgumentException("Threshold must be a multiple of " + unit + " from " + unit + " to 1024");
+		}
+		return t;
+	}
+
+	static Object unreduced(Object acc){
+		return RT.isReduced(acc) ? ((IDeref)acc).deref() : acc;
+	}
+
+	static Object reduceRange(Object a, int lo, int hi, IFn f, Object init){
+		if (a instanceof long[]) return reduceArray((long[])a, lo, hi, f, init);
+		if (a instanceof double[]) return reduceArray((double[])a, lo, hi, f, init);
+		if (a instanceof int[]) return reduceArray((int[])a, lo, hi, f, init);
+		if (a instanceof float[]) return reduceArray((float[])a, lo, hi, f, init);
+		if (a instanceof short[]) return reduceArray((short[])a, lo, hi, f, init);
+		if (a instanceof byte[]) return reduceArray((byte[])a, lo, hi, f, init);
+		if (a instanceof char[]) return reduceArray((char[])a, lo, hi, f, init);
+		return reduceArray((Object[])a, lo, hi, f, init);
+	}
+
+	// Reduced values are passed back as they are, for the caller to unwrap
+	static Object reduceArray(long[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.LLL && init instanceof Number) {
+			final IFn.LLL g = (IFn.LLL)f;
+			long acc = ((Number)init).longValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.OLO) {
+			final IFn.OLO g = (IFn.OLO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(int[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.LLL && init instanceof Number) {
+			final IFn.LLL g = (IFn.LLL)f;
+			long acc = ((Number)init).longValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.OLO) {
+			final IFn.OLO g = (IFn.OLO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(short[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.LLL && init instanceof Number) {
+			final IFn.LLL g = (IFn.LLL)f;
+			long acc = ((Number)init).longValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.OLO) {
+			final IFn.OLO g = (IFn.OLO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(byte[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.LLL && init instanceof Number) {
+			final IFn.LLL g = (IFn.LLL)f;
+			long acc = ((Number)init).longValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.OLO) {
+			final IFn.OLO g = (IFn.OLO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(double[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.DDD && init instanceof Number) {
+			final IFn.DDD g = (IFn.DDD)f;
+			double acc = ((Number)init).doubleValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.ODO) {
+			final IFn.ODO g = (IFn.ODO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(float[] a, int lo, int hi, IFn f, Object init){
+		if (f instanceof IFn.DDD && init instanceof Number) {
+			final IFn.DDD g = (IFn.DDD)f;
+			double acc = ((Number)init).doubleValue();
+			for (int i = lo; i < hi; i++) acc = g.invokePrim(acc, a[i]);
+			return acc;
+		}
+		if (f instanceof IFn.ODO) {
+			final IFn.ODO g = (IFn.ODO)f;
+			Object acc = init;
+			for (int i = lo; i < hi; i++) {
+				acc = g.invokePrim(acc, a[i]);
+				if (RT.isReduced(acc)) return acc;
+			}
+			return acc;
+		}
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(char[] a, int lo, int hi, IFn f, Object init){
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static Object reduceArray(Object[] a, int lo, int hi, IFn f, Object init){
+		Object acc = init;
+		for (int i = lo; i < hi; i++) {
+			acc = f.invoke(acc, a[i]);
+			if (RT.isReduced(acc)) return acc;
+		}
+		return acc;
+	}
+
+	static int hash(double x){
+		final long bits = Double.doubleToLongBits(x);
+		return (int)(bits ^ (bits >>> 32));
+	}
+
+	// Hashes and comparisons of elements lo to hi
+	static int hasheq(long[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final long x = a[i];
+			hash = 31 * hash + Murmur3.hashLong(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(long[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final long x = a[i];
+			hash = 31 * hash + ((int)(x ^ (x >>> 32)));
+		}
+		return hash;
+	}
+
+	static int hasheq(int[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final int x = a[i];
+			hash = 31 * hash + Murmur3.hashLong(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(int[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final int x = a[i];
+			hash = 31 * hash + (x);
+		}
+		return hash;
+	}
+
+	static int hasheq(short[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final short x = a[i];
+			hash = 31 * hash + Murmur3.hashLong(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(short[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final short x = a[i];
+			hash = 31 * hash + (x);
+		}
+		return hash;
+	}
+
+	static int hasheq(byte[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final byte x = a[i];
+			hash = 31 * hash + Murmur3.hashLong(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(byte[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final byte x = a[i];
+			hash = 31 * hash + (x);
+		}
+		return hash;
+	}
+
+	static int hasheq(double[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final double x = a[i];
+			hash = 31 * hash + hash(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(double[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final double x = a[i];
+			hash = 31 * hash + (hash(x));
+		}
+		return hash;
+	}
+
+	static int hasheq(float[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final float x = a[i];
+			hash = 31 * hash + Float.floatToIntBits(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(float[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final float x = a[i];
+			hash = 31 * hash + (Float.floatToIntBits(x));
+		}
+		return hash;
+	}
+
+	static int hasheq(char[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final char x = a[i];
+			hash = 31 * hash + x;
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(char[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final char x = a[i];
+			hash = 31 * hash + (x);
+		}
+		return hash;
+	}
+
+	static int hasheq(Object[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final Object x = a[i];
+			hash = 31 * hash + Util.hasheq(x);
+		}
+		return Murmur3.mixCollHash(hash, hi - lo);
+	}
+
+	static int hashCode(Object[] a, int lo, int hi){
+		int hash = 1;
+		for (int i = lo; i < hi; i++) {
+			final Object x = a[i];
+			hash = 31 * hash + (x == null ? 0 : x.hashCode());
+		}
+		return hash;
+	}
+
+	static boolean equals(long[] a, int alo, int ahi, long[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equiv(long[] a, int alo, int ahi, long[] b, int blo, int bhi){
+		return equals(a, alo, ahi, b, blo, bhi);
+	}
+
+	static boolean equals(int[] a, int alo, int ahi, int[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equiv(int[] a, int alo, int ahi, int[] b, int blo, int bhi){
+		return equals(a, alo, ahi, b, blo, bhi);
+	}
+
+	static boolean equals(short[] a, int alo, int ahi, short[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equiv(short[] a, int alo, int ahi, short[] b, int blo, int bhi){
+		return equals(a, alo, ahi, b, blo, bhi);
+	}
+
+	static boolean equals(byte[] a, int alo, int ahi, byte[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equiv(byte[] a, int alo, int ahi, byte[] b, int blo, int bhi){
+		return equals(a, alo, ahi, b, blo, bhi);
+	}
+
+	static boolean equals(double[] a, int alo, int ahi, double[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (Double.doubleToLongBits(a[ai]) != Double.doubleToLongBits(b[bi])) return false;
+		return true;
+	}
+
+	// As Util.equiv elementwise: unlike equals, 0.0 is -0.0 and NaN is
+	// nothing
+	static boolean equiv(double[] a, int alo, int ahi, double[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equals(float[] a, int alo, int ahi, float[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (Float.floatToIntBits(a[ai]) != Float.floatToIntBits(b[bi])) return false;
+		return true;
+	}
+
+	// As Util.equiv elementwise: unlike equals, 0.0 is -0.0 and NaN is
+	// nothing
+	static boolean equiv(float[] a, int alo, int ahi, float[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equals(char[] a, int alo, int ahi, char[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (a[ai] != b[bi]) return false;
+		return true;
+	}
+
+	static boolean equiv(char[] a, int alo, int ahi, char[] b, int blo, int bhi){
+		return equals(a, alo, ahi, b, blo, bhi);
+	}
+
+	static boolean equals(Object[] a, int alo, int ahi, Object[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (!Util.equals(a[ai], b[bi])) return false;
+		return true;
+	}
+
+	// As Util.equiv elementwise
+	static boolean equiv(Object[] a, int alo, int ahi, Object[] b, int blo, int bhi){
+		if (ahi - alo != bhi - blo) return false;
+		for (int ai = alo, bi = blo; ai < ahi; ai++, bi++) if (!Util.equiv(a[ai], b[bi])) return false;
+		return true;
+	}
+}
@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of bytes.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface ByteVector extends IPersistentVector {
+	byte getByte(int i);
+	IPersistentVector assocByte(int i, byte v);
+	IPersistentVector consByte(byte v);
+	// A copy of the elements
+	byte[] toByteArray();
+}
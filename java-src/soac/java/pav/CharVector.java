@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of chars.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface CharVector extends IPersistentVector {
+	char getChar(int i);
+	IPersistentVector assocChar(int i, char v);
+	IPersistentVector consChar(char v);
+	// A copy of the elements
+	char[] toCharArray();
+}
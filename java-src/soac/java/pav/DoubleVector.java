@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of doubles.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface DoubleVector extends IPersistentVector {
+	double getDouble(int i);
+	IPersistentVector assocDouble(int i, double v);
+	IPersistentVector consDouble(double v);
+	// A copy of the elements
+	double[] toDoubleArray();
+}
@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of floats.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface FloatVector extends IPersistentVector {
+	float getFloat(int i);
+	IPersistentVector assocFloat(int i, float v);
+	IPersistentVector consFloat(float v);
+	// A copy of the elements
+	float[] toFloatArray();
+}
@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of ints.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface IntVector extends IPersistentVector {
+	int getInt(int i);
+	IPersistentVector assocInt(int i, int v);
+	IPersistentVector consInt(int v);
+	// A copy of the elements
+	int[] toIntArray();
+}
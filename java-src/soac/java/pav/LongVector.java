@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of longs.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface LongVector extends IPersistentVector {
+	long getLong(int i);
+	IPersistentVector assocLong(int i, long v);
+	IPersistentVector consLong(long v);
+	// A copy of the elements
+	long[] toLongArray();
+}
@@ -1,15 +1,24 @@
 package soac.java.pav;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
 import clojure.lang.APersistentVector;
+import clojure.lang.Counted;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IFn;
 import clojure.lang.IObj;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
-import clojure.lang.IPersistentStack;
 import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.LazilyPersistentVector;
 import clojure.lang.PersistentVector;
 
-public class PersistentArrayVector extends APersistentVector implements IObj {
+public class PersistentArrayVector extends APersistentVector implements IObj, IReduce, ArraySlice {
 	public static final long serialVersionUID = 1L;
 	// There is little point to making this implement IEditableCollection
 	// directly, since below 32 or so elements it's as fast or faster than a
@@ -20,21 +29,71 @@ public class PersistentArrayVector extends APersistentVector implements IObj {
 	// PersistentArrayMap is integrated into PersistentHashMap, the transition
 	// would be seamless and it might be worth doing.
 	final Object[] contents;
+	// The elements are contents[start] to contents[end - 1], so that pop and
+	// subvec can share contents rather than copy it
+	final int start;
+	final int end;
 	final IPersistentMap _meta;
+	// The default for threshold
 	public final static int PERSISTENT_VECTOR_THRESHOLD = 32;
+	// The most elements a vector holds before cons promotes it to a
+	// PersistentVector, up to 1024
+	static volatile int threshold = PERSISTENT_VECTOR_THRESHOLD;
+
+	public static int getThreshold(){
+		return threshold;
+	}
+
+	// Applies to vectors made from then on, and to existing ones the next
+	// time they grow
+	public static void setThreshold(int t){
+		threshold = ArrayVectors.checkThreshold(t, 1);
+	}
 
 	public PersistentArrayVector(Object[] contents, IPersistentMap meta) {
+		this(contents, 0, contents.length, meta);
+	}
+
+	PersistentArrayVector(Object[] contents, int start, int end, IPersistentMap meta) {
 		super();
 		this.contents = contents;
+		this.start = start;
+		this.end = end;
 		this._meta = meta;
 	}
 
-	public static IPersistentCollection create(Iterable<?> i) {
-		// Ideally we should pre-check the length if possible, and bail out to
-		// faster bulk-inserts against PersistentVector.
-		IPersistentCollection out = new PersistentArrayVector(new Object[] {},null);
-		for (final Object o : i) out = out.cons(o);
-		return out;
+	// Builds without a copy per element: straight into the array if there
+	// are few enough elements, otherwise into a transient PersistentVector.
+	// Only the sizes of Counted things and non-seq Collections are trusted,
+	// so as not to realize a lazy seq twice.
+	public static IPersistentVector create(Iterable<?> i) {
+		final int t = threshold;
+		if (i instanceof Counted || (i instanceof Collection && !(i instanceof ISeq))) {
+			final int n = i instanceof Counted ? ((Counted)i).count() : ((Collection<?>)i).size();
+			if (n <= t) {
+				final Object[] out = new Object[n];
+				int k = 0;
+				for (final Object o : i) out[k++] = o;
+				return new PersistentArrayVector(out, null);
+			}
+		}
+		final Object[] first = new Object[t];
+		int n = 0;
+		final Iterator<?> it = i.iterator();
+		while (it.hasNext()) {
+			if (n == t) {
+				ITransientCollection out = ((IEditableCollection)LazilyPersistentVector.createOwning(first)).asTransient();
+				while (it.hasNext()) out = out.conj(it.next());
+				return (IPersistentVector)out.persistent();
+			}
+			first[n++] = it.next();
+		}
+		return new PersistentArrayVector(Arrays.copyOf(first, n), null);
+	}
+
+	public static IPersistentVector create(Object[] a) {
+		if (a.length <= threshold) return new PersistentArrayVector(a.clone(), null);
+		return PersistentVector.create(a);
 	}
 
 	@Override
@@ -44,33 +103,35 @@ public class PersistentArrayVector extends APersistentVector implements IObj {
 
 	@Override
 	public IObj withMeta(IPersistentMap meta) {
-		return new PersistentArrayVector(contents, meta);
-
+		return new PersistentArrayVector(contents, start, end, meta);
 	}
 
 	@Override
 	public IPersistentVector assocN(int i, Object o) {
-		final Object[] newContents;
-		if (i < contents.length) newContents = contents.clone();
-		else if (i == contents.length) return cons(o);
-		else throw new IndexOutOfBoundsException();
+		if (i == end - start) return cons(o);
+		if (i < 0 || i > end - start) throw new IndexOutOfBoundsException();
+		final Object[] newContents = Arrays.copyOfRange(contents, start, end);
 		newContents[i] = o;
 		return new PersistentArrayVector(newContents, _meta);
 	}
 
 	@Override
 	public IPersistentVector cons(Object o) {
-		if (contents.length + 1 > PERSISTENT_VECTOR_THRESHOLD) {
-			return PersistentVector.create(Arrays.asList(contents)).cons(o).withMeta(_meta);
+		final int n = end - start;
+		if (n + 1 > threshold) {
+			// contents is never changed, so can be adopted as the tail as it is
+			final Object[] tail = start == 0 && end == contents.length ? contents : Arrays.copyOfRange(contents, start, end);
+			final IPersistentVector out = LazilyPersistentVector.createOwning(tail).cons(o);
+			return _meta == null ? out : (IPersistentVector)((IObj)out).withMeta(_meta);
 		}
-		final Object[] newContents = Arrays.copyOf(contents, contents.length + 1);
-		newContents[newContents.length - 1] = o;
+		final Object[] newContents = Arrays.copyOfRange(contents, start, end + 1);
+		newContents[n] = o;
 		return new PersistentArrayVector(newContents, _meta);
 	}
 
 	@Override
 	public int count() {
-		return contents.length;
+		return end - start;
 	}
 
 	@Override
@@ -78,13 +139,81 @@ public class PersistentArrayVector extends APersistentVector implements IObj {
 		return new PersistentArrayVector(new Object[] {}, null);
 	}
 
+	// Shares contents, so is O(1); see compact
+	@Override
+	public PersistentArrayVector pop() {
+		if (end == start) throw new IllegalStateException("Can't pop empty vector");
+		return new PersistentArrayVector(contents, start, end - 1, _meta);
+	}
+
+	@Override
+	public PersistentArrayVector subvec(int from, int to) {
+		if (from < 0 || to < from || to > end - start) throw new IndexOutOfBoundsException();
+		return new PersistentArrayVector(contents, start + from, start + to, null);
+	}
+
 	@Override
-	public IPersistentStack pop() {
-		return new PersistentArrayVector(Arrays.copyOf(this.contents, this.contents.length - 1), _meta);
+	public PersistentArrayVector compact() {
+		if (start == 0 && end == contents.length) return this;
+		return new PersistentArrayVector(Arrays.copyOfRange(contents, start, end), _meta);
 	}
 
 	@Override
 	public Object nth(int i) {
-		return contents[i];
+		if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException();
+		return contents[start + i];
+	}
+
+	@Override
+	public ISeq seq() {
+		return end == start ? null : new ArrayVectorSeq(null, contents, start, end, null);
+	}
+
+	@Override
+	public Object reduce(IFn f) {
+		if (end == start) return f.invoke();
+		return ArrayVectors.reduce(contents, start + 1, end, f, contents[start]);
+	}
+
+	@Override
+	public Object reduce(IFn f, Object init) {
+		return ArrayVectors.reduce(contents, start, end, f, init);
+	}
+
+	@Override
+	public boolean equiv(Object o) {
+		if (o instanceof PersistentArrayVector) {
+			final PersistentArrayVector v = (PersistentArrayVector)o;
+			return ArrayVectors.equiv(contents, start, end, v.contents, v.start, v.end);
+		}
+		return super.equiv(o);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof PersistentArrayVector) {
+			final PersistentArrayVector v = (PersistentArrayVector)o;
+			return ArrayVectors.equals(contents, start, end, v.contents, v.start, v.end);
+		}
+		return super.equals(o);
+	}
+
+	// Cached as APersistentVector's are, since a vector can be up to 1024
+	// elements long
+	int _hash = -1;
+	int _hasheq = -1;
+
+	@Override
+	public int hashCode() {
+		int h = _hash;
+		if (h == -1) _hash = h = ArrayVectors.hashCode(contents, start, end);
+		return h;
+	}
+
+	@Override
+	public int hasheq() {
+		int h = _hasheq;
+		if (h == -1) _hasheq = h = ArrayVectors.hasheq(contents, start, end);
+		return h;
 	}
-}
\ No newline at end of file
+}
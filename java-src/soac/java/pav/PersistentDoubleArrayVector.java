@@ -1,38 +1,101 @@
 package soac.java.pav;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 
 import clojure.core.ArrayManager;
 import clojure.core.Vec;
 import clojure.core.VecNode;
 import clojure.lang.APersistentVector;
+import clojure.lang.Counted;
+import clojure.lang.IFn;
 import clojure.lang.IObj;
-import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
-import clojure.lang.IPersistentStack;
 import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
 import clojure.lang.Keyword;
 import clojure.lang.RT;
+import soac.java.util.TransientVec;
 
-public class PersistentDoubleArrayVector extends APersistentVector implements IObj {
+public class PersistentDoubleArrayVector extends APersistentVector implements IObj, IReduce, DoubleVector, ArraySlice {
 	public static final long serialVersionUID = 1L;
 	final double[] contents;
+	// The elements are contents[start] to contents[end - 1], so that pop and
+	// subvec can share contents rather than copy it
+	final int start;
+	final int end;
 	final IPersistentMap _meta;
+	// The default for threshold
 	public final static int PERSISTENT_VECTOR_THRESHOLD = 32;
+	// The most elements a vector holds before cons promotes it to a Vec: a
+	// whole number of its leaves, up to 1024, so they fill at most one level
+	static volatile int threshold = PERSISTENT_VECTOR_THRESHOLD;
+
+	public static int getThreshold(){
+		return threshold;
+	}
+
+	// Applies to vectors made from then on, and to existing ones the next
+	// time they grow
+	public static void setThreshold(int t){
+		threshold = ArrayVectors.checkThreshold(t, 32);
+	}
 	
 	final static ArrayManager am = (ArrayManager)RT.var("clojure.core", "ams").invoke(Keyword.intern("double"));
 	final static Vec EMPTY_VEC =  new Vec(am, 0, 5, new VecNode(null, new Object[32]), am.array(0), null);
 	
 	PersistentDoubleArrayVector(double[] contents, IPersistentMap meta) {
+		this(contents, 0, contents.length, meta);
+	}
+
+	PersistentDoubleArrayVector(double[] contents, int start, int end, IPersistentMap meta) {
 		super();
 		this.contents = contents;
+		this.start = start;
+		this.end = end;
 		this._meta = meta;
 	}
 	
-	public static IPersistentCollection create(Iterable<?> i){
-		IPersistentCollection out = new PersistentDoubleArrayVector(new double[] {},null);
-		for (final Object o : i) out = out.cons(o);
-		return out;
+	// Builds without a copy per element: straight into the array if there
+	// are few enough elements, otherwise a leaf at a time into a transient Vec
+	public static IPersistentVector create(Iterable<?> i){
+		final int t = threshold;
+		if (i instanceof Counted || (i instanceof Collection && !(i instanceof ISeq))){
+			final int n = i instanceof Counted ? ((Counted)i).count() : ((Collection<?>)i).size();
+			if (n <= t){
+				final double[] out = new double[n];
+				int k = 0;
+				for (final Object o : i) out[k++] = RT.doubleCast(o);
+				return new PersistentDoubleArrayVector(out, null);
+			}
+		}
+		final double[] first = new double[t];
+		int n = 0;
+		final Iterator<?> it = i.iterator();
+		while (it.hasNext()) {
+			if (n == t) return grow(first, it);
+			first[n++] = RT.doubleCast(it.next());
+		}
+		return new PersistentDoubleArrayVector(Arrays.copyOf(first, n), null);
+	}
+	
+	// The threshold is a whole number of Vec leaves, so first splits into them
+	static Vec grow(double[] first, Iterator<?> rest){
+		final TransientVec out = new TransientVec(EMPTY_VEC);
+		for (int i = 0; i < first.length; i += 32) out.conjLeaf(Arrays.copyOfRange(first, i, i + 32));
+		while (rest.hasNext()) out.conj(rest.next());
+		return out.persistent();
+	}
+	
+	public static IPersistentVector create(double[] a){
+		if (a.length <= threshold) return new PersistentDoubleArrayVector(a.clone(), null);
+		final TransientVec out = new TransientVec(EMPTY_VEC);
+		int i = 0;
+		for (; i + 32 <= a.length; i += 32) out.conjLeaf(Arrays.copyOfRange(a, i, i + 32));
+		for (; i < a.length; i++) out.conj(a[i]);
+		return out.persistent();
 	}
 	
 	@Override
@@ -42,34 +105,53 @@ public class PersistentDoubleArrayVector extends APersistentVector implements IO
 
 	@Override
 	public IObj withMeta(IPersistentMap meta) {
-		return new PersistentDoubleArrayVector(contents, meta);
+		return new PersistentDoubleArrayVector(contents, start, end, meta);
 	}
 
 	@Override
 	public IPersistentVector assocN(int i, Object o) {
-		final double[] newContents;
-		if (i < contents.length) newContents = contents.clone();
-		else if (i == contents.length) return cons(o);
-		else throw new IndexOutOfBoundsException();
-		newContents[i] = RT.doubleCast(o);
+		return assocDouble(i, RT.doubleCast(o));
+	}
+
+	@Override
+	public IPersistentVector assocDouble(int i, double v) {
+		if (i == end - start) return consDouble(v);
+		if (i < 0 || i > end - start) throw new IndexOutOfBoundsException();
+		final double[] newContents = Arrays.copyOfRange(contents, start, end);
+		newContents[i] = v;
 		return new PersistentDoubleArrayVector(newContents, _meta);
 	}
 
 	@Override
 	public IPersistentVector cons(Object o) {
-		if (contents.length + 1 > PERSISTENT_VECTOR_THRESHOLD) {
-			IPersistentVector out = (IPersistentVector)EMPTY_VEC.withMeta(_meta);
-			for (double b : contents) out = out.cons(b);
-			return out.cons(o);
-		}
-		final double[] newContents = Arrays.copyOf(contents, contents.length + 1);
-		newContents[newContents.length - 1] = RT.doubleCast(o);
+		return consDouble(RT.doubleCast(o));
+	}
+
+	@Override
+	public IPersistentVector consDouble(double v) {
+		final int n = end - start;
+		if (n + 1 > threshold) return promote(v);
+		final double[] newContents = Arrays.copyOfRange(contents, start, end + 1);
+		newContents[n] = v;
 		return new PersistentDoubleArrayVector(newContents, _meta);
 	}
 
+	// Straight to a Vec, without boxing: the elements become its leaves (as
+	// they are, if they're the whole of a single one) and the leftovers and o
+	// its tail.  There are leftovers only if the threshold has been lowered.
+	Vec promote(double o){
+		final int leafEnd = start + ((end - start) & ~31);
+		final Object[] leaves = new Object[32];
+		if (start == 0 && end == 32 && contents.length == 32) leaves[0] = new VecNode(null, contents);
+		else for (int i = start; i < leafEnd; i += 32) leaves[(i - start) >> 5] = new VecNode(null, Arrays.copyOfRange(contents, i, i + 32));
+		final double[] tail = Arrays.copyOfRange(contents, leafEnd, end + 1);
+		tail[end - leafEnd] = o;
+		return new Vec(am, end - start + 1, 5, new VecNode(null, leaves), tail, _meta);
+	}
+
 	@Override
 	public int count() {
-		return contents.length;
+		return end - start;
 	}
 
 	@Override
@@ -77,13 +159,91 @@ public class PersistentDoubleArrayVector extends APersistentVector implements IO
 		return new PersistentDoubleArrayVector(new double[] {}, null);
 	}
 
+	// Shares contents, so is O(1); see compact
+	@Override
+	public PersistentDoubleArrayVector pop() {
+		if (end == start) throw new IllegalStateException("Can't pop empty vector");
+		return new PersistentDoubleArrayVector(contents, start, end - 1, _meta);
+	}
+
 	@Override
-	public IPersistentStack pop() {
-		return new PersistentDoubleArrayVector(Arrays.copyOf(this.contents, this.contents.length - 1), _meta);
+	public PersistentDoubleArrayVector subvec(int from, int to) {
+		if (from < 0 || to < from || to > end - start) throw new IndexOutOfBoundsException();
+		return new PersistentDoubleArrayVector(contents, start + from, start + to, null);
+	}
+
+	@Override
+	public PersistentDoubleArrayVector compact() {
+		if (start == 0 && end == contents.length) return this;
+		return new PersistentDoubleArrayVector(Arrays.copyOfRange(contents, start, end), _meta);
 	}
 
 	@Override
 	public Object nth(int i) {
-		return contents[i];
+		return getDouble(i);
+	}
+
+	@Override
+	public double getDouble(int i) {
+		if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException();
+		return contents[start + i];
+	}
+
+	@Override
+	public double[] toDoubleArray() {
+		return Arrays.copyOfRange(contents, start, end);
+	}
+
+	@Override
+	public ISeq seq() {
+		return end == start ? null : new ArrayVectorSeq(am, contents, start, end, null);
+	}
+
+	@Override
+	public Object reduce(IFn f) {
+		if (end == start) return f.invoke();
+		return ArrayVectors.reduce(contents, start + 1, end, f, contents[start]);
+	}
+
+	@Override
+	public Object reduce(IFn f, Object init) {
+		return ArrayVectors.reduce(contents, start, end, f, init);
+	}
+
+	@Override
+	public boolean equiv(Object o) {
+		if (o instanceof PersistentDoubleArrayVector) {
+			final PersistentDoubleArrayVector v = (PersistentDoubleArrayVector)o;
+			return ArrayVectors.equiv(contents, start, end, v.contents, v.start, v.end);
+		}
+		return super.equiv(o);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof PersistentDoubleArrayVector) {
+			final PersistentDoubleArrayVector v = (PersistentDoubleArrayVector)o;
+			return ArrayVectors.equals(contents, start, end, v.contents, v.start, v.end);
+		}
+		return super.equals(o);
+	}
+
+	// Cached as APersistentVector's are, since a vector can be up to 1024
+	// elements long
+	int _hash = -1;
+	int _hasheq = -1;
+
+	@Override
+	public int hashCode() {
+		int h = _hash;
+		if (h == -1) _hash = h = ArrayVectors.hashCode(contents, start, end);
+		return h;
+	}
+
+	@Override
+	public int hasheq() {
+		int h = _hasheq;
+		if (h == -1) _hasheq = h = ArrayVectors.hasheq(contents, start, end);
+		return h;
 	}
 }
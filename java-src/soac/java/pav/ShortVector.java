@@ -0,0 +1,13 @@
+package soac.java.pav;
+
+import clojure.lang.IPersistentVector;
+
+// Unboxed access to a vector of shorts.  Updates return whatever the vector
+// becomes, which past its threshold is a clojure.core.Vec and not one of these.
+public interface ShortVector extends IPersistentVector {
+	short getShort(int i);
+	IPersistentVector assocShort(int i, short v);
+	IPersistentVector consShort(short v);
+	// A copy of the elements
+	short[] toShortArray();
+}
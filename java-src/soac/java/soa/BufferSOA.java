@@ -0,0 +1,327 @@
+package soac.java.soa;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.AbstractList;
+import java.util.Collection;
+
+import soac.java.pav.PersistentArrayVector;
+import clojure.lang.RT;
+
+//A mutable SOA of primitive columns kept outside the heap, in ByteBuffers, so
+//that it isn't scanned by the GC or limited to 2^31 cells per column.  Each
+//column is a series of segments of 1 << segmentShift rows, got from a
+//SegmentSource as it grows - direct buffers, or mapped files that open maps
+//straight back in after a restart - so growing never copies.
+//As a List it behaves as MutableSOA does, with rows as vectors of boxed
+//cells; the typed accessors take long row numbers, and the column must be of
+//exactly that type.  This does not support concurrent modifications.
+public class BufferSOA extends AbstractList<Object> {
+	final ColumnType[] types;
+	//Per column, its segments so far
+	final ByteBuffer[][] segments;
+	final int segmentShift;
+	final int segmentMask;
+	final SegmentSource source;
+	long size;
+
+	public static final int defaultSegmentShift = 20;
+
+	public BufferSOA(ColumnType[] types, int segmentShift, SegmentSource source, ByteBuffer[][] segments, long size) {
+		if(types.length == 0) throw new IllegalArgumentException("Need at least one column");
+		for(ColumnType t : types){
+			if(segmentShift + t.shift > 30) throw new IllegalArgumentException("Segments would be over 1GB");
+		}
+		this.types = types;
+		this.segmentShift = segmentShift;
+		this.segmentMask = (1 << segmentShift) - 1;
+		this.source = source;
+		this.segments = segments;
+		this.size = size;
+	}
+
+	//An empty SOA in direct buffers
+	public static BufferSOA direct(ColumnType[] types, int segmentShift){
+		return new BufferSOA(types, segmentShift, SegmentSource.direct(), new ByteBuffer[types.length][0], 0);
+	}
+
+	//An empty SOA in files in dir, which is created if need be, and mustn't
+	//already hold one
+	public static BufferSOA create(File dir, ColumnType[] types, int segmentShift) throws IOException {
+		return SegmentSource.Mapped.create(dir, types, segmentShift);
+	}
+
+	//The SOA made in dir by create, as it was last changed
+	public static BufferSOA open(File dir) throws IOException {
+		return SegmentSource.Mapped.open(dir);
+	}
+
+	public ColumnType[] getTypes(){
+		return types.clone();
+	}
+
+	public long longSize(){
+		return size;
+	}
+
+	public long capacity(){
+		return (long)segments[0].length << segmentShift;
+	}
+
+	void setSize(long size){
+		source.sizeChanged(size);
+		this.size = size;
+	}
+
+	public void ensureCapacity(long n){
+		while(capacity() < n){
+			final int index = segments[0].length;
+			for(int col = 0; col < types.length; col++){
+				final ByteBuffer[] grown = new ByteBuffer[index + 1];
+				System.arraycopy(segments[col], 0, grown, 0, index);
+				try {
+					grown[index] = source.segment(col, index, 1 << (segmentShift + types[col].shift));
+				} catch(IOException e){
+					throw new RuntimeException(e);
+				}
+				segments[col] = grown;
+			}
+		}
+	}
+
+	//Writes mapped segments and the row count out to storage
+	public void force(){
+		for(ByteBuffer[] col : segments){
+			for(ByteBuffer b : col){
+				if(b instanceof MappedByteBuffer) ((MappedByteBuffer)b).force();
+			}
+		}
+		source.force();
+	}
+
+	public void close() throws IOException {
+		force();
+		source.close();
+	}
+
+	ByteBuffer buf(int col, long row){
+		return segments[col][(int)(row >>> segmentShift)];
+	}
+
+	int offset(int col, long row){
+		return ((int)row & segmentMask) << types[col].shift;
+	}
+
+	void checkRow(long row){
+		if(row < 0 || row >= size) throw new IndexOutOfBoundsException(String.valueOf(row));
+	}
+
+	void checkType(int col, ColumnType t){
+		if(types[col] != t) throw new ClassCastException("Column " + col + " is " + types[col]);
+	}
+
+	public boolean getBoolean(long row, int col){ checkRow(row); checkType(col, ColumnType.BOOLEAN); return buf(col, row).get(offset(col, row)) != 0; }
+	public char getChar(long row, int col){ checkRow(row); checkType(col, ColumnType.CHAR); return buf(col, row).getChar(offset(col, row)); }
+	public byte getByte(long row, int col){ checkRow(row); checkType(col, ColumnType.BYTE); return buf(col, row).get(offset(col, row)); }
+	public short getShort(long row, int col){ checkRow(row); checkType(col, ColumnType.SHORT); return buf(col, row).getShort(offset(col, row)); }
+	public int getInt(long row, int col){ checkRow(row); checkType(col, ColumnType.INT); return buf(col, row).getInt(offset(col, row)); }
+	public long getLong(long row, int col){ checkRow(row); checkType(col, ColumnType.LONG); return buf(col, row).getLong(offset(col, row)); }
+	public float getFloat(long row, int col){ checkRow(row); checkType(col, ColumnType.FLOAT); return buf(col, row).getFloat(offset(col, row)); }
+	public double getDouble(long row, int col){ checkRow(row); checkType(col, ColumnType.DOUBLE); return buf(col, row).getDouble(offset(col, row)); }
+
+	public void setBoolean(long row, int col, boolean v){ checkRow(row); checkType(col, ColumnType.BOOLEAN); buf(col, row).put(offset(col, row), (byte)(v ? 1 : 0)); }
+	public void setChar(long row, int col, char v){ checkRow(row); checkType(col, ColumnType.CHAR); buf(col, row).putChar(offset(col, row), v); }
+	public void setByte(long row, int col, byte v){ checkRow(row); checkType(col, ColumnType.BYTE); buf(col, row).put(offset(col, row), v); }
+	public void setShort(long row, int col, short v){ checkRow(row); checkType(col, ColumnType.SHORT); buf(col, row).putShort(offset(col, row), v); }
+	public void setInt(long row, int col, int v){ checkRow(row); checkType(col, ColumnType.INT); buf(col, row).putInt(offset(col, row), v); }
+	public void setLong(long row, int col, long v){ checkRow(row); checkType(col, ColumnType.LONG); buf(col, row).putLong(offset(col, row), v); }
+	public void setFloat(long row, int col, float v){ checkRow(row); checkType(col, ColumnType.FLOAT); buf(col, row).putFloat(offset(col, row), v); }
+	public void setDouble(long row, int col, double v){ checkRow(row); checkType(col, ColumnType.DOUBLE); buf(col, row).putDouble(offset(col, row), v); }
+
+	//The cell boxed as the array-backed SOAs' are
+	public Object getRowAndCol(long row, int col){
+		checkRow(row);
+		final ByteBuffer b = buf(col, row);
+		final int off = offset(col, row);
+		switch(types[col]){
+		case BOOLEAN: return b.get(off) != 0;
+		case CHAR: return b.getChar(off);
+		case BYTE: return b.get(off);
+		case SHORT: return b.getShort(off);
+		case INT: return b.getInt(off);
+		case LONG: return b.getLong(off);
+		case FLOAT: return b.getFloat(off);
+		default: return b.getDouble(off);
+		}
+	}
+
+	//Coerces v to the column's type, as the array-backed SOAs do
+	void setCell(long row, int col, Object v){
+		final ByteBuffer b = buf(col, row);
+		final int off = offset(col, row);
+		switch(types[col]){
+		case BOOLEAN: b.put(off, (byte)(RT.booleanCast(v) ? 1 : 0)); break;
+		case CHAR: b.putChar(off, RT.charCast(v)); break;
+		case BYTE: b.put(off, RT.byteCast(v)); break;
+		case SHORT: b.putShort(off, RT.shortCast(v)); break;
+		case INT: b.putInt(off, RT.intCast(v)); break;
+		case LONG: b.putLong(off, RT.longCast(v)); break;
+		case FLOAT: b.putFloat(off, RT.floatCast(v)); break;
+		default: b.putDouble(off, RT.doubleCast(v));
+		}
+	}
+
+	void setRow(long row, Object e){
+		for(int col = 0; col < types.length; col++) setCell(row, col, RT.nth(e, col));
+	}
+
+	void copyCell(int col, long from, long to){
+		final ByteBuffer src = buf(col, from), dest = buf(col, to);
+		final int srcOff = offset(col, from), destOff = offset(col, to);
+		switch(types[col].shift){
+		case 0: dest.put(destOff, src.get(srcOff)); break;
+		case 1: dest.putShort(destOff, src.getShort(srcOff)); break;
+		case 2: dest.putInt(destOff, src.getInt(srcOff)); break;
+		default: dest.putLong(destOff, src.getLong(srcOff));
+		}
+	}
+
+	//Copies n rows from from to to, which may overlap
+	void moveRows(long from, long to, long n){
+		for(int col = 0; col < types.length; col++){
+			if(to > from){
+				for(long i = n - 1; i >= 0; i--) copyCell(col, from + i, to + i);
+			} else {
+				for(long i = 0; i < n; i++) copyCell(col, from + i, to + i);
+			}
+		}
+	}
+
+	@Override
+	public Object get(int index) {
+		checkRow(index);
+		final Object[] row = new Object[types.length];
+		for(int col = 0; col < types.length; col++) row[col] = getRowAndCol(index, col);
+		return new PersistentArrayVector(row, null);
+	}
+
+	@Override
+	public int size() {
+		return (int)Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public Object set(int index, Object element) {
+		final Object out = get(index);
+		setRow(index, element);
+		return out;
+	}
+
+	//Anywhere but the end means moving every later row, cell by cell.  The
+	//row is written to a spare slot past the end first, so a bad one
+	//throws before anything has moved.
+	@Override
+	public void add(int index, Object element) {
+		if(index < 0 || index > size) throw new IndexOutOfBoundsException();
+		if(index == size){
+			ensureCapacity(size + 1);
+			setRow(size, element);
+		} else {
+			ensureCapacity(size + 2);
+			setRow(size + 1, element);
+			moveRows(index, index + 1, size - index);
+			moveRows(size + 1, index, 1);
+		}
+		setSize(size + 1);
+	}
+
+	@Override
+	public boolean addAll(Collection<?> c) {
+		ensureCapacity(size + c.size());
+		long row = size;
+		for(Object e : c) setRow(row++, e);
+		setSize(row);
+		return !c.isEmpty();
+	}
+
+	@Override
+	public Object remove(int index) {
+		final Object out = get(index);
+		moveRows(index + 1, index, size - index - 1);
+		setSize(size - 1);
+		return out;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if(fromIndex < 0 || toIndex > size || fromIndex > toIndex) throw new IndexOutOfBoundsException();
+		moveRows(toIndex, fromIndex, size - toIndex);
+		setSize(size - (toIndex - fromIndex));
+	}
+
+	@Override
+	public void clear() {
+		setSize(0);
+	}
+
+	//A view of the part of col's segment holding row onwards, in it
+	ByteBuffer at(int col, long row){
+		final ByteBuffer b = buf(col, row).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(offset(col, row));
+		return b;
+	}
+
+	//Appends the rows held in cols, one primitive array per column of the
+	//column's type and all of the same length, with a bulk copy per segment
+	public void appendColumns(Object... cols){
+		if(cols.length != types.length) throw new IllegalArgumentException("Need an array per column");
+		final int n = Array.getLength(cols[0]);
+		for(int col = 0; col < types.length; col++){
+			if(ColumnType.ofArray(cols[col]) != types[col]) throw new IllegalArgumentException("Column " + col + " is " + types[col]);
+			if(Array.getLength(cols[col]) != n) throw new IllegalArgumentException("Columns differ in length");
+		}
+		ensureCapacity(size + n);
+		for(int col = 0; col < types.length; col++) copyColumn(col, size, cols[col], 0, n, true);
+		setSize(size + n);
+	}
+
+	//Reads rows [start, start + n) of col into dest, an array of its type,
+	//from destStart on
+	public void readColumn(int col, long start, Object dest, int destStart, int n){
+		if(ColumnType.ofArray(dest) != types[col]) throw new IllegalArgumentException("Column " + col + " is " + types[col]);
+		if(start < 0 || n < 0 || start + n > size) throw new IndexOutOfBoundsException();
+		copyColumn(col, start, dest, destStart, n, false);
+	}
+
+	//Copies between n rows of col from row on and arr from off on, a
+	//segment's worth at a time
+	void copyColumn(int col, long row, Object arr, int off, int n, boolean in){
+		while(n > 0){
+			final int len = (int)Math.min(n, (1L << segmentShift) - (row & segmentMask));
+			final ByteBuffer b = at(col, row);
+			switch(types[col]){
+			case BOOLEAN:
+				final boolean[] bs = (boolean[])arr;
+				for(int i = 0; i < len; i++){
+					if(in) b.put((byte)(bs[off + i] ? 1 : 0));
+					else bs[off + i] = b.get() != 0;
+				}
+				break;
+			case CHAR: if(in) b.asCharBuffer().put((char[])arr, off, len); else b.asCharBuffer().get((char[])arr, off, len); break;
+			case BYTE: if(in) b.put((byte[])arr, off, len); else b.get((byte[])arr, off, len); break;
+			case SHORT: if(in) b.asShortBuffer().put((short[])arr, off, len); else b.asShortBuffer().get((short[])arr, off, len); break;
+			case INT: if(in) b.asIntBuffer().put((int[])arr, off, len); else b.asIntBuffer().get((int[])arr, off, len); break;
+			case LONG: if(in) b.asLongBuffer().put((long[])arr, off, len); else b.asLongBuffer().get((long[])arr, off, len); break;
+			case FLOAT: if(in) b.asFloatBuffer().put((float[])arr, off, len); else b.asFloatBuffer().get((float[])arr, off, len); break;
+			default: if(in) b.asDoubleBuffer().put((double[])arr, off, len); else b.asDoubleBuffer().get((double[])arr, off, len);
+			}
+			row += len;
+			off += len;
+			n -= len;
+		}
+	}
+}
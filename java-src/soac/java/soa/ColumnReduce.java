@@ -0,0 +1,132 @@
+package soac.java.soa;
+
+import clojure.lang.ArraySeq;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+
+//Reduces over a range of rows of an array-backed SOA, reading only the
+//requested columns.  f sees one argument per column after the accumulator.
+//Where f takes primitives - (fn ^double [^double acc ^double x] ...) is an
+//IFn.DDD, (fn [acc ^long x ^double y] ...) an IFn.OLDO - and the columns'
+//arrays suit, it's called without boxing; otherwise cells are boxed through
+//the schema.
+public final class ColumnReduce {
+	private ColumnReduce() {}
+
+	static boolean isIntegral(Object a){
+		return a instanceof long[] || a instanceof int[] || a instanceof short[] || a instanceof byte[];
+	}
+
+	static boolean isFloating(Object a){
+		return a instanceof double[] || a instanceof float[];
+	}
+
+	//Only for isIntegral arrays
+	static long longAt(Object a, int i){
+		if(a instanceof long[]) return ((long[])a)[i];
+		if(a instanceof int[]) return ((int[])a)[i];
+		if(a instanceof short[]) return ((short[])a)[i];
+		return ((byte[])a)[i];
+	}
+
+	//Only for isFloating arrays
+	static double doubleAt(Object a, int i){
+		if(a instanceof double[]) return ((double[])a)[i];
+		return ((float[])a)[i];
+	}
+
+	static Object unreduced(Object acc){
+		return ((IDeref)acc).deref();
+	}
+
+	public static Object reduce(SOASchema schema, Object[] data, int[] cols, int lo, int hi, IFn f, Object init){
+		if(cols.length == 1) return reduce1(schema, data, cols[0], lo, hi, f, init);
+		if(cols.length == 2) return reduce2(schema, data, cols[0], cols[1], lo, hi, f, init);
+		Object acc = init;
+		final Object[] args = new Object[cols.length + 1];
+		for(int i=lo; i<hi; i++){
+			args[0] = acc;
+			for(int c=0; c<cols.length; c++) args[c + 1] = schema.get(data, i, cols[c]);
+			acc = f.applyTo(ArraySeq.create(args.clone()));
+			if(RT.isReduced(acc)) return unreduced(acc);
+		}
+		return acc;
+	}
+
+	static Object reduce1(SOASchema schema, Object[] data, int col, int lo, int hi, IFn f, Object init){
+		final Object a = data[col];
+		if(f instanceof IFn.DDD && init instanceof Number && isFloating(a)){
+			final IFn.DDD g = (IFn.DDD)f;
+			double acc = ((Number)init).doubleValue();
+			if(a instanceof double[]){
+				final double[] d = (double[])a;
+				for(int i=lo; i<hi; i++) acc = g.invokePrim(acc, d[i]);
+			} else {
+				for(int i=lo; i<hi; i++) acc = g.invokePrim(acc, doubleAt(a, i));
+			}
+			return acc;
+		}
+		if(f instanceof IFn.LLL && init instanceof Number && isIntegral(a)){
+			final IFn.LLL g = (IFn.LLL)f;
+			long acc = ((Number)init).longValue();
+			if(a instanceof long[]){
+				final long[] l = (long[])a;
+				for(int i=lo; i<hi; i++) acc = g.invokePrim(acc, l[i]);
+			} else {
+				for(int i=lo; i<hi; i++) acc = g.invokePrim(acc, longAt(a, i));
+			}
+			return acc;
+		}
+		Object acc = init;
+		if(f instanceof IFn.ODO && isFloating(a)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.ODO)f).invokePrim(acc, doubleAt(a, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else if(f instanceof IFn.OLO && isIntegral(a)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.OLO)f).invokePrim(acc, longAt(a, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else {
+			for(int i=lo; i<hi; i++){
+				acc = f.invoke(acc, schema.get(data, i, col));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		}
+		return acc;
+	}
+
+	static Object reduce2(SOASchema schema, Object[] data, int col1, int col2, int lo, int hi, IFn f, Object init){
+		final Object a = data[col1], b = data[col2];
+		Object acc = init;
+		if(f instanceof IFn.OLLO && isIntegral(a) && isIntegral(b)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.OLLO)f).invokePrim(acc, longAt(a, i), longAt(b, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else if(f instanceof IFn.OLDO && isIntegral(a) && isFloating(b)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.OLDO)f).invokePrim(acc, longAt(a, i), doubleAt(b, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else if(f instanceof IFn.ODLO && isFloating(a) && isIntegral(b)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.ODLO)f).invokePrim(acc, doubleAt(a, i), longAt(b, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else if(f instanceof IFn.ODDO && isFloating(a) && isFloating(b)){
+			for(int i=lo; i<hi; i++){
+				acc = ((IFn.ODDO)f).invokePrim(acc, doubleAt(a, i), doubleAt(b, i));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		} else {
+			for(int i=lo; i<hi; i++){
+				acc = f.invoke(acc, schema.get(data, i, col1), schema.get(data, i, col2));
+				if(RT.isReduced(acc)) return unreduced(acc);
+			}
+		}
+		return acc;
+	}
+}
@@ -0,0 +1,46 @@
+package soac.java.soa;
+
+import java.io.IOException;
+
+//The primitive column types, as stored outside of Java arrays, and their
+//widths.  The ordinal is what's written to files, so only append to these.
+public enum ColumnType {
+	BOOLEAN(0), CHAR(1), BYTE(0), SHORT(1), INT(2), LONG(3), FLOAT(2), DOUBLE(3);
+
+	//log2 of the width in bytes
+	public final int shift;
+
+	ColumnType(int shift) {
+		this.shift = shift;
+	}
+
+	public int width(){
+		return 1 << shift;
+	}
+
+	//From a type keyword's name, as taken by the SOA constructors
+	public static ColumnType named(String name){
+		return valueOf(name.toUpperCase());
+	}
+
+	//From the ordinal written to a file, which may be corrupt or from a later
+	//version
+	public static ColumnType ofOrdinal(int ordinal) throws IOException {
+		final ColumnType[] types = values();
+		if(ordinal < 0 || ordinal >= types.length) throw new IOException("Unknown column type " + ordinal);
+		return types[ordinal];
+	}
+
+	//The type of a column held in arrays like a, or null for Object[]s
+	public static ColumnType ofArray(Object a){
+		if(a instanceof boolean[]) return BOOLEAN;
+		if(a instanceof char[]) return CHAR;
+		if(a instanceof byte[]) return BYTE;
+		if(a instanceof short[]) return SHORT;
+		if(a instanceof int[]) return INT;
+		if(a instanceof long[]) return LONG;
+		if(a instanceof float[]) return FLOAT;
+		if(a instanceof double[]) return DOUBLE;
+		return null;
+	}
+}
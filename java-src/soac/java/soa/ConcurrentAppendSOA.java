@@ -0,0 +1,280 @@
+package soac.java.soa;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import soac.java.pav.PersistentArrayVector;
+
+import clojure.lang.APersistentVector;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+
+//An SOA any number of threads can append to at once, without locks, that
+//publishes immutable snapshots.  Rows live in chunks of 2^chunkShift rows of
+//every column, which never move once allocated, so growing never copies:
+//a chunk is installed by CAS by whichever writer first needs it, as is the
+//page of the chunk directory it goes in, so an SOA only holds directory
+//space for the rows it has, and nothing is ever copied over.  A writer
+//reserves a range of rows by advancing a shared cursor, fills it in, then
+//publishes it.  Ranges become visible in the order they were reserved, so a
+//snapshot is always a prefix with no holes.
+public class ConcurrentAppendSOA {
+	final SOASchema schema;
+	//Zero-length columns, from which chunks are made
+	final Object[] proto;
+	final int chunkShift;
+	final int chunkMask;
+	//Pages of 2^pageShift chunks each, enough for 2^31 rows
+	final AtomicReferenceArray<AtomicReferenceArray<Object[]>> pages;
+	final int pageShift;
+	final AtomicLong reserved = new AtomicLong();
+	final AtomicLong published = new AtomicLong();
+	//Start to end of ranges published out of order, not yet visible
+	final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+
+	public final static int defaultChunkShift = 14;
+
+	public ConcurrentAppendSOA(Object[] proto, SOASchema schema, int chunkShift) {
+		if(chunkShift < 6 || chunkShift > 30) throw new IllegalArgumentException("Chunk shift must be 6 to 30");
+		this.schema = schema;
+		this.proto = schema.copyOf(proto, 0);
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1 << chunkShift) - 1;
+		//Splits the chunk numbers' bits between page and slot, so neither
+		//the page table nor any page is much bigger than it need be
+		final int chunkBits = 31 - chunkShift;
+		this.pageShift = chunkBits - chunkBits / 2;
+		this.pages = new AtomicReferenceArray<AtomicReferenceArray<Object[]>>(1 << (chunkBits / 2));
+	}
+
+	//Starts from soa's rows
+	public static ConcurrentAppendSOA of(ImmutableArraySOA soa, int chunkShift){
+		final ConcurrentAppendSOA c = new ConcurrentAppendSOA(soa.data, soa.schema, chunkShift);
+		final Reservation r = c.reserve(soa.filledLength);
+		r.copyColumns(soa.data, 0);
+		r.publish();
+		return c;
+	}
+
+	//The chunk of row, which must have been reserved
+	Object[] chunkOfRow(int row){
+		final int index = row >>> chunkShift;
+		return pages.get(index >>> pageShift).get(index & ((1 << pageShift) - 1));
+	}
+
+	//Installs chunk index, and its page, if no one has yet
+	Object[] chunk(int index){
+		AtomicReferenceArray<Object[]> page = pages.get(index >>> pageShift);
+		if(page == null){
+			final AtomicReferenceArray<Object[]> made = new AtomicReferenceArray<Object[]>(1 << pageShift);
+			page = pages.compareAndSet(index >>> pageShift, null, made) ? made : pages.get(index >>> pageShift);
+		}
+		final int slot = index & ((1 << pageShift) - 1);
+		final Object[] c = page.get(slot);
+		if(c != null) return c;
+		final Object[] made = schema.copyOf(proto, 1 << chunkShift);
+		if(page.compareAndSet(slot, null, made)) return made;
+		return page.get(slot);
+	}
+
+	//Claims the next n rows, for the caller alone to fill in and publish.  A
+	//claim that doesn't fit leaves the cursor where it was.
+	public Reservation reserve(int n){
+		if(n < 0) throw new IllegalArgumentException("Negative row count");
+		long start;
+		do {
+			start = reserved.get();
+			if(start + n > Integer.MAX_VALUE) throw new IllegalStateException("SOA is full");
+		} while(!reserved.compareAndSet(start, start + n));
+		final int first = (int)start >>> chunkShift;
+		final int last = (int)(start + n - 1) >>> chunkShift;
+		for(int i = first; n > 0 && i <= last; i++) chunk(i);
+		return new Reservation((int)start, n);
+	}
+
+	//Rows are coerced into their own columns before reserving, so a bad one
+	//throws without leaving behind a range that's never published
+	public void append(Object row){
+		final Object[] staged = schema.copyOf(proto, 1);
+		schema.setRow(staged, 0, row);
+		final Reservation r = reserve(1);
+		r.copyColumns(staged, 0);
+		r.publish();
+	}
+
+	public void appendAll(Collection<?> rows){
+		final Object[] staged = schema.copyOf(proto, rows.size());
+		int i = 0;
+		for(Object row : rows) schema.setRow(staged, i++, row);
+		final Reservation r = reserve(i);
+		r.copyColumns(staged, 0);
+		r.publish();
+	}
+
+	//One array per column, each of the column's type and the same length
+	public void appendColumns(Object... columns){
+		if(columns.length != proto.length) throw new IllegalArgumentException("Need one array per column");
+		final int n = columns.length == 0 ? 0 : Array.getLength(columns[0]);
+		for(int col = 0; col < columns.length; col++){
+			if(columns[col].getClass() != proto[col].getClass()) throw new IllegalArgumentException("Column " + col + " is of the wrong type");
+			if(Array.getLength(columns[col]) != n) throw new IllegalArgumentException("Columns differ in length");
+		}
+		final Reservation r = reserve(n);
+		r.copyColumns(columns, 0);
+		r.publish();
+	}
+
+	//Rows published so far
+	public int size(){
+		return (int)published.get();
+	}
+
+	public Snapshot snapshot(){
+		return new Snapshot(size());
+	}
+
+	//A range of rows, numbered from 0, for one thread to fill in
+	public final class Reservation {
+		final int start;
+		final int n;
+
+		Reservation(int start, int n) {
+			this.start = start;
+			this.n = n;
+		}
+
+		public int start(){ return start; }
+		public int count(){ return n; }
+
+		Object[] at(int i){
+			if(i < 0 || i >= n) throw new IndexOutOfBoundsException();
+			return chunkOfRow(start + i);
+		}
+
+		public void setRow(int i, Object row){
+			schema.setRow(at(i), (start + i) & chunkMask, row);
+		}
+
+		public void set(int i, int col, Object v){
+			schema.set(at(i), (start + i) & chunkMask, col, v);
+		}
+
+		public void setBoolean(int i, int col, boolean v){ ((boolean[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setChar(int i, int col, char v){ ((char[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setByte(int i, int col, byte v){ ((byte[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setShort(int i, int col, short v){ ((short[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setInt(int i, int col, int v){ ((int[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setLong(int i, int col, long v){ ((long[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setFloat(int i, int col, float v){ ((float[])at(i)[col])[(start + i) & chunkMask] = v; }
+		public void setDouble(int i, int col, double v){ ((double[])at(i)[col])[(start + i) & chunkMask] = v; }
+
+		//Fills the whole range from columns, starting at row from of each
+		public void copyColumns(Object[] columns, int from){
+			int done = 0;
+			while(done < n){
+				final int row = start + done;
+				final int len = Math.min(n - done, (1 << chunkShift) - (row & chunkMask));
+				final Object[] chunk = chunkOfRow(row);
+				for(int col = 0; col < chunk.length; col++){
+					System.arraycopy(columns[col], from + done, chunk[col], row & chunkMask, len);
+				}
+				done += len;
+			}
+		}
+
+		//Makes the range visible to snapshots, once every range reserved
+		//before it has been published too.  Never waits: a range finished
+		//ahead of its turn is left in pending, for whichever writer makes
+		//it contiguous to carry published past.  Every reservation must be
+		//published, or later ones never will be, even if filling it in
+		//fails part way.
+		public void publish(){
+			if(n == 0) return;
+			final long end = (long)start + n;
+			if(!published.compareAndSet(start, end)) pending.put((long)start, end);
+			for(;;){
+				final long p = published.get();
+				final Long next = pending.get(p);
+				if(next == null) return;
+				if(published.compareAndSet(p, next)) pending.remove(p);
+			}
+		}
+	}
+
+	//The rows published as of its making, sharing their chunks, which later
+	//appends never touch.  Changing it makes an ImmutableArraySOA copy.
+	public final class Snapshot extends APersistentVector {
+		public static final long serialVersionUID = 1L;
+
+		final int count;
+
+		Snapshot(int count) {
+			this.count = count;
+		}
+
+		Object[] chunkOf(int row){
+			if(row < 0 || row >= count) throw new IndexOutOfBoundsException();
+			return chunkOfRow(row);
+		}
+
+		public Object getRowAndCol(int row, int col){
+			return schema.get(chunkOf(row), row & chunkMask, col);
+		}
+
+		public boolean getBoolean(int row, int col){ return ((boolean[])chunkOf(row)[col])[row & chunkMask]; }
+		public char getChar(int row, int col){ return ((char[])chunkOf(row)[col])[row & chunkMask]; }
+		public byte getByte(int row, int col){ return ((byte[])chunkOf(row)[col])[row & chunkMask]; }
+		public short getShort(int row, int col){ return ((short[])chunkOf(row)[col])[row & chunkMask]; }
+		public int getInt(int row, int col){ return ((int[])chunkOf(row)[col])[row & chunkMask]; }
+		public long getLong(int row, int col){ return ((long[])chunkOf(row)[col])[row & chunkMask]; }
+		public float getFloat(int row, int col){ return ((float[])chunkOf(row)[col])[row & chunkMask]; }
+		public double getDouble(int row, int col){ return ((double[])chunkOf(row)[col])[row & chunkMask]; }
+
+		//Copies the rows into a single array per column
+		public ImmutableArraySOA toArraySOA(){
+			final Object[] data = schema.copyOf(proto, count);
+			for(int row = 0; row < count; row += 1 << chunkShift){
+				final Object[] chunk = chunkOfRow(row);
+				final int len = Math.min(count - row, 1 << chunkShift);
+				for(int col = 0; col < data.length; col++) System.arraycopy(chunk[col], 0, data[col], row, len);
+			}
+			return new ImmutableArraySOA(data, schema, new AtomicInteger(count), count, count);
+		}
+
+		@Override
+		public Object nth(int i) {
+			return new PersistentArrayVector(schema.getRow(chunkOf(i), i & chunkMask), null);
+		}
+
+		@Override
+		public int count() {
+			return count;
+		}
+
+		@Override
+		public IPersistentVector assocN(int i, Object o) {
+			return toArraySOA().assocN(i, o);
+		}
+
+		@Override
+		public IPersistentVector cons(Object o) {
+			return toArraySOA().cons(o);
+		}
+
+		@Override
+		public IPersistentCollection empty() {
+			return new ImmutableArraySOA(schema.copyOf(proto, 32), schema, new AtomicInteger(0), 0, 32);
+		}
+
+		@Override
+		public IPersistentStack pop() {
+			if(count == 0) throw new IllegalStateException("Can't pop empty vector");
+			return new Snapshot(count - 1);
+		}
+	}
+}
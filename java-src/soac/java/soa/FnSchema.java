@@ -0,0 +1,59 @@
+package soac.java.soa;
+
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+//The generic SOASchema, calling a copy, aset and aget fn per column.  Backs
+//the SOA constructors that take those fns; soac.soa compiles specialized
+//schemas instead.
+final class FnSchema implements SOASchema {
+	final IFn[] copiers;
+	final IFn[] asets;
+	final IFn[] agets;
+
+	FnSchema(IFn[] copiers, IFn[] asets, IFn[] agets) {
+		this.copiers = copiers;
+		this.asets = asets;
+		this.agets = agets;
+	}
+
+	@Override
+	public Object get(Object[] data, int row, int col) {
+		return agets[col].invoke(data[col], row);
+	}
+
+	@Override
+	public void set(Object[] data, int row, int col, Object v) {
+		asets[col].invoke(data[col], row, v);
+	}
+
+	@Override
+	public Object[] getRow(Object[] data, int row) {
+		final Object[] out = new Object[data.length];
+		for(int i=0; i<out.length; i++) out[i] = get(data, row, i);
+		return out;
+	}
+
+	@Override
+	public void setRow(Object[] data, int row, Object v) {
+		for(int i=0; i<data.length; i++) set(data, row, i, RT.nth(v, i));
+	}
+
+	@Override
+	public Object[] copyOf(Object[] data, int length) {
+		final Object[] out = new Object[data.length];
+		for(int i=0; i<out.length; i++) out[i] = copiers[i].invoke(data[i], length);
+		return out;
+	}
+
+	@Override
+	public void copyRow(Object[] src, int srcRow, Object[] dest, int destRow) {
+		for(int i=0; i<src.length; i++) set(dest, destRow, i, get(src, srcRow, i));
+	}
+
+	@Override
+	public int compare(Object[] data, int col, int row1, int row2) {
+		return Util.compare(get(data, row1, col), get(data, row2, col));
+	}
+}
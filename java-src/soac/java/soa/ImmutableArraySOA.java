@@ -9,50 +9,70 @@ import clojure.lang.IFn;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentStack;
 import clojure.lang.IPersistentVector;
-import clojure.lang.RT;
 
 public class ImmutableArraySOA extends APersistentVector {
 	public static final long serialVersionUID = 1L;
 	
 	final Object[] data;
-	final IFn[] copiers;
-	final IFn[] asets;
-	final IFn[] agets;
+	final SOASchema schema;
 	final AtomicInteger sharedMaxFilledLength;
 	final int filledLength;
 	final int realLength;
 	
 	public final static double expansionFactor = 1.25;
 	
-	public ImmutableArraySOA(Object[] data, IFn[] copiers, IFn[] asets, IFn[] agets, AtomicInteger sharedMaxFilledLength, int filledLength, int realLength) {
+	public ImmutableArraySOA(Object[] data, SOASchema schema, AtomicInteger sharedMaxFilledLength, int filledLength, int realLength) {
 		this.data = data;
-		this.copiers = copiers;
-		this.asets = asets;
-		this.agets = agets;
+		this.schema = schema;
 		this.sharedMaxFilledLength = sharedMaxFilledLength;
 		this.filledLength = filledLength;
 		this.realLength = realLength;
 	}
 	
+	//Per-column copy, aset and aget fns, in place of a compiled schema
+	public ImmutableArraySOA(Object[] data, IFn[] copiers, IFn[] asets, IFn[] agets, AtomicInteger sharedMaxFilledLength, int filledLength, int realLength) {
+		this(data, new FnSchema(copiers, asets, agets), sharedMaxFilledLength, filledLength, realLength);
+	}
+	
 	ImmutableArraySOA withNewData(Object[] data, AtomicInteger sharedMaxFilledLength, int filledLength, int realLength){
-		return new ImmutableArraySOA(data, copiers, asets, agets, sharedMaxFilledLength, filledLength, realLength);
+		return new ImmutableArraySOA(data, schema, sharedMaxFilledLength, filledLength, realLength);
 	}
 	
 	public ImmutableArraySOA expand(){
 		final int newLength = Math.max(realLength + 1, (int)(realLength * expansionFactor));
-		final Object[] newData = new Object[data.length];
-		for(int i=0; i<newData.length; i++){
-			newData[i] = copiers[i].invoke(data[i], newLength);
-		}
-		return withNewData(newData, new AtomicInteger(filledLength), filledLength, newLength);
+		return withNewData(schema.copyOf(data, newLength), new AtomicInteger(filledLength), filledLength, newLength);
 	}
 	
 	public ImmutableArraySOA trim(){
-		final Object[] newData = new Object[data.length];
-		for(int i=0; i<newData.length; i++){
-			newData[i] = copiers[i].invoke(data[i], filledLength);
-		}
-		return withNewData(newData, new AtomicInteger(filledLength), filledLength, filledLength);
+		return withNewData(schema.copyOf(data, filledLength), new AtomicInteger(filledLength), filledLength, filledLength);
+	}
+	
+	public Object getRowAndCol(int row, int col){
+		return schema.get(data, row, col);
+	}
+	
+	//Typed access to a single cell, straight from the column's array.  The
+	//column must be of exactly that type.
+	public boolean getBoolean(int row, int col){ return ((boolean[])data[col])[row]; }
+	public char getChar(int row, int col){ return ((char[])data[col])[row]; }
+	public byte getByte(int row, int col){ return ((byte[])data[col])[row]; }
+	public short getShort(int row, int col){ return ((short[])data[col])[row]; }
+	public int getInt(int row, int col){ return ((int[])data[col])[row]; }
+	public long getLong(int row, int col){ return ((long[])data[col])[row]; }
+	public float getFloat(int row, int col){ return ((float[])data[col])[row]; }
+	public double getDouble(int row, int col){ return ((double[])data[col])[row]; }
+	
+	//Shared with other versions, and may run past count()
+	public Object[] getRawData(){
+		return data;
+	}
+	
+	public SOASchema getSchema(){
+		return schema;
+	}
+	
+	public RowCursor cursor(){
+		return new RowCursor(data, schema, filledLength);
 	}
 	
 	@Override
@@ -60,19 +80,13 @@ public class ImmutableArraySOA extends APersistentVector {
 		//Appending to end of shared data
 		if(idx==filledLength && sharedMaxFilledLength.compareAndSet(filledLength, filledLength+1)){
 			if(!(realLength > filledLength + 1)) return expand().assocN(idx, o);
-			for(int i=0; i<data.length; i++){
-				asets[i].invoke(data[i], idx, RT.nth(o, i));
-			}
+			schema.setRow(data, idx, o);
 			//Already modified sharedMaxFilledLength above
 			return withNewData(data, sharedMaxFilledLength, filledLength+1, realLength);
 		} 
 		//Middle edit
 		else {
-			final Object[] newData = new Object[data.length];
-			for(int i=0; i<newData.length; i++){
-				newData[i] = copiers[i].invoke(data[i], realLength);
-			}
-			return withNewData(newData, new AtomicInteger(filledLength), filledLength, realLength).assocN(idx, o);
+			return withNewData(schema.copyOf(data, realLength), new AtomicInteger(filledLength), filledLength, realLength).assocN(idx, o);
 		}
 	}
 
@@ -88,11 +102,7 @@ public class ImmutableArraySOA extends APersistentVector {
 
 	@Override
 	public IPersistentCollection empty() {
-		final Object[] newData = new Object[data.length];
-		for(int i=0; i<newData.length; i++){
-			newData[i] = copiers[i].invoke(data[i], 32);
-		}
-		return withNewData(newData, sharedMaxFilledLength, 0, 32);
+		return withNewData(schema.copyOf(data, 32), sharedMaxFilledLength, 0, 32);
 	}
 
 	//Hangs onto the backing data.
@@ -103,11 +113,7 @@ public class ImmutableArraySOA extends APersistentVector {
 
 	@Override
 	public Object nth(int index) {
-		final Object[] stuff = new Object[data.length];
-		for(int i=0; i<stuff.length; i++){
-			stuff[i] = agets[i].invoke(data[i], index);
-		}
-		return new PersistentArrayVector(stuff, null);
+		return new PersistentArrayVector(schema.getRow(data, index), null);
 	}
 	
 }
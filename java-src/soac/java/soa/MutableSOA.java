@@ -1,60 +1,88 @@
 package soac.java.soa;
 
+import java.lang.reflect.Array;
 import java.util.AbstractList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.List;
 
 import soac.java.pav.PersistentArrayVector;
 import clojure.lang.IFn;
-import clojure.lang.RT;
 import clojure.lang.Util;
 
 //This does not support concurrent modifications.
 public class MutableSOA extends AbstractList<Object> {
 	final Object[] data;
-	final IFn[] copiers;
-	final IFn[] asets;
-	final IFn[] agets;
+	final SOASchema schema;
 	int filledLength;
 	int realLength;
+	//The column the rows are known to be in order by, or -1, and in which
+	//direction.  Sorting sets it; writes that put a row out of order with its
+	//neighbors clear it, as does any write to it if it's an Object column.
+	//Writes straight to the raw data aren't seen.
+	int sortedCol = -1;
+	boolean sortedDescending;
 	
 	public static final double expansionFactor = 1.25;
 	
-	public MutableSOA(Object[] data, IFn[] copiers, IFn[] asets, IFn[] agets, int filledLength, int realLength) {
+	public MutableSOA(Object[] data, SOASchema schema, int filledLength, int realLength) {
 		this.data = data;
-		this.copiers = copiers;
-		this.asets = asets;
-		this.agets = agets;
+		this.schema = schema;
 		this.filledLength = filledLength;
 		this.realLength = realLength;
 	}
 	
+	//Per-column copy, aset and aget fns, in place of a compiled schema
+	public MutableSOA(Object[] data, IFn[] copiers, IFn[] asets, IFn[] agets, int filledLength, int realLength) {
+		this(data, new FnSchema(copiers, asets, agets), filledLength, realLength);
+	}
+	
 	public Object getRowAndCol(int row, int col){
-		return agets[col].invoke(data[col], row);
+		return schema.get(data, row, col);
 	}
 	
-	public void expand(){
-		int newSize = Math.max(realLength+1, (int)(realLength * expansionFactor));
-		for(int i=0; i<data.length; i++){
-			data[i] = copiers[i].invoke(data[i], newSize);
-		}
+	//Typed access to a single cell, straight from the column's array.  The
+	//column must be of exactly that type.
+	public boolean getBoolean(int row, int col){ return ((boolean[])data[col])[row]; }
+	public char getChar(int row, int col){ return ((char[])data[col])[row]; }
+	public byte getByte(int row, int col){ return ((byte[])data[col])[row]; }
+	public short getShort(int row, int col){ return ((short[])data[col])[row]; }
+	public int getInt(int row, int col){ return ((int[])data[col])[row]; }
+	public long getLong(int row, int col){ return ((long[])data[col])[row]; }
+	public float getFloat(int row, int col){ return ((float[])data[col])[row]; }
+	public double getDouble(int row, int col){ return ((double[])data[col])[row]; }
+	
+	public void setBoolean(int row, int col, boolean v){ ((boolean[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setChar(int row, int col, char v){ ((char[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setByte(int row, int col, byte v){ ((byte[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setShort(int row, int col, short v){ ((short[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setInt(int row, int col, int v){ ((int[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setLong(int row, int col, long v){ ((long[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setFloat(int row, int col, float v){ ((float[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	public void setDouble(int row, int col, double v){ ((double[])data[col])[row] = v; if(col == sortedCol) checkOrderAt(row); }
+	
+	void resize(int newSize){
+		final Object[] resized = schema.copyOf(data, newSize);
+		System.arraycopy(resized, 0, data, 0, data.length);
 		realLength = newSize;
 	}
 	
+	public void expand(){
+		resize(Math.max(realLength+1, (int)(realLength * expansionFactor)));
+	}
+	
+	//Makes room for at least n rows, growing by at least expansionFactor
+	public void ensureCapacity(int n){
+		if(n > realLength) resize(Math.max(n, (int)Math.min(Integer.MAX_VALUE, (long)(realLength * expansionFactor))));
+	}
+	
 	public void trim(){
-		for(int i=0; i<data.length; i++){
-			data[i] = copiers[i].invoke(data[i], filledLength);
-		}
-		realLength = filledLength;
+		resize(filledLength);
 	}
 	
 	@Override
 	public Object get(int index) {
-		final Object[] stuff = new Object[data.length];
-		for(int i=0; i<stuff.length; i++){
-			stuff[i] = getRowAndCol(index, i);
-		}
-		return new PersistentArrayVector(stuff, null);
+		return new PersistentArrayVector(schema.getRow(data, index), null);
 	}
 	@Override
 	public int size() {
@@ -63,25 +91,163 @@ public class MutableSOA extends AbstractList<Object> {
 	@Override
 	public Object set(int index, Object element) {
 		final Object out = get(index);
-		for(int i=0; i<data.length; i++){
-			asets[i].invoke(data[i], index, RT.get(element, i));
-		}
+		schema.setRow(data, index, element);
+		if(sortedCol >= 0) checkOrderAt(index);
 		return out;
 	}
+	//The row is coerced before anything moves, so a bad one changes nothing
 	@Override
 	public void add(int index, Object element) {
-		if(realLength > filledLength + 1){
-			for(int col = 0; col < data.length; col++){
-				System.arraycopy(data[col], index, data[col], index+1, filledLength - index + 1);
-				asets[col].invoke(data[col], index, RT.nth(element, col));
+		final Object[] staged = blankColumns(1);
+		schema.setRow(staged, 0, element);
+		openGap(index, 1);
+		schema.copyRow(staged, 0, data, index);
+		if(sortedCol >= 0) checkOrderAt(index);
+	}
+	
+	//Columns of n rows, of the same types as ours
+	Object[] blankColumns(int n){
+		return schema.copyOf(schema.copyOf(data, 0), n);
+	}
+	
+	//Moves rows [index, filledLength) up by n, leaving junk in between
+	void openGap(int index, int n){
+		if(index < 0 || index > filledLength) throw new IndexOutOfBoundsException();
+		ensureCapacity(filledLength + n);
+		for(int col = 0; col < data.length; col++){
+			System.arraycopy(data[col], index, data[col], index + n, filledLength - index);
+		}
+		filledLength += n;
+	}
+	
+	@Override
+	public boolean addAll(Collection<?> c) {
+		return addAll(filledLength, c);
+	}
+	
+	//Makes room for all of c at once, then copies another MutableSOA's
+	//columns whole.  Anything else is coerced into columns of its own
+	//first, so that a bad row leaves us as we were.
+	@Override
+	public boolean addAll(int index, Collection<?> c) {
+		final Object[] src;
+		final int n;
+		if(c instanceof MutableSOA && ((MutableSOA)c).hasColumnsLike(this)){
+			final MutableSOA other = (MutableSOA)c;
+			n = other.filledLength;
+			//Other may be this, so take its columns before moving ours
+			src = other == this ? schema.copyOf(data, n) : other.data;
+		} else {
+			src = blankColumns(c.size());
+			int row = 0;
+			for(Object e : c) schema.setRow(src, row++, e);
+			n = row;
+		}
+		openGap(index, n);
+		for(int col = 0; col < data.length; col++) System.arraycopy(src[col], 0, data[col], index, n);
+		if(sortedCol >= 0) checkOrderIn(index, index + n);
+		return n > 0;
+	}
+	
+	boolean hasColumnsLike(MutableSOA other){
+		if(data.length != other.data.length) return false;
+		for(int col = 0; col < data.length; col++){
+			if(data[col].getClass() != other.data[col].getClass()) return false;
+		}
+		return true;
+	}
+	
+	//Appends the rows held in cols, one array per column of the same type as
+	//it and all of the same length, with one copy per column
+	public void appendColumns(Object... cols){
+		if(cols.length != data.length) throw new IllegalArgumentException("Need an array per column");
+		final int n = cols.length == 0 ? 0 : Array.getLength(cols[0]);
+		for(int col = 0; col < data.length; col++){
+			if(cols[col].getClass() != data[col].getClass()) throw new IllegalArgumentException("Column " + col + " is a " + data[col].getClass().getSimpleName());
+			if(Array.getLength(cols[col]) != n) throw new IllegalArgumentException("Columns differ in length");
+		}
+		final int start = filledLength;
+		ensureCapacity(start + n);
+		for(int col = 0; col < data.length; col++) System.arraycopy(cols[col], 0, data[col], start, n);
+		filledLength += n;
+		if(sortedCol >= 0) checkOrderIn(start, filledLength);
+	}
+	
+	//Object columns' vacated slots are nulled, so as not to hold on to them
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if(fromIndex < 0 || toIndex > filledLength || fromIndex > toIndex) throw new IndexOutOfBoundsException();
+		for(int col = 0; col < data.length; col++){
+			System.arraycopy(data[col], toIndex, data[col], fromIndex, filledLength - toIndex);
+			if(data[col] instanceof Object[]) Arrays.fill((Object[])data[col], filledLength - (toIndex - fromIndex), filledLength, null);
+		}
+		filledLength -= toIndex - fromIndex;
+	}
+	
+	@Override
+	public void clear() {
+		removeRange(0, filledLength);
+	}
+	//Rows equal to o, a List, are equal cell by cell, as with
+	//AbstractList.indexOf, but there's no row vector made per row.  If the
+	//rows are sorted by a primitive column, only those with o's value in it
+	//are looked at.
+	@Override
+	public int indexOf(Object o) {
+		if(!isRowShaped(o)) return -1;
+		final List<?> l = (List<?>)o;
+		if(sortedCol >= 0 && !(data[sortedCol] instanceof Object[])){
+			final Object key = l.get(sortedCol);
+			if(!isKeyFor(data[sortedCol], key)) return -1;
+			final int hi = upperBound(sortedCol, key);
+			for(int row = lowerBound(sortedCol, key); row < hi; row++){
+				if(rowEquals(row, l)) return row;
 			}
-			filledLength++;
+			return -1;
+		}
+		for(int row = 0; row < filledLength; row++){
+			if(rowEquals(row, l)) return row;
 		}
-		else {
-			expand();
-			add(index, element);
+		return -1;
+	}
+	
+	@Override
+	public int lastIndexOf(Object o) {
+		if(!isRowShaped(o)) return -1;
+		final List<?> l = (List<?>)o;
+		if(sortedCol >= 0 && !(data[sortedCol] instanceof Object[])){
+			final Object key = l.get(sortedCol);
+			if(!isKeyFor(data[sortedCol], key)) return -1;
+			final int lo = lowerBound(sortedCol, key);
+			for(int row = upperBound(sortedCol, key) - 1; row >= lo; row--){
+				if(rowEquals(row, l)) return row;
+			}
+			return -1;
+		}
+		for(int row = filledLength - 1; row >= 0; row--){
+			if(rowEquals(row, l)) return row;
+		}
+		return -1;
+	}
+	
+	boolean isRowShaped(Object o){
+		return o instanceof List && ((List<?>)o).size() == data.length;
+	}
+	
+	//Whether key could equal a cell of the primitive column col
+	static boolean isKeyFor(Object col, Object key){
+		if(col instanceof boolean[]) return key instanceof Boolean;
+		if(col instanceof char[]) return key instanceof Character;
+		return key instanceof Number;
+	}
+	
+	boolean rowEquals(int row, List<?> l){
+		for(int col = 0; col < data.length; col++){
+			if(!Util.equals(schema.get(data, row, col), l.get(col))) return false;
 		}
+		return true;
 	}
+	
 	@Override
 	public Object remove(int index) {
 		final Object out = get(index);
@@ -102,28 +268,147 @@ public class MutableSOA extends AbstractList<Object> {
 		return filledLength;
 	}
 	
-	//Sorts roughly in-place based on the given column number.  Uses auxiliary
-	//storage needed to sort an array of Integers, and then transient auxiliary
-	//space to copy each column.  This avoids destructuring each element
-	//repeatedly.
-	public void sortInPlaceByCol(final int col){
-		final Integer[] idxOrd = new Integer[filledLength];
-		for(int i=0;i<idxOrd.length;i++) idxOrd[i]=i;
-		Arrays.sort(idxOrd, new Comparator<Integer>() {
-			@Override
-			public int compare(Integer o1, Integer o2) {
-				return Util.compare(getRowAndCol(o1, col), getRowAndCol(o2, col));
-			}
-		});
+	public SOASchema getSchema(){
+		return schema;
+	}
+	
+	public Cursor cursor(){
+		return new Cursor(this);
+	}
+	
+	//A RowCursor that can also write, and that sees rows added after it was
+	//made.  Columns are replaced within data as they grow, so it stays valid.
+	public static class Cursor extends RowCursor {
+		final MutableSOA soa;
 		
-		for(int i=0; i<data.length; i++){
-			final Object tmp = copiers[i].invoke(data[i], realLength);
-			for(int outIndex=0; outIndex<idxOrd.length; outIndex++){
-				final int sourceIndex = idxOrd[outIndex];
-				final Object sourceVal = agets[i].invoke(data[i], sourceIndex);
-				asets[i].invoke(tmp, outIndex, sourceVal);
-			}
-			data[i] = tmp;
+		Cursor(MutableSOA soa) {
+			super(soa.data, soa.schema, 0);
+			this.soa = soa;
 		}
+		
+		void written(int col){
+			if(col == soa.sortedCol) soa.checkOrderAt(row);
+		}
+		
+		@Override
+		int count(){
+			return soa.filledLength;
+		}
+		
+		@Override
+		public Cursor seek(int row){
+			super.seek(row);
+			return this;
+		}
+		
+		public void set(int col, Object v){ schema.set(data, row, col, v); written(col); }
+		public void setBoolean(int col, boolean v){ ((boolean[])data[col])[row] = v; written(col); }
+		public void setChar(int col, char v){ ((char[])data[col])[row] = v; written(col); }
+		public void setByte(int col, byte v){ ((byte[])data[col])[row] = v; written(col); }
+		public void setShort(int col, short v){ ((short[])data[col])[row] = v; written(col); }
+		public void setInt(int col, int v){ ((int[])data[col])[row] = v; written(col); }
+		public void setLong(int col, long v){ ((long[])data[col])[row] = v; written(col); }
+		public void setFloat(int col, float v){ ((float[])data[col])[row] = v; written(col); }
+		public void setDouble(int col, double v){ ((double[])data[col])[row] = v; written(col); }
+	}
+	
+	//Sorts in place based on the given column number
+	public void sortInPlaceByCol(final int col){
+		sortInPlaceByCols(new int[]{col}, new boolean[1]);
+	}
+	
+	//Sorts in place by the columns cols, lexicographically, each descending
+	//if its flag in descending is set.  Stable.  See SOASort.
+	public void sortInPlaceByCols(int[] cols, boolean[] descending){
+		if(cols.length != descending.length) throw new IllegalArgumentException("Need a direction per column");
+		if(filledLength >= 2) SOASort.permute(data, SOASort.order(schema, data, filledLength, cols, descending), filledLength);
+		if(cols.length > 0) markSorted(cols[0], descending[0]);
+	}
+	
+	void markSorted(int col, boolean descending){
+		sortedCol = col;
+		sortedDescending = descending;
+	}
+	
+	//Declares that the rows are already in order by col, as when they were
+	//loaded that way, checking that they are.
+	public void assumeSortedBy(int col, boolean descending){
+		if(!SOASearch.isSorted(data[col], 0, filledLength, descending)) throw new IllegalArgumentException("Rows aren't in order by column " + col);
+		markSorted(col, descending);
+	}
+	
+	public boolean isSortedBy(int col){
+		return col == sortedCol && col >= 0;
+	}
+	
+	public int getSortedCol(){
+		return sortedCol;
+	}
+	
+	public boolean isSortedDescending(){
+		return sortedDescending;
+	}
+	
+	//Clears the sorted marker if row is now out of order with its neighbors
+	void checkOrderAt(int row){
+		checkOrderIn(row, row + 1);
+	}
+	
+	//Clears the sorted marker if rows [lo, hi) are now out of order with each
+	//other or their neighbors
+	void checkOrderIn(int lo, int hi){
+		final Object col = data[sortedCol];
+		if(col instanceof Object[]
+				|| !SOASearch.isSorted(col, Math.max(lo - 1, 0), Math.min(hi + 1, filledLength), sortedDescending)){
+			sortedCol = -1;
+		}
+	}
+	
+	void checkSortedBy(int col){
+		if(!isSortedBy(col)) throw new IllegalStateException("Not known to be sorted by column " + col);
+	}
+	
+	//The first row whose value in col, which the rows must be sorted by, isn't
+	//before key in that order; see SOASearch.
+	public int lowerBound(int col, long key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, false, key);
+	}
+	public int lowerBound(int col, double key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, false, key);
+	}
+	public int lowerBound(int col, Object key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, false, key);
+	}
+	
+	//The first row whose value in col is after key
+	public int upperBound(int col, long key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, true, key);
+	}
+	public int upperBound(int col, double key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, true, key);
+	}
+	public int upperBound(int col, Object key){
+		checkSortedBy(col);
+		return SOASearch.bound(data[col], filledLength, sortedDescending, true, key);
+	}
+	
+	//The rows [lo, hi) holding key in col, as {lo, hi}
+	public int[] rangeOf(int col, Object key){
+		return new int[]{lowerBound(col, key), upperBound(col, key)};
+	}
+	
+	//Reduces f over the pairs of rows, one from here and one from other,
+	//whose values in col and otherCol are equal.  Both must be sorted by
+	//them, in the same direction.  See SOASearch.mergeJoin.
+	public Object mergeJoin(int col, MutableSOA other, int otherCol, IFn f, Object init){
+		checkSortedBy(col);
+		other.checkSortedBy(otherCol);
+		if(sortedDescending != other.sortedDescending) throw new IllegalStateException("Sorted in different directions");
+		return SOASearch.mergeJoin(data[col], filledLength, other.data[otherCol], other.filledLength, sortedDescending, f, init);
 	}
 }
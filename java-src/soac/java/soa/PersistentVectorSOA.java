@@ -2,17 +2,36 @@ package soac.java.soa;
 
 import soac.java.pav.PersistentArrayVector;
 import clojure.lang.APersistentVector;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IObj;
 import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentStack;
 import clojure.lang.IPersistentVector;
 import clojure.lang.RT;
 
-public class PersistentVectorSOA extends APersistentVector {
+public class PersistentVectorSOA extends APersistentVector implements IObj, IEditableCollection {
 	public static final long serialVersionUID = 1L;
 	final IPersistentVector[] columns;
+	final IPersistentMap _meta;
 	
 	public PersistentVectorSOA(IPersistentVector[] columns) {
+		this(columns, null);
+	}
+	
+	public PersistentVectorSOA(IPersistentVector[] columns, IPersistentMap meta) {
 		this.columns = columns;
+		this._meta = meta;
+	}
+	
+	@Override
+	public IPersistentMap meta() {
+		return _meta;
+	}
+	
+	@Override
+	public PersistentVectorSOA withMeta(IPersistentMap meta) {
+		return new PersistentVectorSOA(columns, meta);
 	}
 	
 	@Override
@@ -21,7 +40,7 @@ public class PersistentVectorSOA extends APersistentVector {
 		for(int ctr=0; ctr< newCols.length; ctr++){
 			newCols[ctr] = columns[ctr].assocN(i, RT.nth(o, ctr));
 		}
-		return new PersistentVectorSOA(newCols);
+		return new PersistentVectorSOA(newCols, _meta);
 	}
 
 	@Override
@@ -30,7 +49,12 @@ public class PersistentVectorSOA extends APersistentVector {
 		for(int ctr=0; ctr< newCols.length; ctr++){
 			newCols[ctr] = columns[ctr].cons(RT.nth(o, ctr));
 		}
-		return new PersistentVectorSOA(newCols);
+		return new PersistentVectorSOA(newCols, _meta);
+	}
+
+	@Override
+	public TransientVectorSOA asTransient() {
+		return new TransientVectorSOA(columns);
 	}
 
 	@Override
@@ -44,7 +68,7 @@ public class PersistentVectorSOA extends APersistentVector {
 		for(int i=0; i<columns.length; i++){
 			newCols[i] = (IPersistentVector)columns[i].empty();
 		}
-		return new PersistentVectorSOA(newCols);
+		return new PersistentVectorSOA(newCols, _meta);
 	}
 
 	@Override
@@ -53,7 +77,7 @@ public class PersistentVectorSOA extends APersistentVector {
 		for(int ctr=0; ctr< newCols.length; ctr++){
 			newCols[ctr] = (IPersistentVector)columns[ctr].pop();
 		}
-		return new PersistentVectorSOA(newCols);
+		return new PersistentVectorSOA(newCols, _meta);
 	}
 
 	@Override
@@ -0,0 +1,51 @@
+package soac.java.soa;
+
+//A flyweight view of one row of an array-backed SOA, for reading cells
+//without allocating a row vector or boxing.  seek and next move it, and the
+//typed getters read straight from the column arrays, so a loop over one or
+//two columns allocates nothing.  Not thread-safe, but cheap - make one per
+//loop.
+public class RowCursor {
+	final Object[] data;
+	final SOASchema schema;
+	final int count;
+	int row = -1;
+
+	RowCursor(Object[] data, SOASchema schema, int count) {
+		this.data = data;
+		this.schema = schema;
+		this.count = count;
+	}
+
+	int count(){
+		return count;
+	}
+
+	public RowCursor seek(int row){
+		if(row < 0 || row >= count()) throw new IndexOutOfBoundsException();
+		this.row = row;
+		return this;
+	}
+
+	//Moves to the next row (the first, on a new cursor), returning false if
+	//there isn't one
+	public boolean next(){
+		if(row + 1 >= count()) return false;
+		row++;
+		return true;
+	}
+
+	public int row(){
+		return row;
+	}
+
+	public Object get(int col){ return schema.get(data, row, col); }
+	public boolean getBoolean(int col){ return ((boolean[])data[col])[row]; }
+	public char getChar(int col){ return ((char[])data[col])[row]; }
+	public byte getByte(int col){ return ((byte[])data[col])[row]; }
+	public short getShort(int col){ return ((short[])data[col])[row]; }
+	public int getInt(int col){ return ((int[])data[col])[row]; }
+	public long getLong(int col){ return ((long[])data[col])[row]; }
+	public float getFloat(int col){ return ((float[])data[col])[row]; }
+	public double getDouble(int col){ return ((double[])data[col])[row]; }
+}
@@ -0,0 +1,298 @@
+package soac.java.soa;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import clojure.core.ArrayManager;
+import clojure.core.Vec;
+import clojure.lang.IPersistentVector;
+
+//A file format for SOAs of primitive columns:
+// - a header of int magic, int version, int column count, an int of padding
+//   and long row count, then a byte per column of its ColumnType's ordinal,
+//   padded to 8 bytes, then a long per column of where its block starts
+// - a block per column, its cells one after another, starting on a 64 byte
+//   boundary
+//all little-endian, so a block can be mapped and read in place.  Columns are
+//written and read a chunk at a time through a direct buffer.
+public final class SOAFile {
+	private SOAFile() {}
+
+	static final int magic = 0x46414F53;
+	static final int version = 1;
+	static final int align = 64;
+	static final int chunkBytes = 1 << 20;
+
+	//What's in a file, and where
+	public static final class Header {
+		public final ColumnType[] types;
+		public final long rows;
+		final long[] offsets;
+
+		Header(ColumnType[] types, long rows) {
+			this.types = types;
+			this.rows = rows;
+			this.offsets = new long[types.length];
+			long pos = alignUp(offsetsOffset(types.length) + 8L * types.length);
+			for(int col = 0; col < types.length; col++){
+				offsets[col] = pos;
+				pos = alignUp(pos + (rows << types[col].shift));
+			}
+		}
+
+		Header(ColumnType[] types, long rows, long[] offsets) {
+			this.types = types;
+			this.rows = rows;
+			this.offsets = offsets;
+		}
+
+		long end(){
+			final int last = types.length - 1;
+			return last < 0 ? alignUp(offsetsOffset(0)) : alignUp(offsets[last] + (rows << types[last].shift));
+		}
+
+		ByteBuffer toBuffer(){
+			final ByteBuffer b = ByteBuffer.allocate(offsets.length * 8 + offsetsOffset(types.length)).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(magic).putInt(version).putInt(types.length).putInt(0).putLong(rows);
+			for(ColumnType t : types) b.put((byte)t.ordinal());
+			b.position(offsetsOffset(types.length));
+			for(long off : offsets) b.putLong(off);
+			b.flip();
+			return b;
+		}
+	}
+
+	static long alignUp(long pos){
+		return (pos + align - 1) & -align;
+	}
+
+	static int offsetsOffset(int columns){
+		return (24 + columns + 7) & ~7;
+	}
+
+	public static Header readHeader(FileChannel ch) throws IOException {
+		final ByteBuffer fixed = readFully(ch, 0, 24);
+		if(fixed.getInt(0) != magic) throw new IOException("Not an SOA file");
+		if(fixed.getInt(4) != version) throw new IOException("Unknown SOA file version " + fixed.getInt(4));
+		final int columns = fixed.getInt(8);
+		if(columns < 0 || ((24L + columns + 7) & ~7L) + 8L * columns > ch.size()) throw new IOException("Bad column count " + columns);
+		final long rows = fixed.getLong(16);
+		final ByteBuffer rest = readFully(ch, 24, offsetsOffset(columns) - 24 + 8 * columns);
+		final ColumnType[] types = new ColumnType[columns];
+		for(int col = 0; col < columns; col++) types[col] = ColumnType.ofOrdinal(rest.get(col));
+		final long[] offsets = new long[columns];
+		for(int col = 0; col < columns; col++) offsets[col] = rest.getLong(offsetsOffset(columns) - 24 + 8 * col);
+		return new Header(types, rows, offsets);
+	}
+
+	static ByteBuffer readFully(FileChannel ch, long pos, int n) throws IOException {
+		final ByteBuffer b = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+		while(b.hasRemaining()){
+			if(ch.read(b, pos + b.position()) < 0) throw new EOFException();
+		}
+		b.flip();
+		return b;
+	}
+
+	static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+		while(b.hasRemaining()) pos += ch.write(b, pos);
+	}
+
+	//Puts n cells of col from row on into buf
+	static abstract class Source {
+		abstract void fill(int col, long row, ByteBuffer buf, int n);
+	}
+
+	static void write(File f, Header h, Source src) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			final FileChannel ch = raf.getChannel();
+			writeFully(ch, h.toBuffer(), 0);
+			final ByteBuffer buf = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+			for(int col = 0; col < h.types.length; col++){
+				final int perChunk = chunkBytes >> h.types[col].shift;
+				long pos = h.offsets[col];
+				for(long row = 0; row < h.rows; row += perChunk){
+					final int n = (int)Math.min(perChunk, h.rows - row);
+					buf.clear();
+					src.fill(col, row, buf, n);
+					buf.flip();
+					final int bytes = buf.remaining();
+					writeFully(ch, buf, pos);
+					pos += bytes;
+				}
+			}
+			raf.setLength(h.end());
+		} finally {
+			raf.close();
+		}
+	}
+
+	//Writes the first rows of arrays, one primitive array per column
+	public static void write(File f, final Object[] columns, int rows) throws IOException {
+		final ColumnType[] types = new ColumnType[columns.length];
+		for(int col = 0; col < columns.length; col++){
+			types[col] = ColumnType.ofArray(columns[col]);
+			if(types[col] == null) throw new IllegalArgumentException("Only primitive columns can be written");
+		}
+		write(f, new Header(types, rows), new Source(){
+			@Override
+			void fill(int col, long row, ByteBuffer buf, int n){
+				putCells(buf, columns[col], (int)row, n);
+			}
+		});
+	}
+
+	public static void write(File f, MutableSOA soa) throws IOException {
+		write(f, soa.data, soa.filledLength);
+	}
+
+	public static void write(File f, ImmutableArraySOA soa) throws IOException {
+		write(f, soa.data, soa.filledLength);
+	}
+
+	//Copies straight from the SOA's segments
+	public static void write(File f, final BufferSOA soa) throws IOException {
+		write(f, new Header(soa.types, soa.size), new Source(){
+			@Override
+			void fill(int col, long row, ByteBuffer buf, int n){
+				final int shift = soa.types[col].shift;
+				while(n > 0){
+					final int len = (int)Math.min(n, (1L << soa.segmentShift) - (row & soa.segmentMask));
+					final ByteBuffer src = soa.at(col, row);
+					src.limit(src.position() + (len << shift));
+					buf.put(src);
+					row += len;
+					n -= len;
+				}
+			}
+		});
+	}
+
+	//Each column must be a vector-of, whose leaves are copied whole
+	public static void write(File f, PersistentVectorSOA soa) throws IOException {
+		final int rows = soa.count();
+		final Object[] columns = new Object[soa.columns.length];
+		for(int col = 0; col < columns.length; col++){
+			final IPersistentVector v = soa.columns[col];
+			if(!(v instanceof Vec)) throw new IllegalArgumentException("Only primitive columns can be written");
+			final Vec vec = (Vec)v;
+			final Object out = ((ArrayManager)vec.am).array(rows);
+			for(int i = 0; i < rows; i += 32) System.arraycopy(vec.arrayFor(i), 0, out, i, Math.min(32, rows - i));
+			columns[col] = out;
+		}
+		write(f, columns, rows);
+	}
+
+	static void putCells(ByteBuffer buf, Object arr, int off, int n){
+		final int start = buf.position();
+		final int width;
+		if(arr instanceof long[]){ buf.asLongBuffer().put((long[])arr, off, n); width = 8; }
+		else if(arr instanceof double[]){ buf.asDoubleBuffer().put((double[])arr, off, n); width = 8; }
+		else if(arr instanceof int[]){ buf.asIntBuffer().put((int[])arr, off, n); width = 4; }
+		else if(arr instanceof float[]){ buf.asFloatBuffer().put((float[])arr, off, n); width = 4; }
+		else if(arr instanceof short[]){ buf.asShortBuffer().put((short[])arr, off, n); width = 2; }
+		else if(arr instanceof char[]){ buf.asCharBuffer().put((char[])arr, off, n); width = 2; }
+		else if(arr instanceof byte[]){ buf.put((byte[])arr, off, n); width = 1; }
+		else {
+			final boolean[] a = (boolean[])arr;
+			for(int i = 0; i < n; i++) buf.put((byte)(a[off + i] ? 1 : 0));
+			width = 1;
+		}
+		buf.position(start + n * width);
+	}
+
+	static void getCells(ByteBuffer buf, Object arr, int off, int n){
+		if(arr instanceof long[]) buf.asLongBuffer().get((long[])arr, off, n);
+		else if(arr instanceof double[]) buf.asDoubleBuffer().get((double[])arr, off, n);
+		else if(arr instanceof int[]) buf.asIntBuffer().get((int[])arr, off, n);
+		else if(arr instanceof float[]) buf.asFloatBuffer().get((float[])arr, off, n);
+		else if(arr instanceof short[]) buf.asShortBuffer().get((short[])arr, off, n);
+		else if(arr instanceof char[]) buf.asCharBuffer().get((char[])arr, off, n);
+		else if(arr instanceof byte[]) buf.get((byte[])arr, off, n);
+		else {
+			final boolean[] a = (boolean[])arr;
+			for(int i = 0; i < n; i++) a[off + i] = buf.get(buf.position() + i) != 0;
+		}
+	}
+
+	static Object newColumn(ColumnType t, int n){
+		switch(t){
+		case BOOLEAN: return new boolean[n];
+		case CHAR: return new char[n];
+		case BYTE: return new byte[n];
+		case SHORT: return new short[n];
+		case INT: return new int[n];
+		case LONG: return new long[n];
+		case FLOAT: return new float[n];
+		default: return new double[n];
+		}
+	}
+
+	//Reads every column into an array of its type, exactly as long as the
+	//row count
+	public static Object[] readColumns(File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel ch = raf.getChannel();
+			final Header h = readHeader(ch);
+			if(h.rows > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many rows for arrays; map the file instead");
+			final int rows = (int)h.rows;
+			final Object[] columns = new Object[h.types.length];
+			final ByteBuffer buf = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+			for(int col = 0; col < columns.length; col++){
+				final Object out = newColumn(h.types[col], rows);
+				final int shift = h.types[col].shift;
+				final int perChunk = chunkBytes >> shift;
+				for(int row = 0; row < rows; row += perChunk){
+					final int n = Math.min(perChunk, rows - row);
+					buf.clear();
+					buf.limit(n << shift);
+					final long pos = h.offsets[col] + ((long)row << shift);
+					while(buf.hasRemaining()){
+						if(ch.read(buf, pos + buf.position()) < 0) throw new EOFException();
+					}
+					buf.flip();
+					getCells(buf, out, row, n);
+				}
+				columns[col] = out;
+			}
+			return columns;
+		} finally {
+			raf.close();
+		}
+	}
+
+	//A read-only BufferSOA over a mapping of the file, which copies nothing.
+	//Segments are as large as mappings allow.
+	public static BufferSOA map(File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel ch = raf.getChannel();
+			final Header h = readHeader(ch);
+			int widest = 0;
+			for(ColumnType t : h.types) widest = Math.max(widest, t.shift);
+			final int segmentShift = 30 - widest;
+			final int nSegments = (int)((h.rows + (1L << segmentShift) - 1) >>> segmentShift);
+			final ByteBuffer[][] segments = new ByteBuffer[h.types.length][nSegments];
+			for(int col = 0; col < h.types.length; col++){
+				final int shift = h.types[col].shift;
+				for(int i = 0; i < nSegments; i++){
+					final long first = (long)i << segmentShift;
+					final long rows = Math.min(1L << segmentShift, h.rows - first);
+					segments[col][i] = ch.map(FileChannel.MapMode.READ_ONLY, h.offsets[col] + (first << shift), rows << shift)
+							.order(ByteOrder.LITTLE_ENDIAN);
+				}
+			}
+			return new BufferSOA(h.types, segmentShift, SegmentSource.fixed(), segments, h.rows);
+		} finally {
+			raf.close();
+		}
+	}
+}
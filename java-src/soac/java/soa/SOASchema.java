@@ -0,0 +1,21 @@
+package soac.java.soa;
+
+//Everything the array-backed SOAs need to do to their columns that depends
+//on the columns' types.  data is an SOA's array of columns.  soac.soa
+//compiles one of these per list of column types, with each column's array
+//type fixed in the generated code, so nothing is boxed or dispatched through
+//an IFn except where an Object is passed in or out.
+public interface SOASchema {
+	Object get(Object[] data, int row, int col);
+	void set(Object[] data, int row, int col, Object v);
+	//The row as an array of boxed values
+	Object[] getRow(Object[] data, int row);
+	//Sets the row from v, anything RT.nth takes
+	void setRow(Object[] data, int row, Object v);
+	//Copies of every column, truncated or padded to length
+	Object[] copyOf(Object[] data, int length);
+	//Copies row srcRow of every column of src into row destRow of dest
+	void copyRow(Object[] src, int srcRow, Object[] dest, int destRow);
+	//As Util.compare, on two rows of one column
+	int compare(Object[] data, int col, int row1, int row2);
+}
@@ -0,0 +1,139 @@
+package soac.java.soa;
+
+import java.lang.reflect.Array;
+
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+//Searches over the rows [0, n) of array-backed SOA columns sorted, ascending
+//or descending, in the order SOASort leaves them.
+// - bound is a binary search for the first row not before key (the lower
+//   bound) or the first row after it (the upper bound); the rows between the
+//   two hold key.  It reads the column's array directly.
+// - mergeJoin walks two such columns in step and calls f with the row numbers
+//   of every pair whose values are equal, as an inner join would pair them.
+//Values in primitive columns compare numerically, whatever the width, so a
+//long key finds a row of an int or double column holding the same number.
+//Object columns compare with Util.compare.
+public final class SOASearch {
+	private SOASearch() {}
+
+	static boolean isNumeric(Object a){
+		return ColumnReduce.isIntegral(a) || ColumnReduce.isFloating(a);
+	}
+
+	static double asDouble(Object a, int i){
+		return ColumnReduce.isIntegral(a) ? ColumnReduce.longAt(a, i) : ColumnReduce.doubleAt(a, i);
+	}
+
+	//Compares a[i] to b[j], a and b being columns of possibly different types
+	static int compareCells(Object a, int i, Object b, int j){
+		if(a instanceof long[] && b instanceof long[]) return Long.compare(((long[])a)[i], ((long[])b)[j]);
+		if(ColumnReduce.isIntegral(a) && ColumnReduce.isIntegral(b)){
+			return Long.compare(ColumnReduce.longAt(a, i), ColumnReduce.longAt(b, j));
+		}
+		if(isNumeric(a) && isNumeric(b)) return Double.compare(asDouble(a, i), asDouble(b, j));
+		return Util.compare(Array.get(a, i), Array.get(b, j));
+	}
+
+	static int compareToKey(Object a, int i, long key){
+		if(a instanceof long[]) return Long.compare(((long[])a)[i], key);
+		if(ColumnReduce.isIntegral(a)) return Long.compare(ColumnReduce.longAt(a, i), key);
+		if(ColumnReduce.isFloating(a)) return Double.compare(ColumnReduce.doubleAt(a, i), key);
+		if(a instanceof char[]) return Long.compare(((char[])a)[i], key);
+		return Util.compare(Array.get(a, i), key);
+	}
+
+	static int compareToKey(Object a, int i, double key){
+		if(a instanceof double[]) return Double.compare(((double[])a)[i], key);
+		if(isNumeric(a)) return Double.compare(asDouble(a, i), key);
+		if(a instanceof char[]) return Double.compare(((char[])a)[i], key);
+		return Util.compare(Array.get(a, i), key);
+	}
+
+	static int compareToKey(Object a, int i, Object key){
+		return Util.compare(Array.get(a, i), key);
+	}
+
+	//Whether a row comparing c to the key comes before the bound
+	static boolean precedes(int c, boolean descending, boolean upper){
+		if(descending) c = -c;
+		return upper ? c <= 0 : c < 0;
+	}
+
+	public static int bound(Object col, int n, boolean descending, boolean upper, long key){
+		int lo = 0, hi = n;
+		while(lo < hi){
+			final int mid = (lo + hi) >>> 1;
+			if(precedes(compareToKey(col, mid, key), descending, upper)) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	public static int bound(Object col, int n, boolean descending, boolean upper, double key){
+		int lo = 0, hi = n;
+		while(lo < hi){
+			final int mid = (lo + hi) >>> 1;
+			if(precedes(compareToKey(col, mid, key), descending, upper)) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	//Fixed-width integer keys search as longs and other numbers as doubles,
+	//where the column is numeric
+	public static int bound(Object col, int n, boolean descending, boolean upper, Object key){
+		if(isNumeric(col) || col instanceof char[]){
+			if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte){
+				return bound(col, n, descending, upper, ((Number)key).longValue());
+			}
+			if(key instanceof Number) return bound(col, n, descending, upper, ((Number)key).doubleValue());
+		}
+		int lo = 0, hi = n;
+		while(lo < hi){
+			final int mid = (lo + hi) >>> 1;
+			if(precedes(compareToKey(col, mid, key), descending, upper)) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	//Whether rows [lo, hi) of col are in order
+	public static boolean isSorted(Object col, int lo, int hi, boolean descending){
+		for(int i=lo + 1; i<hi; i++){
+			if(precedes(compareCells(col, i, col, i - 1), descending, false)) return false;
+		}
+		return true;
+	}
+
+	//Reduces f over the pairs (left row, right row) whose values in lcol and
+	//rcol are equal, in order, as (f acc l r).  Both columns must be sorted in
+	//the same direction.  An IFn.OLLO f is called without boxing.
+	public static Object mergeJoin(Object lcol, int ln, Object rcol, int rn, boolean descending, IFn f, Object init){
+		final IFn.OLLO pf = f instanceof IFn.OLLO ? (IFn.OLLO)f : null;
+		Object acc = init;
+		int i = 0, j = 0;
+		while(i < ln && j < rn){
+			int c = compareCells(lcol, i, rcol, j);
+			if(descending) c = -c;
+			if(c < 0) i++;
+			else if(c > 0) j++;
+			else {
+				int iEnd = i + 1, jEnd = j + 1;
+				while(iEnd < ln && compareCells(lcol, i, lcol, iEnd) == 0) iEnd++;
+				while(jEnd < rn && compareCells(rcol, j, rcol, jEnd) == 0) jEnd++;
+				for(int l=i; l<iEnd; l++){
+					for(int r=j; r<jEnd; r++){
+						acc = pf != null ? pf.invokePrim(acc, l, r) : f.invoke(acc, (long)l, (long)r);
+						if(RT.isReduced(acc)) return ColumnReduce.unreduced(acc);
+					}
+				}
+				i = iEnd;
+				j = jEnd;
+			}
+		}
+		return acc;
+	}
+}
@@ -0,0 +1,207 @@
+package soac.java.soa;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+
+//Sorting for the array-backed SOAs: works out the sorted order of the rows
+//as an int[] permutation, then applies it to each column in turn.
+// - Keys are any number of columns, each ascending or descending, compared
+//   lexicographically.
+// - If every key column is primitive, the order comes from LSD radix sorts,
+//   one per key from the least significant up, each on the column's values
+//   mapped to unsigned longs that order as the values do.  Passes where
+//   every row has the same digit are skipped, so narrow and small-ranged
+//   columns cost less.
+// - Otherwise it's a merge sort of the permutation with a per-column typed
+//   comparator.
+//Both are stable.  Floating point columns order as Double.compare does:
+//-0.0 before 0.0, and NaN last.
+public final class SOASort {
+	private SOASort() {}
+
+	static final int digitBits = 11;
+	static final int radix = 1 << digitBits;
+	static final int passes = (64 + digitBits - 1) / digitBits;
+
+	//The rows [0, n) of data, in order by the key columns cols
+	public static int[] order(SOASchema schema, Object[] data, int n, int[] cols, boolean[] descending){
+		final int[] perm = new int[n];
+		for(int i=0; i<n; i++) perm[i] = i;
+		boolean radixable = true;
+		for(int col : cols) radixable &= !(data[col] instanceof Object[]);
+		if(radixable){
+			final int[] permScratch = new int[n];
+			final long[] keys = new long[n];
+			final long[] keyScratch = new long[n];
+			for(int k=cols.length - 1; k>=0; k--){
+				radixSort(data[cols[k]], descending[k], perm, permScratch, keys, keyScratch, n);
+			}
+		} else {
+			mergeSort(perm, new int[n], n, new RowOrder(schema, data, cols, descending));
+		}
+		return perm;
+	}
+
+	//Maps v to an unsigned long that orders as v does
+	static long sortableKey(Object col, int row){
+		if(col instanceof long[]) return ((long[])col)[row] ^ Long.MIN_VALUE;
+		if(col instanceof int[]) return ((int[])col)[row] ^ Long.MIN_VALUE;
+		if(col instanceof double[]) return sortableBits(((double[])col)[row]);
+		if(col instanceof float[]) return sortableBits(((float[])col)[row]);
+		if(col instanceof short[]) return ((short[])col)[row] ^ Long.MIN_VALUE;
+		if(col instanceof byte[]) return ((byte[])col)[row] ^ Long.MIN_VALUE;
+		if(col instanceof char[]) return ((char[])col)[row];
+		return ((boolean[])col)[row] ? 1 : 0;
+	}
+
+	static long sortableBits(double d){
+		final long bits = Double.doubleToLongBits(d);
+		return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+	}
+
+	//Stably reorders perm[0, n) by col's values at those rows
+	static void radixSort(Object col, boolean descending, int[] perm, int[] permScratch,
+			long[] keys, long[] keyScratch, int n){
+		if(n == 0) return;
+		final long flip = descending ? -1L : 0L;
+		if(col instanceof long[]){
+			final long[] c = (long[])col;
+			for(int i=0; i<n; i++) keys[i] = (c[perm[i]] ^ Long.MIN_VALUE) ^ flip;
+		} else if(col instanceof double[]){
+			final double[] c = (double[])col;
+			for(int i=0; i<n; i++) keys[i] = sortableBits(c[perm[i]]) ^ flip;
+		} else if(col instanceof int[]){
+			final int[] c = (int[])col;
+			for(int i=0; i<n; i++) keys[i] = (c[perm[i]] ^ Long.MIN_VALUE) ^ flip;
+		} else {
+			for(int i=0; i<n; i++) keys[i] = sortableKey(col, perm[i]) ^ flip;
+		}
+		//Every pass's histogram in one read of the keys
+		final int[][] counts = new int[passes][radix];
+		for(int i=0; i<n; i++){
+			final long key = keys[i];
+			for(int p=0; p<passes; p++) counts[p][(int)(key >>> (p * digitBits)) & (radix - 1)]++;
+		}
+		int[] fromPerm = perm, toPerm = permScratch;
+		long[] fromKeys = keys, toKeys = keyScratch;
+		for(int p=0; p<passes; p++){
+			final int[] count = counts[p];
+			final int shift = p * digitBits;
+			if(count[(int)(fromKeys[0] >>> shift) & (radix - 1)] == n) continue;
+			int total = 0;
+			for(int d=0; d<radix; d++){
+				final int c = count[d];
+				count[d] = total;
+				total += c;
+			}
+			for(int i=0; i<n; i++){
+				final long key = fromKeys[i];
+				final int dest = count[(int)(key >>> shift) & (radix - 1)]++;
+				toKeys[dest] = key;
+				toPerm[dest] = fromPerm[i];
+			}
+			final int[] tp = fromPerm; fromPerm = toPerm; toPerm = tp;
+			final long[] tk = fromKeys; fromKeys = toKeys; toKeys = tk;
+		}
+		if(fromPerm != perm) System.arraycopy(fromPerm, 0, perm, 0, n);
+	}
+
+	//Lexicographic order of two rows by the key columns
+	static final class RowOrder {
+		final SOASchema schema;
+		final Object[] data;
+		final int[] cols;
+		final boolean[] descending;
+
+		RowOrder(SOASchema schema, Object[] data, int[] cols, boolean[] descending) {
+			this.schema = schema;
+			this.data = data;
+			this.cols = cols;
+			this.descending = descending;
+		}
+
+		int compare(int r1, int r2){
+			for(int k=0; k<cols.length; k++){
+				final int c = compareCol(data[cols[k]], cols[k], r1, r2);
+				if(c != 0) return descending[k] ? -c : c;
+			}
+			return 0;
+		}
+
+		int compareCol(Object col, int colIdx, int r1, int r2){
+			if(col instanceof long[]) return Long.compare(((long[])col)[r1], ((long[])col)[r2]);
+			if(col instanceof double[]) return Double.compare(((double[])col)[r1], ((double[])col)[r2]);
+			if(col instanceof int[]) return Integer.compare(((int[])col)[r1], ((int[])col)[r2]);
+			if(col instanceof Object[]) return schema.compare(data, colIdx, r1, r2);
+			return Long.compare(sortableKey(col, r1) ^ Long.MIN_VALUE, sortableKey(col, r2) ^ Long.MIN_VALUE);
+		}
+	}
+
+	//Stable bottom-up merge sort of perm[0, n), insertion sorting short runs
+	static void mergeSort(int[] perm, int[] scratch, int n, RowOrder order){
+		final int run = 32;
+		for(int lo=0; lo<n; lo+=run){
+			final int hi = Math.min(n, lo + run);
+			for(int i=lo + 1; i<hi; i++){
+				final int r = perm[i];
+				int j = i - 1;
+				while(j >= lo && order.compare(perm[j], r) > 0){
+					perm[j + 1] = perm[j];
+					j--;
+				}
+				perm[j + 1] = r;
+			}
+		}
+		int[] from = perm, to = scratch;
+		for(int width=run; width<n; width<<=1){
+			for(int lo=0; lo<n; lo+=2 * width){
+				final int mid = Math.min(n, lo + width), hi = Math.min(n, lo + 2 * width);
+				int i = lo, j = mid, out = lo;
+				while(i < mid && j < hi) to[out++] = order.compare(from[j], from[i]) < 0 ? from[j++] : from[i++];
+				while(i < mid) to[out++] = from[i++];
+				while(j < hi) to[out++] = from[j++];
+			}
+			final int[] t = from; from = to; to = t;
+		}
+		if(from != perm) System.arraycopy(from, 0, perm, 0, n);
+	}
+
+	//Rearranges rows [0, n) of every column so that row i holds what row
+	//perm[i] did.  Each column is gathered into a scratch array and copied
+	//back, so the columns keep their identity; there's one scratch array per
+	//column type, reused.  (Following perm's cycles in place would need no
+	//scratch, but its chains of dependent random reads make it around ten
+	//times slower on a large shuffled column.)
+	public static void permute(Object[] data, int[] perm, int n){
+		final Map<Class<?>, Object> scratch = new HashMap<Class<?>, Object>();
+		for(Object col : data){
+			final Class<?> type = col.getClass().getComponentType();
+			Object out = scratch.get(type);
+			if(out == null){
+				out = Array.newInstance(type, n);
+				scratch.put(type, out);
+			}
+			gather(col, perm, n, out);
+			System.arraycopy(out, 0, col, 0, n);
+		}
+	}
+
+	static void gather(Object col, int[] perm, int n, Object out){
+		if(col instanceof long[]){
+			final long[] a = (long[])col, o = (long[])out;
+			for(int i=0; i<n; i++) o[i] = a[perm[i]];
+		} else if(col instanceof double[]){
+			final double[] a = (double[])col, o = (double[])out;
+			for(int i=0; i<n; i++) o[i] = a[perm[i]];
+		} else if(col instanceof int[]){
+			final int[] a = (int[])col, o = (int[])out;
+			for(int i=0; i<n; i++) o[i] = a[perm[i]];
+		} else if(col instanceof Object[]){
+			final Object[] a = (Object[])col, o = (Object[])out;
+			for(int i=0; i<n; i++) o[i] = a[perm[i]];
+		} else {
+			for(int i=0; i<n; i++) System.arraycopy(col, perm[i], out, i, 1);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package soac.java.soa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Where a BufferSOA's column segments come from, and where it records its row
+//count, if anywhere.  Segments are always little-endian.
+public abstract class SegmentSource implements Closeable {
+	//A segment of the given size, the index'th of column col
+	abstract ByteBuffer segment(int col, int index, int bytes) throws IOException;
+
+	void sizeChanged(long size){}
+
+	//Writes everything out to storage, for sources that have any
+	public void force(){}
+
+	@Override
+	public void close() throws IOException {}
+
+	//Direct buffers, freed along with the SOA
+	public static SegmentSource direct(){
+		return new SegmentSource(){
+			@Override
+			ByteBuffer segment(int col, int index, int bytes){
+				return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		};
+	}
+
+	//None: the SOA can't grow, shrink or (given read-only segments) change
+	public static SegmentSource fixed(){
+		return new SegmentSource(){
+			@Override
+			ByteBuffer segment(int col, int index, int bytes){
+				throw new UnsupportedOperationException("Fixed size SOA");
+			}
+
+			@Override
+			void sizeChanged(long size){
+				throw new UnsupportedOperationException("Fixed size SOA");
+			}
+		};
+	}
+
+	//A directory holding a file per column, mapped a segment at a time, and a
+	//meta file with the layout and row count:
+	// int magic, int version, int segmentShift, int column count,
+	// a byte per column of its ColumnType's ordinal, padding to 8 bytes,
+	// long row count
+	//all little-endian.  The row count is kept in a mapping of the meta file,
+	//so updating it is a single write.
+	static final class Mapped extends SegmentSource {
+		static final int magic = 0x53414F53;
+		static final int version = 1;
+
+		final File dir;
+		final RandomAccessFile[] files;
+		final RandomAccessFile metaFile;
+		final MappedByteBuffer meta;
+		final int sizeOffset;
+
+		Mapped(File dir, int columns) throws IOException {
+			this.dir = dir;
+			this.files = new RandomAccessFile[columns];
+			this.sizeOffset = sizeOffset(columns);
+			this.metaFile = new RandomAccessFile(new File(dir, "meta"), "rw");
+			this.meta = metaFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeOffset + 8);
+			meta.order(ByteOrder.LITTLE_ENDIAN);
+			for(int col = 0; col < columns; col++) files[col] = new RandomAccessFile(new File(dir, col + ".col"), "rw");
+		}
+
+		static int sizeOffset(int columns){
+			return (16 + columns + 7) & ~7;
+		}
+
+		static BufferSOA create(File dir, ColumnType[] types, int segmentShift) throws IOException {
+			if(new File(dir, "meta").exists()) throw new IllegalArgumentException(dir + " already holds an SOA");
+			if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+			final Mapped m = new Mapped(dir, types.length);
+			m.meta.putInt(0, magic);
+			m.meta.putInt(4, version);
+			m.meta.putInt(8, segmentShift);
+			m.meta.putInt(12, types.length);
+			for(int col = 0; col < types.length; col++) m.meta.put(16 + col, (byte)types[col].ordinal());
+			m.sizeChanged(0);
+			return new BufferSOA(types, segmentShift, m, new ByteBuffer[types.length][0], 0);
+		}
+
+		static BufferSOA open(File dir) throws IOException {
+			final ColumnType[] types;
+			final RandomAccessFile f = new RandomAccessFile(new File(dir, "meta"), "r");
+			try {
+				final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+				f.getChannel().read(header, 0);
+				if(header.getInt(0) != magic) throw new IOException(dir + " doesn't hold an SOA");
+				if(header.getInt(4) != version) throw new IOException("Unknown SOA version " + header.getInt(4));
+				//Checked before mapping anything, so a bad count or type leaves
+				//nothing open
+				final int columns = header.getInt(12);
+				if(columns < 0 || ((16L + columns + 7) & ~7L) + 8 > f.length()) throw new IOException("Bad column count " + columns);
+				types = new ColumnType[columns];
+				final ByteBuffer codes = ByteBuffer.allocate(types.length);
+				f.getChannel().read(codes, 16);
+				for(int col = 0; col < types.length; col++) types[col] = ColumnType.ofOrdinal(codes.get(col));
+			} finally {
+				f.close();
+			}
+			final int columns = types.length;
+			final Mapped m = new Mapped(dir, columns);
+			final int segmentShift = m.meta.getInt(8);
+			final long size = m.meta.getLong(m.sizeOffset);
+			final int nSegments = (int)((size + (1L << segmentShift) - 1) >>> segmentShift);
+			final ByteBuffer[][] segments = new ByteBuffer[columns][nSegments];
+			for(int col = 0; col < columns; col++){
+				for(int i = 0; i < nSegments; i++) segments[col][i] = m.segment(col, i, 1 << (segmentShift + types[col].shift));
+			}
+			return new BufferSOA(types, segmentShift, m, segments, size);
+		}
+
+		@Override
+		ByteBuffer segment(int col, int index, int bytes) throws IOException {
+			return files[col].getChannel().map(FileChannel.MapMode.READ_WRITE, (long)index * bytes, bytes)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		@Override
+		void sizeChanged(long size){
+			meta.putLong(sizeOffset, size);
+		}
+
+		//Only the meta file; the SOA forces its own segments
+		@Override
+		public void force(){
+			meta.force();
+		}
+
+		//Mappings stay valid until they're collected, as Java can't unmap them
+		@Override
+		public void close() throws IOException {
+			force();
+			metaFile.close();
+			for(RandomAccessFile f : files) f.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package soac.java.soa;
+
+import soac.java.pav.PersistentArrayVector;
+import soac.java.util.TransientVec;
+import clojure.lang.AFn;
+import clojure.lang.Counted;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientVector;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+//The editable counterpart to PersistentVectorSOA: a transient per column -
+//PersistentVector's own, or a TransientVec for vector-of columns - so that a
+//row is appended by writing into each column's tail in place, rather than by
+//copying a path and a wrapper per column.  persistent! freezes each column,
+//and is O(columns).  The columns' transients enforce ownership.
+public class TransientVectorSOA extends AFn implements ITransientVector, Counted {
+	final ITransientVector[] columns;
+
+	TransientVectorSOA(IPersistentVector[] columns) {
+		this.columns = new ITransientVector[columns.length];
+		for(int i=0; i<columns.length; i++) this.columns[i] = TransientVec.transientOf(columns[i]);
+	}
+
+	@Override
+	public TransientVectorSOA conj(Object o) {
+		for(int ctr=0; ctr<columns.length; ctr++){
+			columns[ctr] = (ITransientVector)columns[ctr].conj(RT.nth(o, ctr));
+		}
+		return this;
+	}
+
+	@Override
+	public TransientVectorSOA assocN(int i, Object o) {
+		for(int ctr=0; ctr<columns.length; ctr++){
+			columns[ctr] = columns[ctr].assocN(i, RT.nth(o, ctr));
+		}
+		return this;
+	}
+
+	@Override
+	public TransientVectorSOA assoc(Object key, Object val) {
+		if(Util.isInteger(key)) return assocN(((Number)key).intValue(), val);
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	@Override
+	public TransientVectorSOA pop() {
+		for(int ctr=0; ctr<columns.length; ctr++){
+			columns[ctr] = columns[ctr].pop();
+		}
+		return this;
+	}
+
+	@Override
+	public PersistentVectorSOA persistent() {
+		final IPersistentVector[] frozen = new IPersistentVector[columns.length];
+		for(int ctr=0; ctr<columns.length; ctr++){
+			frozen[ctr] = (IPersistentVector)columns[ctr].persistent();
+		}
+		return new PersistentVectorSOA(frozen);
+	}
+
+	@Override
+	public int count() {
+		return columns[0].count();
+	}
+
+	@Override
+	public Object nth(int i) {
+		final Object[] stuff = new Object[columns.length];
+		for(int ctr=0; ctr<stuff.length; ctr++){
+			stuff[ctr] = columns[ctr].nth(i);
+		}
+		return new PersistentArrayVector(stuff, null);
+	}
+
+	@Override
+	public Object nth(int i, Object notFound) {
+		if(i >= 0 && i < count()) return nth(i);
+		return notFound;
+	}
+
+	@Override
+	public Object valAt(Object key) {
+		return valAt(key, null);
+	}
+
+	@Override
+	public Object valAt(Object key, Object notFound) {
+		if(Util.isInteger(key)) return nth(((Number)key).intValue(), notFound);
+		return notFound;
+	}
+
+	@Override
+	public Object invoke(Object arg1) {
+		if(Util.isInteger(arg1)) return nth(((Number)arg1).intValue());
+		throw new IllegalArgumentException("Key must be integer");
+	}
+}
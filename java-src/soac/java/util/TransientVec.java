@@ -0,0 +1,275 @@
+package soac.java.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import clojure.core.ArrayManager;
+import clojure.core.Vec;
+import clojure.core.VecNode;
+import clojure.lang.AFn;
+import clojure.lang.Counted;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientVector;
+import clojure.lang.Util;
+
+//A transient for clojure.core.Vec (aka gvec or vector-of), which doesn't have
+//one of its own.  This is a straight port of PersistentVector.TransientVector
+//onto the VecNode tree: nodes we own are tagged with our edit token and are
+//modified in place, everything else is copied the first time it's touched.
+//VecNode.edit is otherwise unused by Vec, so persistent! is O(1) and the
+//resulting Vec shares everything we built.
+public class TransientVec extends AFn implements ITransientVector, Counted {
+	final ArrayManager am;
+	final AtomicReference<Thread> edit;
+	int cnt;
+	int shift;
+	VecNode root;
+	//Always a full 32-element array, unlike Vec's
+	Object tail;
+
+	public TransientVec(Vec v) {
+		this.am = (ArrayManager)v.am;
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.cnt = v.cnt;
+		this.shift = v.shift;
+		this.root = new VecNode(edit, ((Object[])((VecNode)v.root).arr).clone());
+		this.tail = am.array(32);
+		System.arraycopy(v.tail, 0, tail, 0, am.alength(v.tail));
+	}
+
+	//A transient of v, whether it has its own or, as a Vec, uses ours
+	public static ITransientVector transientOf(IPersistentVector v){
+		if(v instanceof IEditableCollection) return (ITransientVector)((IEditableCollection)v).asTransient();
+		if(v instanceof Vec) return new TransientVec((Vec)v);
+		throw new UnsupportedOperationException("No transient available for " + v.getClass().getName());
+	}
+
+	void ensureEditable(){
+		final Thread owner = edit.get();
+		if(owner == Thread.currentThread()) return;
+		if(owner != null) throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	//Leaves hold primitive arrays, internal nodes hold Object[]s of VecNodes
+	VecNode ensureEditable(VecNode node, int level){
+		if(node.edit == edit) return node;
+		if(level == 0) return new VecNode(edit, am.aclone(node.arr));
+		return new VecNode(edit, ((Object[])node.arr).clone());
+	}
+
+	int tailoff(){
+		if(cnt < 32) return 0;
+		return ((cnt - 1) >>> 5) << 5;
+	}
+
+	public ArrayManager getArrayManager(){
+		return am;
+	}
+
+	//The backing array holding i, which may be shared with other vectors.
+	//Only read from it.
+	public Object arrayFor(int i){
+		if(i >= 0 && i < cnt){
+			if(i >= tailoff()) return tail;
+			VecNode node = root;
+			for(int level = shift; level > 0; level -= 5){
+				node = (VecNode)((Object[])node.arr)[(i >>> level) & 0x1f];
+			}
+			return node.arr;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	//The backing array holding i, copied into our ownership if necessary so
+	//that it may be written to directly.
+	public Object editableArrayFor(int i){
+		ensureEditable();
+		if(i >= 0 && i < cnt){
+			if(i >= tailoff()) return tail;
+			root = ensureEditable(root, shift);
+			VecNode node = root;
+			for(int level = shift; level > 0; level -= 5){
+				final Object[] arr = (Object[])node.arr;
+				final int subidx = (i >>> level) & 0x1f;
+				node = ensureEditable((VecNode)arr[subidx], level - 5);
+				arr[subidx] = node;
+			}
+			return node.arr;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	@Override
+	public int count() {
+		ensureEditable();
+		return cnt;
+	}
+
+	@Override
+	public Object nth(int i) {
+		ensureEditable();
+		return am.aget(arrayFor(i), i & 0x1f);
+	}
+
+	@Override
+	public Object nth(int i, Object notFound) {
+		if(i >= 0 && i < count()) return nth(i);
+		return notFound;
+	}
+
+	@Override
+	public Object valAt(Object key) {
+		return valAt(key, null);
+	}
+
+	@Override
+	public Object valAt(Object key, Object notFound) {
+		ensureEditable();
+		if(Util.isInteger(key)){
+			final int i = ((Number)key).intValue();
+			if(i >= 0 && i < cnt) return nth(i);
+		}
+		return notFound;
+	}
+
+	@Override
+	public Object invoke(Object arg1) {
+		if(Util.isInteger(arg1)) return nth(((Number)arg1).intValue());
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	@Override
+	public TransientVec assocN(int i, Object val) {
+		ensureEditable();
+		if(i >= 0 && i < cnt){
+			am.aset(editableArrayFor(i), i & 0x1f, val);
+			return this;
+		}
+		if(i == cnt) return conj(val);
+		throw new IndexOutOfBoundsException();
+	}
+
+	@Override
+	public TransientVec assoc(Object key, Object val) {
+		if(Util.isInteger(key)) return assocN(((Number)key).intValue(), val);
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	@Override
+	public TransientVec conj(Object val) {
+		ensureEditable();
+		final int i = cnt;
+		//Room in tail?
+		if(i - tailoff() < 32){
+			am.aset(tail, i & 0x1f, val);
+			++cnt;
+			return this;
+		}
+		pushTailIntoTree();
+		tail = am.array(32);
+		am.aset(tail, 0, val);
+		++cnt;
+		return this;
+	}
+
+	//Appends a whole 32-element leaf, which we take ownership of.  Only valid
+	//when every leaf so far is full, and much cheaper than 32 conj's.
+	public TransientVec conjLeaf(Object leaf) {
+		ensureEditable();
+		if((cnt & 0x1f) != 0 || am.alength(leaf) != 32) throw new IllegalStateException("Can only append whole leaves");
+		if(cnt > 0) pushTailIntoTree();
+		tail = leaf;
+		cnt += 32;
+		return this;
+	}
+
+	//Moves the (full) tail into the tree, leaving cnt alone
+	void pushTailIntoTree(){
+		final VecNode tailNode = new VecNode(edit, tail);
+		//Overflow root?
+		if((cnt >>> 5) > (1 << shift)){
+			final VecNode newRoot = new VecNode(edit, new Object[32]);
+			((Object[])newRoot.arr)[0] = root;
+			((Object[])newRoot.arr)[1] = newPath(shift, tailNode);
+			root = newRoot;
+			shift += 5;
+		} else {
+			root = pushTail(shift, root, tailNode);
+		}
+	}
+
+	VecNode pushTail(int level, VecNode parent, VecNode tailNode){
+		parent = ensureEditable(parent, level);
+		final Object[] arr = (Object[])parent.arr;
+		final int subidx = ((cnt - 1) >>> level) & 0x1f;
+		final VecNode toInsert;
+		if(level == 5) toInsert = tailNode;
+		else {
+			final VecNode child = (VecNode)arr[subidx];
+			toInsert = (child != null) ? pushTail(level - 5, child, tailNode)
+									   : newPath(level - 5, tailNode);
+		}
+		arr[subidx] = toInsert;
+		return parent;
+	}
+
+	VecNode newPath(int level, VecNode node){
+		if(level == 0) return node;
+		final VecNode ret = new VecNode(edit, new Object[32]);
+		((Object[])ret.arr)[0] = newPath(level - 5, node);
+		return ret;
+	}
+
+	@Override
+	public TransientVec pop() {
+		ensureEditable();
+		if(cnt == 0) throw new IllegalStateException("Can't pop empty vector");
+		if(cnt == 1){
+			cnt = 0;
+			return this;
+		}
+		//Pop in tail?
+		if(((cnt - 1) & 0x1f) > 0){
+			--cnt;
+			return this;
+		}
+		final Object newTail = editableArrayFor(cnt - 2);
+		VecNode newRoot = popTail(shift, root);
+		int newShift = shift;
+		if(newRoot == null) newRoot = new VecNode(edit, new Object[32]);
+		if(shift > 5 && ((Object[])newRoot.arr)[1] == null){
+			newRoot = ensureEditable((VecNode)((Object[])newRoot.arr)[0], shift - 5);
+			newShift -= 5;
+		}
+		root = newRoot;
+		shift = newShift;
+		--cnt;
+		tail = newTail;
+		return this;
+	}
+
+	VecNode popTail(int level, VecNode node){
+		node = ensureEditable(node, level);
+		final Object[] arr = (Object[])node.arr;
+		final int subidx = ((cnt - 2) >>> level) & 0x1f;
+		if(level > 5){
+			final VecNode newChild = popTail(level - 5, (VecNode)arr[subidx]);
+			if(newChild == null && subidx == 0) return null;
+			arr[subidx] = newChild;
+			return node;
+		}
+		if(subidx == 0) return null;
+		arr[subidx] = null;
+		return node;
+	}
+
+	@Override
+	public Vec persistent() {
+		ensureEditable();
+		edit.set(null);
+		final Object trimmedTail = am.array(cnt - tailoff());
+		System.arraycopy(tail, 0, trimmedTail, 0, am.alength(trimmedTail));
+		return new Vec(am, cnt, shift, root, trimmedTail, null);
+	}
+}
@@ -2,32 +2,319 @@
   (:import [soac.java.pav PersistentArrayVector PersistentByteArrayVector
             PersistentCharArrayVector PersistentDoubleArrayVector
             PersistentFloatArrayVector PersistentIntArrayVector
-            PersistentLongArrayVector PersistentShortArrayVector]))
+            PersistentLongArrayVector PersistentShortArrayVector
+            ArrayVectors ArrayVectorSeq ArraySlice])
+  (:require [clojure.walk :as walk]
+            [clojure.edn :as edn]
+            [clojure.core.reducers :as r]
+            [soac.fj-dupe]))
+(set! *warn-on-reflection* true)
+
+;Array classes, for telling which overload of create an argument wants
+(def ^:private ^Class objects-class (class (object-array 0)))
+(def ^:private ^Class bytes-class (class (byte-array 0)))
+(def ^:private ^Class chars-class (class (char-array 0)))
+(def ^:private ^Class doubles-class (class (double-array 0)))
+(def ^:private ^Class floats-class (class (float-array 0)))
+(def ^:private ^Class ints-class (class (int-array 0)))
+(def ^:private ^Class longs-class (class (long-array 0)))
+(def ^:private ^Class shorts-class (class (short-array 0)))
+
+(defn- iterable
+  "coll itself if it's Iterable, otherwise (for arrays, strings and other
+   reducibles) its elements poured into a vector"
+  ^Iterable [coll]
+  (cond
+    (instance? Iterable coll) coll
+    (nil? coll) []
+    :else (into [] coll)))
 
 (defn array-vec
   "The equivalent of clojure.core/vec, but results in a PersistentArrayVector
    backed by a raw Object[], that evolves to a PersistentVector when it
-   contains more than 32 elements."
+   contains more than 32 elements.  Counted collections and Object arrays
+   are built in one go; anything larger goes straight to a PersistentVector."
   [targ]
-  (PersistentArrayVector/create targ))
+  (if (.isInstance objects-class targ)
+    (PersistentArrayVector/create ^objects targ)
+    (PersistentArrayVector/create (iterable targ))))
 
-(defn array-vector 
+(defn array-vector
   "The equivalent of clojure.core/vector, but results in a PersistentArrayVector
    backed by a raw Object[], that evolves to a PersistentVector when it
    contains more than 32 elements."
   [& contents]
-  (PersistentArrayVector/create contents))
+  (PersistentArrayVector/create (iterable contents)))
+
+(defn array-vec-of
+  "As array-vector-of, from the elements of coll.  Given an array of the
+   type itself, it's copied in bulk."
+  [t coll]
+  (case t
+    :byte (if (.isInstance bytes-class coll)
+            (PersistentByteArrayVector/create ^bytes coll)
+            (PersistentByteArrayVector/create (iterable coll)))
+    :char (if (.isInstance chars-class coll)
+            (PersistentCharArrayVector/create ^chars coll)
+            (PersistentCharArrayVector/create (iterable coll)))
+    :double (if (.isInstance doubles-class coll)
+              (PersistentDoubleArrayVector/create ^doubles coll)
+              (PersistentDoubleArrayVector/create (iterable coll)))
+    :float (if (.isInstance floats-class coll)
+             (PersistentFloatArrayVector/create ^floats coll)
+             (PersistentFloatArrayVector/create (iterable coll)))
+    :int (if (.isInstance ints-class coll)
+           (PersistentIntArrayVector/create ^ints coll)
+           (PersistentIntArrayVector/create (iterable coll)))
+    :long (if (.isInstance longs-class coll)
+            (PersistentLongArrayVector/create ^longs coll)
+            (PersistentLongArrayVector/create (iterable coll)))
+    :short (if (.isInstance shorts-class coll)
+             (PersistentShortArrayVector/create ^shorts coll)
+             (PersistentShortArrayVector/create (iterable coll)))))
 
 (defn array-vector-of
   "Create a typed primitive-array-backed persistent vector, that will evolve
    to a clojure.core.Vec (aka gvec or vector-of) when its elements exceed 256
-   bytes worth of storage (that's 32 64-bit elements, and so on)"
+   bytes worth of storage (that's 32 64-bit elements, and so on), or whatever
+   set-thresholds! has made it"
   [t & contents]
-  (case t
-    :byte (PersistentByteArrayVector/create contents)
-    :char (PersistentCharArrayVector/create contents)
-    :double (PersistentDoubleArrayVector/create contents)
-    :float (PersistentFloatArrayVector/create contents)
-    :int (PersistentIntArrayVector/create contents)
-    :long (PersistentLongArrayVector/create contents)
-    :short (PersistentShortArrayVector/create contents)))
\ No newline at end of file
+  (array-vec-of t contents))
+
+;The promotion threshold of each type of array vector: a getter, a setter and
+;the default
+(def ^:private threshold-fns
+  {:object [#(PersistentArrayVector/getThreshold) #(PersistentArrayVector/setThreshold %)
+            PersistentArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :byte [#(PersistentByteArrayVector/getThreshold) #(PersistentByteArrayVector/setThreshold %)
+          PersistentByteArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :char [#(PersistentCharArrayVector/getThreshold) #(PersistentCharArrayVector/setThreshold %)
+          PersistentCharArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :double [#(PersistentDoubleArrayVector/getThreshold) #(PersistentDoubleArrayVector/setThreshold %)
+            PersistentDoubleArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :float [#(PersistentFloatArrayVector/getThreshold) #(PersistentFloatArrayVector/setThreshold %)
+           PersistentFloatArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :int [#(PersistentIntArrayVector/getThreshold) #(PersistentIntArrayVector/setThreshold %)
+         PersistentIntArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :long [#(PersistentLongArrayVector/getThreshold) #(PersistentLongArrayVector/setThreshold %)
+          PersistentLongArrayVector/PERSISTENT_VECTOR_THRESHOLD]
+   :short [#(PersistentShortArrayVector/getThreshold) #(PersistentShortArrayVector/setThreshold %)
+           PersistentShortArrayVector/PERSISTENT_VECTOR_THRESHOLD]})
+
+(defn thresholds
+  "A map of each element type (:object for array-vec, otherwise as for
+   array-vec-of) to the most elements its array vectors hold before they
+   evolve"
+  []
+  (into {} (for [[t [getter]] threshold-fns] [t (getter)])))
+
+(defn set-thresholds!
+  "Sets the thresholds of the types in m, a map as thresholds returns, for
+   vectors made from then on and existing ones as they grow.  Primitive
+   thresholds must be multiples of 32; all must be at most 1024.  Returns the
+   new thresholds."
+  [m]
+  (doseq [[t n] m]
+    (if-let [[_ setter] (threshold-fns t)]
+      (setter (int n))
+      (throw (IllegalArgumentException. (str "No array vector of type " t)))))
+  (thresholds))
+
+(defn reset-thresholds!
+  "Sets every threshold back to its default"
+  []
+  (set-thresholds! (into {} (for [[t [_ _ default]] threshold-fns] [t default]))))
+
+(defn save-thresholds
+  "Writes the current thresholds to f, as a profile for load-thresholds!"
+  [f]
+  (spit f (pr-str (thresholds))))
+
+(defn load-thresholds!
+  "Sets the thresholds saved to f by save-thresholds"
+  [f]
+  (set-thresholds! (edn/read-string (slurp f))))
+
+;A profile named by this property is loaded along with the namespace
+(when-let [f (System/getProperty "soac.arrvec.thresholds")]
+  (when (.exists (java.io.File. ^String f))
+    (load-thresholds! f)))
+
+(def ^:private calibration-elements
+  {:object :x :byte 1 :char \a :double 1.0 :float 1.0 :int 1 :long 1 :short 1})
+
+(defn- ns-per-op
+  "Average nanoseconds for a conj, an assoc and an nth on v"
+  [v x reps]
+  (let [n (count v)
+        start (System/nanoTime)
+        acc (loop [k 0 acc 0]
+              (if (< k reps)
+                (let [i (rem k n)]
+                  (recur (inc k) (+ acc (count (conj v x)) (count (assoc v i x))
+                                    (if (nil? (nth v i)) 0 1))))
+                acc))
+        elapsed (- (System/nanoTime) start)]
+    ;Looks at acc, so the loop can't be optimized away
+    (if (neg? acc) Double/NaN (/ (double elapsed) reps))))
+
+(defn- array-wins?
+  "Whether an array vector of type t and n - 1 elements is no slower than
+   what it evolves into, give or take tolerance, timing them alternately and
+   taking the best of rounds for each after a warm-up"
+  [t n reps rounds tolerance]
+  (let [x (calibration-elements t)
+        s (repeat (dec n) x)
+        arr (if (= t :object) (array-vec s) (array-vec-of t s))
+        tree (if (= t :object) (vec s) (into (vector-of t) s))]
+    (ns-per-op arr x reps)
+    (ns-per-op tree x reps)
+    (let [times (for [_ (range rounds)] [(ns-per-op arr x reps) (ns-per-op tree x reps)])]
+      (<= (apply min (map first times)) (* (+ 1.0 tolerance) (apply min (map second times)))))))
+
+(defn calibrate-thresholds
+  "Measures where, on this JVM and hardware, copying an array vector on
+   every change gets slower than the structure it evolves into, and returns
+   thresholds to suit, as a map for set-thresholds! (and so save-thresholds).
+   For each of types (all by default) and each candidate size, times conj,
+   assoc and nth on both; the threshold is the largest candidate up to
+   which the array vector is never slower by more than tolerance (a
+   fraction).  Takes some seconds, and raises the thresholds while it runs,
+   so other threads' vectors may stay arrays for longer meanwhile."
+  ([] (calibrate-thresholds {}))
+  ([{:keys [types reps rounds tolerance]
+     :or {types (keys threshold-fns) reps 20000 rounds 7 tolerance 0.1}}]
+    (let [saved (thresholds)
+          sizes #(if (= % :object) [8 16 32 64 128 256 512 1024] [32 64 128 256 512 1024])]
+      (try
+        (set-thresholds! (zipmap (keys threshold-fns) (repeat 1024)))
+        ;A quick pass first, so that the one that counts runs compiled code
+        (doseq [t types, n [32 1024]] (array-wins? t n (quot reps 4) 1 tolerance))
+        (into {}
+          (for [t types
+                :let [wins (take-while #(array-wins? t % reps rounds tolerance) (sizes t))]]
+            [t (or (last wins) (first (sizes t)))]))
+        (finally (set-thresholds! saved))))))
+
+(defn slice
+  "As clojure.core/subvec, but on an array vector gives another array vector
+   (with its typed access) that shares the backing array, in O(1).  pop
+   shares it the same way."
+  ([v start] (slice v start (count v)))
+  ([v start end]
+    (if (instance? ArraySlice v)
+      (.subvec ^ArraySlice v (int start) (int end))
+      (subvec v start end))))
+
+(defn compact
+  "An array vector with a backing array of its own, if it's a slice or pop
+   of a longer one, so the rest can be collected; otherwise v itself"
+  [v]
+  (if (instance? ArraySlice v)
+    (.compact ^ArraySlice v)
+    v))
+
+(defn- typed-call
+  "An :inline fn for (f v & args): when v is an iface, calls method on it
+   with each arg coerced by its cast, otherwise evaluates fallback, with v,
+   a and b standing for v and the args"
+  [iface method casts fallback]
+  (fn [v & args]
+    (let [vs (gensym "v")
+          as (repeatedly (count args) #(gensym "a"))]
+      `(let [~vs ~v ~@(interleave as args)]
+         (if (instance? ~iface ~vs)
+           (. ~(with-meta vs {:tag iface}) ~method ~@(map list casts as))
+           ~(walk/postwalk-replace (zipmap '[v a b] (cons vs as)) fallback))))))
+
+(defmacro ^:private deftyped
+  "get-t, assoc-t, conj-t and to-t-array, for a type t with a vector
+   interface, hinting elements as hint"
+  [t hint]
+  (let [T (str (Character/toUpperCase (.charAt (name t) 0)) (subs (name t) 1))
+        iface (symbol (str "soac.java.pav." T "Vector"))
+        c (symbol "clojure.core" (name t))
+        x (if hint (with-meta 'x {:tag hint}) 'x)
+        deftyped-fn (fn [fname doc method casts fallback params]
+                      `(defn ~(symbol fname) ~doc
+                         {:inline (typed-call '~iface '~(symbol method) '~casts '~fallback)}
+                         ~params
+                         ~(let [body (apply (typed-call iface (symbol method) casts fallback)
+                                            (map #(with-meta % nil) params))
+                                ret (:tag (meta params))]
+                            ;A primitive return is only long or double, so widen to it
+                            (if ret (list (symbol "clojure.core" (name ret)) body) body))))]
+    `(do
+       ~(deftyped-fn (str "get-" (name t))
+          (str "Element i of v, without boxing if v is a " iface)
+          (str "get" T) [`int] `(~c (nth ~'v ~'a))
+          (with-meta ['v (with-meta 'i {:tag 'long})] (when hint {:tag hint})))
+       ~(deftyped-fn (str "assoc-" (name t))
+          (str "v with element i set to x, without boxing if v is a " iface)
+          (str "assoc" T) [`int c] `(assoc ~'v ~'a ~'b)
+          ['v (with-meta 'i {:tag 'long}) x])
+       ~(deftyped-fn (str "conj-" (name t))
+          (str "v with x appended, without boxing if v is a " iface)
+          (str "cons" T) [c] `(conj ~'v ~'a)
+          ['v x])
+       ~(deftyped-fn (str "to-" (name t) "-array")
+          (str "A new array of v's elements, copied in one go if v is a " iface)
+          (str "to" T "Array") [] `(~(symbol "clojure.core" (str (name t) "-array")) ~'v)
+          ['v]))))
+
+(deftyped :byte long)
+(deftyped :char nil)
+(deftyped :double double)
+(deftyped :float double)
+(deftyped :int long)
+(deftyped :long long)
+(deftyped :short long)
+
+;reduce would otherwise take the Iterable path, boxing through nth; these
+;loop over the backing array, passing elements unboxed to a type-hinted fn
+(doseq [c [PersistentArrayVector PersistentByteArrayVector PersistentCharArrayVector
+           PersistentDoubleArrayVector PersistentFloatArrayVector PersistentIntArrayVector
+           PersistentLongArrayVector PersistentShortArrayVector ArrayVectorSeq]]
+  (extend c
+    clojure.core.protocols/CollReduce
+    {:coll-reduce (fn
+                    ([^clojure.lang.IReduce v f] (.reduce v f))
+                    ([^clojure.lang.IReduce v f init] (.reduce v f init)))}))
+
+(defn- fold-range
+  [lo hi n combinef reduce-range]
+  (if (<= (- hi lo) n)
+    (reduce-range lo hi)
+    (let [mid (quot (+ lo hi) 2)]
+      (soac.fj-dupe/fjinvoke
+        #(let [t (r/fjtask (fn [] (fold-range mid hi n combinef reduce-range)))]
+           (soac.fj-dupe/fjfork t)
+           (combinef (fold-range lo mid n combinef reduce-range) (soac.fj-dupe/fjjoin t)))))))
+
+;Thresholds can be set as high as 1024 elements, past r/fold's default of 512
+;a task, so split over slices, which share the backing array
+(extend ArraySlice
+  r/CollFold
+  {:coll-fold (fn [^ArraySlice v n combinef reducef]
+                (fold-range 0 (count v) n combinef
+                            #(.reduce ^clojure.lang.IReduce (.subvec v (int %1) (int %2)) reducef (combinef))))})
+
+(extend ArrayVectorSeq
+  r/CollFold
+  {:coll-fold (fn [^clojure.lang.IReduce v n combinef reducef]
+                (.reduce v reducef (combinef)))})
+
+;What the primitive array vectors become past their thresholds, which r/fold
+;would only reduce serially
+(defn fold-vec
+  "As r/fold, but folds a clojure.core.Vec (what the primitive array vectors
+   become past their thresholds) in parallel over index ranges of at most n
+   elements (512 by default), each reduced a leaf array at a time and
+   unboxed as reduce is.  Anything else is handed to r/fold."
+  ([reducef v] (fold-vec reducef reducef v))
+  ([combinef reducef v] (fold-vec 512 combinef reducef v))
+  ([n combinef reducef v]
+    (if (instance? clojure.core.Vec v)
+      (fold-range 0 (count v) n combinef
+                  #(ArrayVectors/reduceVec v (int %1) (int %2) reducef (combinef)))
+      (r/fold n combinef reducef v))))
@@ -1,8 +1,12 @@
 (ns soac.hopscotch
   "This should be considered as alpha at the moment.  Primitive-backed,
    persistent hash table data structures based on hopscotch hashing."
-  (:import [soac.java.hopscotch PersistentPrimHashMap PersistentPrimHashSet])
+  (:import [soac.java.hopscotch PersistentPrimHashMap PersistentPrimHashSet HashSpreader
+            BulkLoader IntChunkedArrayVector LongChunkedArrayVector DoubleChunkedArrayVector]
+           [soac.java.util TransientVec]
+           [clojure.core Vec])
   (:require [clojure.core.reducers :as r]
+            [clojure.set :as set]
             [soac.fj-dupe :as fj]))
 (set! *warn-on-reflection* true)
 
@@ -19,18 +23,159 @@
   [type]
   (if (= type :object) (vector) (vector-of type)))
 
+(def ^{:private true} chunked-array
+  {:int IntChunkedArrayVector/EMPTY
+   :long LongChunkedArrayVector/EMPTY
+   :double DoubleChunkedArrayVector/EMPTY})
+
+(defn- storage-proto
+  "Empty vector to store elements of type in.  :array storage keeps keys in flat
+   primitive arrays and compares them unboxed, but only exists for :int, :long
+   and :double; map values of other types fall back to vectors."
+  [type storage key?]
+  (case storage
+    :vector (vec-or-vecof type)
+    :array (or (get chunked-array type)
+               (if key?
+                 (throw (IllegalArgumentException.
+                          (str "No :array storage for keys of type " type)))
+                 (vec-or-vecof type)))))
+
+(defn- spreader-for
+  ^HashSpreader [spreader]
+  (cond
+    (= spreader :murmur) HashSpreader/MURMUR
+    (= spreader :identity) HashSpreader/IDENTITY
+    (fn? spreader) (HashSpreader/fromFn spreader)
+    :else (throw (IllegalArgumentException.
+                   (str "Unknown hash spreader " spreader)))))
+
 (defn prim-hash-set
-  [type]
+  "Options:
+   :storage - :vector (default), or :array for :int, :long and :double
+   :cache-hashes - if true, store each key's hash alongside it, so it's only
+                   computed once.  Worthwhile for :object keys with expensive
+                   hashCodes.
+   :hash-spreader - how keys' hashes are mixed before their low bits pick a
+                    bucket: :murmur (default), :identity to use them as-is,
+                    or a fn from an int hash to another"
+  [type & {:keys [storage cache-hashes hash-spreader]
+           :or {storage :vector hash-spreader :murmur}}]
   (PersistentPrimHashSet/fromProto
-    (vec-or-vecof type)
-    (get free-val type)))
+    (storage-proto type storage true)
+    (get free-val type)
+    0
+    (boolean cache-hashes)
+    (spreader-for hash-spreader)))
 
 (defn prim-hash-map
-  [key-type val-type]
+  "Options:
+   :storage - :vector (default), or :array for :int, :long and :double keys
+   :cache-hashes, :hash-spreader - as for prim-hash-set"
+  [key-type val-type & {:keys [storage cache-hashes hash-spreader]
+                        :or {storage :vector hash-spreader :murmur}}]
   (PersistentPrimHashMap/fromProto
-    (vec-or-vecof key-type)
-    (vec-or-vecof val-type)
-    (get free-val key-type)))
+    (storage-proto key-type storage true)
+    (storage-proto val-type storage false)
+    (get free-val key-type)
+    0
+    (boolean cache-hashes)
+    (spreader-for hash-spreader)))
+
+(defn- transient-of
+  "clojure.core.Vec doesn't have a transient of its own"
+  [v]
+  (if (instance? Vec v) (TransientVec. v) (transient v)))
+
+(defn- fj-range
+  "Calls (f lo hi) over subranges of [0, n) no longer than grain, in parallel"
+  [n grain f]
+  (letfn [(run [lo hi]
+            (if (<= (- hi lo) grain)
+              (f lo hi)
+              (let [mid (quot (+ lo hi) 2)
+                    t (r/fjtask #(run mid hi))]
+                (fj/fjfork t)
+                (run lo mid)
+                (fj/fjjoin t))))]
+    (fj/fjinvoke #(run 0 n))))
+
+(defn- bulk-load
+  "Hashes and lays out the keys in parallel.  Each part of the table is filled
+   by one task, in its own range of slots."
+  ^BulkLoader [ks proto]
+  (let [loader (BulkLoader. ks proto)]
+    (fj-range (.count loader) 8192 #(.hashKeys loader %1 %2))
+    (.partition loader)
+    (fj-range (.parts loader) 1 (fn [lo _] (.fill loader lo)))
+    loader))
+
+(defn fold-into-prim-hash-set
+  "A prim-hash-set of type holding the elements of coll, which may be anything
+   reducible.  Reading coll is serial, but hashing and placing the elements
+   happen in parallel on the fork/join pool.  Takes the same options as
+   prim-hash-set."
+  [type coll & opts]
+  (let [^PersistentPrimHashSet proto (apply prim-hash-set type opts)
+        ks (persistent! (reduce conj! (transient-of (empty (.getRawKeys proto))) coll))]
+    (.toSet (bulk-load ks proto))))
+
+(defn fold-into-prim-hash-map
+  "As fold-into-prim-hash-set, for a prim-hash-map from the map entries or
+   [k v] pairs of coll.  Where a key repeats, the last value wins."
+  [key-type val-type coll & opts]
+  (let [^PersistentPrimHashMap proto (apply prim-hash-map key-type val-type opts)
+        [ks vs] (reduce (fn [[ks vs] e] [(conj! ks (nth e 0)) (conj! vs (nth e 1))])
+                        [(transient-of (empty (.getRawKeys proto)))
+                         (transient-of (empty (.getRawVals proto)))]
+                        coll)]
+    (.toMap (bulk-load (persistent! ks) proto) (persistent! vs))))
+
+(defn- prim-sets?
+  [s1 s2]
+  (and (instance? PersistentPrimHashSet s1) (instance? PersistentPrimHashSet s2)))
+
+(defn union
+  "As clojure.set/union.  Pairs of prim-hash-sets are merged directly: the
+   larger keeps its layout and the smaller's missing keys are placed into it,
+   with at most one rehash.  Anything else goes to clojure.set."
+  ([] #{})
+  ([s1] s1)
+  ([s1 s2]
+    (if (prim-sets? s1 s2)
+      (.union ^PersistentPrimHashSet s1 s2)
+      (set/union s1 s2)))
+  ([s1 s2 & sets]
+    (reduce union (union s1 s2) sets)))
+
+(defn intersection
+  "As clojure.set/intersection.  For a pair of prim-hash-sets, the smaller's
+   keys are looked up in the larger, and those found keep their slots."
+  ([s1] s1)
+  ([s1 s2]
+    (if (prim-sets? s1 s2)
+      (.intersection ^PersistentPrimHashSet s1 s2)
+      (set/intersection s1 s2)))
+  ([s1 s2 & sets]
+    (reduce intersection (intersection s1 s2) sets)))
+
+(defn difference
+  "As clojure.set/difference.  For a pair of prim-hash-sets, s1's keys not in
+   s2 keep their slots."
+  ([s1] s1)
+  ([s1 s2]
+    (if (prim-sets? s1 s2)
+      (.difference ^PersistentPrimHashSet s1 s2)
+      (set/difference s1 s2)))
+  ([s1 s2 & sets]
+    (reduce difference (difference s1 s2) sets)))
+
+(defn subset?
+  "As clojure.set/subset?, without boxing through seqs for prim-hash-sets."
+  [s1 s2]
+  (if (prim-sets? s1 s2)
+    (.isSubset ^PersistentPrimHashSet s1 s2)
+    (set/subset? s1 s2)))
 
 (defn fold-kvs
   "Similar impl to foldvec - recursively split both keys and vals until they're
@@ -53,8 +198,25 @@
            (fj/fjfork t2)
            (combinef (f1) (fj/fjjoin t2)))))))
 
-;Clojure calls clojure.core.protocols/kv-reduce on PersistentPrimHashMap in r/reduce
-;and r/coll-fold if you call r/fold directly
+;reduce goes straight to the tables' IReduce, but reduce-kv and r/reduce on a
+;map call kv-reduce, and r/reduce on a set calls coll-reduce, which would
+;otherwise walk the map as a seq of MapEntrys / the set through its iterator.
+;Functions hinted to take ^long or ^double keys and values get them unboxed.
+(extend-protocol clojure.core.protocols/IKVReduce
+  PersistentPrimHashMap
+  (kv-reduce [m f init] (.kvreduce m f init)))
+
+(extend-protocol clojure.core.protocols/CollReduce
+  PersistentPrimHashSet
+  (coll-reduce
+    ([s f] (.reduce s f))
+    ([s f init] (.reduce s f init)))
+  PersistentPrimHashMap
+  (coll-reduce
+    ([m f] (.reduce m f))
+    ([m f init] (.reduce m f init))))
+
+;r/coll-fold is only called if you call r/fold directly
 (extend-protocol r/CollFold
   PersistentPrimHashSet
   (r/coll-fold
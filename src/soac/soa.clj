@@ -1,128 +1,235 @@
 (ns soac.soa
-  (:import [soac.java.soa ImmutableArraySOA MutableSOA PersistentVectorSOA])
-  (:require [soac.fj-dupe]))
+  (:import [soac.java.soa ImmutableArraySOA MutableSOA PersistentVectorSOA SOASchema RowCursor ColumnReduce
+                          BufferSOA ColumnType SOAFile ConcurrentAppendSOA])
+  (:require [soac.fj-dupe]
+            [clojure.java.io :as io]))
 (set! *warn-on-reflection* true)
 
-(def ^:private typed-access-fns (atom {}))
+;Compiled SOASchemas, by list of column types
+(def ^:private schemas (atom {}))
 (def ^:const INITIAL-LENGTH 4)
 
-;Macro-generated versions of these are somehow slower in tests.
-(defn- copy-booleans [^booleans a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-chars [^chars a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-bytes [^bytes a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-shorts [^shorts a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-ints [^ints a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-longs [^longs a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-floats [^floats a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-doubles [^doubles a ^long s] (java.util.Arrays/copyOf a s))
-(defn- copy-objects [^objects a ^long s] (java.util.Arrays/copyOf a s))
-
-(defn- aget-booleans [^booleans a i] (aget a i))
-(defn- aget-chars [^chars a i] (aget a i))
-(defn- aget-bytes [^bytes a i] (aget a i))
-(defn- aget-shorts [^shorts a i] (aget a i))
-(defn- aget-ints [^ints a i] (aget a i))
-(defn- aget-longs [^longs a i] (aget a i))
-(defn- aget-floats [^floats a i] (aget a i))
-(defn- aget-doubles [^doubles a i] (aget a i))
-(defn- aget-objects [^objects a i] (aget a i))
-
-(defn- get-interned-access-fns
+(def ^:private array-tags
+  {:boolean 'booleans :char 'chars :byte 'bytes :short 'shorts
+   :int 'ints :long 'longs :float 'floats :double 'doubles :object 'objects})
+
+(defn- column-type
+  [type]
+  (let [k (keyword type)]
+    (if (contains? array-tags k) k :object)))
+
+(defn- coerce-form
+  "Coerces x to a column of type t, as the aset-<type> fns would."
+  [t x]
+  (case t
+    :boolean `(boolean ~x)
+    :char `(char ~x)
+    :byte `(byte ~x)
+    :short `(short ~x)
+    :int `(int ~x)
+    :long `(long ~x)
+    :float `(float ~x)
+    :double `(double ~x)
+    x))
+
+(defn- compare-form
+  "As Util/compare on two cells of a column of type t, without boxing."
+  [t a b]
+  (case t
+    :object `(clojure.lang.Util/compare ~a ~b)
+    :boolean `(Boolean/compare ~a ~b)
+    :char `(Character/compare ~a ~b)
+    `(let [x# ~a y# ~b] (cond (< x# y#) -1 (> x# y#) 1 :else 0))))
+
+(defn- schema-form
+  "A reify of SOASchema with each column's array type fixed, so that
+   every aget and aset in it compiles to a direct array access."
   [types]
-  (if (contains? @typed-access-fns types)
-    (get @typed-access-fns types)
-    (-> (swap! typed-access-fns assoc types
-               {:asetFns (into-array clojure.lang.IFn
-                           (for [type types]
-                             (case (keyword type)
-                               :boolean aset-boolean
-                               :char aset-char
-                               :byte aset-byte
-                               :short aset-short
-                               :int aset-int
-                               :long aset-long
-                               :float aset-float
-                               :double aset-double
-                               aset)))
-                :agetFns (into-array clojure.lang.IFn 
-                           (for [type types]
-                             (case (keyword type)
-                               :boolean aget-booleans
-                               :char aget-chars
-                               :byte aget-bytes
-                               :short aget-shorts
-                               :int aget-ints
-                               :long aget-longs
-                               :float aget-floats
-                               :double aget-doubles
-                               aget)))
-                :copyFns (into-array clojure.lang.IFn 
-                           (for [type types]
-                             (case (keyword type)
-                               :boolean copy-booleans
-                               :char copy-chars
-                               :byte copy-bytes
-                               :short copy-shorts
-                               :int copy-ints
-                               :long copy-longs
-                               :float copy-floats
-                               :double copy-doubles
-                               copy-objects)))})
-      (get types))))
+  (let [n (count types)
+        col-syms (fn [prefix] (vec (for [[i t] (map-indexed vector types)]
+                                     (with-meta (symbol (str prefix i)) {:tag (array-tags t)}))))
+        bind (fn [syms data] (vec (mapcat (fn [sym i] [sym `(aget ~data ~i)]) syms (range))))
+        cs (col-syms "c")
+        ss (col-syms "s")
+        ds (col-syms "d")
+        [data src dest row col v length row1 row2 src-row dest-row out]
+        (map symbol ["data" "src" "dest" "row" "col" "v" "length" "row1" "row2" "srcRow" "destRow" "out"])
+        by-col (fn [f] `(case ~col
+                          ~@(mapcat (fn [i t] [i `(let [~(cs i) (aget ~data ~i)] ~(f (cs i) t))])
+                                    (range) types)
+                          (throw (IndexOutOfBoundsException. (str ~col)))))]
+    `(reify soac.java.soa.SOASchema
+       (~'get [this# ~data ~row ~col]
+         ~(by-col (fn [c t] `(aget ~c ~row))))
+       (~'set [this# ~data ~row ~col ~v]
+         ~(by-col (fn [c t] `(aset ~c ~row ~(coerce-form t v)))))
+       (~'getRow [this# ~data ~row]
+         (let [~@(bind cs data)
+               ~out (object-array ~n)]
+           ~@(for [i (range n)] `(aset ~out ~i (clojure.lang.RT/box (aget ~(cs i) ~row))))
+           ~out))
+       (~'setRow [this# ~data ~row ~v]
+         (let [~@(bind cs data)]
+           ~@(for [[i t] (map-indexed vector types)]
+               `(aset ~(cs i) ~row ~(coerce-form t `(clojure.lang.RT/nth ~v ~i))))))
+       (~'copyOf [this# ~data ~length]
+         (let [~@(bind cs data)
+               ~out (object-array ~n)]
+           ~@(for [i (range n)] `(aset ~out ~i (java.util.Arrays/copyOf ~(cs i) ~length)))
+           ~out))
+       (~'copyRow [this# ~src ~src-row ~dest ~dest-row]
+         (let [~@(bind ss src)
+               ~@(bind ds dest)]
+           ~@(for [i (range n)] `(aset ~(ds i) ~dest-row (aget ~(ss i) ~src-row)))))
+       (~'compare [this# ~data ~col ~row1 ~row2]
+         ~(by-col (fn [c t] (compare-form t `(aget ~c ~row1) `(aget ~c ~row2))))))))
+
+(defn schema
+  "The compiled SOASchema for columns of types, shared between every SOA
+   with the same column types.  Types are keywords as taken by the SOA
+   constructors; anything unrecognized is an Object column."
+  ^soac.java.soa.SOASchema [types]
+  (let [types (mapv column-type types)]
+    (or (get @schemas types)
+        (let [compiled (eval (schema-form types))]
+          (get (swap! schemas #(if (contains? % types) % (assoc % types compiled)))
+               types)))))
+
+(defn- new-column
+  [type]
+  (case (column-type type)
+    :boolean (boolean-array INITIAL-LENGTH)
+    :char (char-array INITIAL-LENGTH)
+    :byte (byte-array INITIAL-LENGTH)
+    :short (short-array INITIAL-LENGTH)
+    :int (int-array INITIAL-LENGTH)
+    :long (long-array INITIAL-LENGTH)
+    :float (float-array INITIAL-LENGTH)
+    :double (double-array INITIAL-LENGTH)
+    (object-array INITIAL-LENGTH)))
+
+(defn ^BufferSOA buffer-SOA
+  "A mutable SOA with primitive columns of the given types kept off the
+   heap, in segmented ByteBuffers with long row numbers.  opts is a map:
+   {:storage :direct} (the default) holds them in direct buffers, and
+   {:storage :mapped :path dir} in files in dir, which open-SOA maps back
+   in.  The columns grow by segments of 2^:segment-shift rows."
+  [{:keys [storage path segment-shift] :or {storage :direct segment-shift BufferSOA/defaultSegmentShift}} & types]
+  (let [types (into-array ColumnType
+                (for [t types]
+                  (if (= :object (column-type t))
+                    (throw (IllegalArgumentException. "Off-heap SOAs hold only primitive columns"))
+                    (ColumnType/named (name t)))))]
+    (case storage
+      :direct (BufferSOA/direct types segment-shift)
+      :mapped (BufferSOA/create (io/file path) types segment-shift))))
 
 (defn ^MutableSOA mutable-SOA
+  "A mutable SOA with columns of the given types, held in arrays.  See
+   buffer-SOA for one held off the heap."
   [& types]
   ;Initial length should probably be fairly high, or why are you using this?
-  (let [access-fns (get-interned-access-fns types)]
-    (MutableSOA.
-      (object-array
-            (for [type types]
-              (case (keyword type)
-                :boolean (boolean-array INITIAL-LENGTH)
-                :char (char-array INITIAL-LENGTH)
-                :byte (byte-array INITIAL-LENGTH)
-                :short (short-array INITIAL-LENGTH)
-                :int (int-array INITIAL-LENGTH)
-                :long (long-array INITIAL-LENGTH)
-                :float (float-array INITIAL-LENGTH)
-                :double (double-array INITIAL-LENGTH)
-                (object-array INITIAL-LENGTH))))
-      (:copyFns access-fns)
-      (:asetFns access-fns)
-      (:agetFns access-fns)
-      0
-      INITIAL-LENGTH)))
+  (MutableSOA.
+    (object-array (map new-column types))
+    (schema types)
+    0
+    INITIAL-LENGTH))
+
+(defn ^BufferSOA open-SOA
+  "The off-heap SOA made in dir by (buffer-SOA {:storage :mapped :path dir}
+   ...), as it was last changed, without reading its columns in."
+  [dir]
+  (BufferSOA/open (io/file dir)))
 
 (defn ^ImmutableArraySOA immutable-SOA [& types]
-  (let [access-fns (get-interned-access-fns types)]
-    (ImmutableArraySOA.
-      (object-array
-        (for [type types]
-          (case (keyword type)
-            :boolean (boolean-array INITIAL-LENGTH)
-            :char (char-array INITIAL-LENGTH)
-            :byte (byte-array INITIAL-LENGTH)
-            :short (short-array INITIAL-LENGTH)
-            :int (int-array INITIAL-LENGTH)
-            :long (long-array INITIAL-LENGTH)
-            :float (float-array INITIAL-LENGTH)
-            :double (double-array INITIAL-LENGTH)
-            (object-array INITIAL-LENGTH))))
-      (:copyFns access-fns)
-      (:asetFns access-fns)
-      (:agetFns access-fns)
-      (java.util.concurrent.atomic.AtomicInteger. 0)
-      0
-      INITIAL-LENGTH)))
+  (ImmutableArraySOA.
+    (object-array (map new-column types))
+    (schema types)
+    (java.util.concurrent.atomic.AtomicInteger. 0)
+    0
+    INITIAL-LENGTH))
+
+(defn ^ConcurrentAppendSOA concurrent-SOA
+  "An SOA with columns of the given types that many threads can append! to
+   at once without locking, read through snapshots.  Given an immutable-SOA,
+   starts from its rows.  A map of options first, {:chunk-shift n}, sets
+   the size of the chunks the columns grow by to 2^n rows."
+  [& types]
+  (let [[opts types] (if (map? (first types)) [(first types) (rest types)] [{} types])
+        shift (int (:chunk-shift opts ConcurrentAppendSOA/defaultChunkShift))]
+    (if (instance? ImmutableArraySOA (first types))
+      (ConcurrentAppendSOA/of ^ImmutableArraySOA (first types) shift)
+      (ConcurrentAppendSOA. (object-array (map new-column types)) (schema types) shift))))
+
+(defn append!
+  "Appends row to a concurrent-SOA, or all of rows, as one range of
+   consecutive rows.  Safe to call from any number of threads."
+  ([^ConcurrentAppendSOA soa row] (.append soa row) soa)
+  ([^ConcurrentAppendSOA soa row & rows]
+    (.appendAll soa ^java.util.Collection (vec (cons row rows))) soa))
+
+(defn snapshot
+  "An immutable vector of the rows of a concurrent-SOA appended so far,
+   sharing their storage.  conj or assoc on it copies it into an
+   immutable-SOA."
+  [^ConcurrentAppendSOA soa]
+  (.snapshot soa))
 
 (defn ^PersistentVectorSOA vector-SOA [& types]
-  (let [access-fns (get-interned-access-fns types)]
-    (PersistentVectorSOA. 
-      (into-array clojure.lang.IPersistentVector 
-        (for [type types :let [k (keyword type)]]
-          (if (#{:boolean :char :byte :short :int :long :float :double} k)
-            (vector-of k)
-            []))))))
+  (PersistentVectorSOA. 
+    (into-array clojure.lang.IPersistentVector 
+      (for [type types :let [k (keyword type)]]
+        (if (#{:boolean :char :byte :short :int :long :float :double} k)
+          (vector-of k)
+          [])))))
+
+(defn cursor
+  "A reusable RowCursor over soa, a mutable-SOA or immutable-SOA, that reads
+   cells without allocating a row: (.getLong (.seek c row) col), or step
+   through every row with (while (.next c) ...).  A mutable-SOA's cursor can
+   also .setLong etc. on its current row, and sees rows added later."
+  [soa]
+  (if (instance? MutableSOA soa)
+    (.cursor ^MutableSOA soa)
+    (.cursor ^ImmutableArraySOA soa)))
+
+(defn write-soa
+  "Writes soa, a mutable-SOA, buffer-SOA, immutable-SOA or vector-SOA of
+   primitive columns, to a file in SOAFile's format: a header, then each
+   column in one aligned little-endian block."
+  [soa path]
+  (let [f (io/file path)]
+    (condp instance? soa
+      MutableSOA (SOAFile/write f ^MutableSOA soa)
+      ImmutableArraySOA (SOAFile/write f ^ImmutableArraySOA soa)
+      BufferSOA (SOAFile/write f ^BufferSOA soa)
+      PersistentVectorSOA (SOAFile/write f ^PersistentVectorSOA soa))))
+
+(defn read-soa
+  "Reads a file written by write-soa into a new mutable-SOA, or with
+   {:mmap true} maps it as a read-only off-heap SOA without copying any
+   columns, however large they are."
+  ([path] (read-soa path {}))
+  ([path {:keys [mmap]}]
+    (let [f (io/file path)]
+      (if mmap
+        (SOAFile/map f)
+        (let [data (SOAFile/readColumns f)
+              n (if (zero? (alength data)) 0 (java.lang.reflect.Array/getLength (aget data 0)))]
+          (MutableSOA. data
+                       (schema (map #(keyword (.toLowerCase (.name ^ColumnType %))) (map #(ColumnType/ofArray %) data)))
+                       n n))))))
+
+(defn append-columns!
+  "Appends rows to a mutable-SOA or buffer-SOA from one array per column,
+   each of the column's own array type and all the same length, with a
+   single copy per column, e.g.
+   (append-columns! soa (double-array xs) (long-array ts))."
+  [soa & cols]
+  (if (instance? BufferSOA soa)
+    (.appendColumns ^BufferSOA soa (object-array cols))
+    (.appendColumns ^MutableSOA soa (object-array cols)))
+  soa)
 
 (defn- foldlist
   [^java.util.List v n combinef reducef]
@@ -140,6 +247,101 @@
          (soac.fj-dupe/fjfork t2)
          (combinef (f1) (soac.fj-dupe/fjjoin t2)))))))
 
+(defn sort-by-columns!
+  "Sorts a mutable-SOA in place, stably, by the given keys in order of
+   precedence.  Each key is a column number, or [col :desc] to sort that
+   column in descending order.  Primitive columns are radix sorted."
+  [^MutableSOA soa & keys]
+  (let [keys (map #(if (vector? %) % [% :asc]) keys)]
+    (.sortInPlaceByCols soa
+      (int-array (map first keys))
+      (boolean-array (map #(= :desc (second %)) keys)))
+    soa))
+
+(defn assume-sorted!
+  "Marks a mutable-SOA as already in order by col, ascending or with :desc,
+   as sort-by-columns! would, so that it can be searched and joined on col.
+   Throws if it isn't."
+  ([soa col] (assume-sorted! soa col :asc))
+  ([^MutableSOA soa col dir]
+    (.assumeSortedBy soa (int col) (= :desc dir))
+    soa))
+
+(defn lower-bound
+  "The first row of soa, a mutable-SOA sorted by col, whose value in col
+   isn't before key."
+  [^MutableSOA soa col key]
+  (.lowerBound soa (int col) ^Object key))
+
+(defn upper-bound
+  "The first row of soa, a mutable-SOA sorted by col, whose value in col is
+   after key."
+  [^MutableSOA soa col key]
+  (.upperBound soa (int col) ^Object key))
+
+(defn range-of
+  "[lo hi], the rows of soa, a mutable-SOA sorted by col, holding key in
+   col.  Searching for a range of keys is
+   [(lower-bound soa col from) (upper-bound soa col to)]."
+  [^MutableSOA soa col key]
+  (let [^ints r (.rangeOf soa (int col) key)]
+    [(aget r 0) (aget r 1)]))
+
+(defn merge-join
+  "Reduces f over every pair of rows of left and right, two mutable-SOAs
+   sorted the same way by lcol and rcol, whose values in those columns are
+   equal, calling (f acc left-row right-row) in order.  No rows are made;
+   (fn [acc ^long l ^long r] ...) is called without boxing."
+  [f init ^MutableSOA left lcol ^MutableSOA right rcol]
+  (.mergeJoin left (int lcol) right (int rcol) f init))
+
+(defn- raw-columns
+  "[schema data count] for soa, a mutable-SOA or immutable-SOA"
+  [soa]
+  (if (instance? MutableSOA soa)
+    (let [^MutableSOA soa soa] [(.getSchema soa) (.getRawData soa) (.size soa)])
+    (let [^ImmutableArraySOA soa soa] [(.getSchema soa) (.getRawData soa) (.count soa)])))
+
+(defn reduce-columns
+  "Reduces f over the rows of soa (a mutable-SOA or immutable-SOA), calling
+   (f acc x y ...) with the cells of just the given columns, straight from
+   their arrays.  Type-hint f to avoid boxing: for one column,
+   (fn ^double [^double acc ^double x] ...) or (fn [acc ^long x] ...), and
+   for two, (fn [acc ^long x ^double y] ...) and the like."
+  [f init soa cols]
+  (let [[schema data cnt] (raw-columns soa)]
+    (ColumnReduce/reduce schema data (int-array cols) 0 cnt f init)))
+
+(defn- fold-rows
+  [lo hi n combinef reduce-range]
+  (if (<= (- hi lo) n)
+    (reduce-range lo hi)
+    (let [mid (quot (+ lo hi) 2)]
+      (soac.fj-dupe/fjinvoke
+        #(let [t (clojure.core.reducers/fjtask (fn [] (fold-rows mid hi n combinef reduce-range)))]
+           (soac.fj-dupe/fjfork t)
+           (combinef (fold-rows lo mid n combinef reduce-range) (soac.fj-dupe/fjjoin t)))))))
+
+(defn fold-columns
+  "As r/fold over the rows of soa, but each task reduces reducef over a
+   slice of just the given columns' arrays, as in reduce-columns, starting
+   from (combinef).  Slices are at most n rows."
+  ([combinef reducef soa cols] (fold-columns 8192 combinef reducef soa cols))
+  ([n combinef reducef soa cols]
+    (let [[schema data cnt] (raw-columns soa)
+          cols (int-array cols)]
+      (if (zero? cnt)
+        (combinef)
+        (fold-rows 0 cnt n combinef
+                   #(ColumnReduce/reduce schema data cols %1 %2 reducef (combinef)))))))
+
+(defn fold-column
+  "fold-columns over the single column col, e.g.
+   (fold-column + (fn ^double [^double acc ^double x] (+ acc x)) soa 0)
+   sums a :double column in parallel without boxing."
+  ([combinef reducef soa col] (fold-columns combinef reducef soa [col]))
+  ([n combinef reducef soa col] (fold-columns n combinef reducef soa [col])))
+
 (extend-protocol clojure.core.reducers/CollFold
   MutableSOA
   (coll-fold
@@ -1,7 +1,9 @@
 (ns soac.test.arrvec
   (:use clojure.test
         soac.arrvec)
-  (:import [soac.java.pav PersistentArrayVector]))
+  (:require [clojure.core.reducers :as r])
+  (:import [soac.java.pav PersistentArrayVector]
+           [soac.java.util TransientVec]))
 
 (deftest test-arrvec
   (let [s (repeatedly PersistentArrayVector/PERSISTENT_VECTOR_THRESHOLD #(rand-int 1000))
@@ -13,4 +15,235 @@
     (is (= (assoc v 0 -1) (assoc arv 0 -1)))
     (is (empty? (.empty ^PersistentArrayVector arv)))
     (is (instance? PersistentArrayVector arv))
-    (is (instance? clojure.lang.PersistentVector (conj arv 99)))))
\ No newline at end of file
+    (is (instance? clojure.lang.PersistentVector (conj arv 99)))))
+
+(deftest test-bulk-create
+  (doseq [n [0 1 31 32 33 100 1000]]
+    (let [s (range n)]
+      (is (= (vec s) (array-vec s) (array-vec (doall s)) (array-vec (object-array s))
+             (array-vec (long-array s)) (array-vec (lazy-seq s)) (array-vec (vec s))))
+      (is (= (vec s) (apply array-vector s)))
+      (doseq [[t arr] [[:long (long-array s)] [:double (double-array s)] [:int (int-array s)]
+                       [:float (float-array s)] [:short (short-array s)]
+                       [:byte (byte-array (map #(mod % 100) s))] [:char (char-array (map char s))]]]
+        (let [want (vec (seq arr))]
+          (is (= want (array-vec-of t arr) (array-vec-of t (seq arr)) (array-vec-of t want)
+                 (apply array-vector-of t want)))
+          (is (= (> (* n (case t (:long :double) 8 (:int :float) 4 (:short :char) 2 1)) 256)
+                 (instance? clojure.core.Vec (array-vec-of t arr))
+                 (instance? clojure.core.Vec (array-vec-of t (seq arr)))))))))
+  (is (= [] (array-vec nil) (array-vec-of :long nil) (array-vector-of :int)))
+  (is (= [\a \b] (array-vec "ab")))
+  (is (instance? PersistentArrayVector (array-vec (range 32))))
+  (is (instance? clojure.lang.PersistentVector (array-vec (range 33))))
+  (is (= (conj (vec (range 40)) 40) (conj (array-vec (range 40)) 40))))
+
+(deftest test-promotion
+  (doseq [[t n] [[:long 32] [:double 32] [:int 64] [:float 64] [:short 128] [:char 128] [:byte 256]]]
+    (let [xs (map #(mod % 100) (range n))
+          xs (if (= t :char) (map char xs) xs)
+          arv (with-meta (apply array-vector-of t xs) {:m 1})
+          big (conj arv (last xs))
+          want (conj (apply vector-of t xs) (last xs))]
+      (is (instance? clojure.core.Vec big))
+      (is (= want big))
+      (is (= {:m 1} (meta big)))
+      (is (= n (count arv)))
+      (is (= (butlast want) (pop big)))
+      (is (= (conj want (first xs)) (conj big (first xs))))
+      (is (= (assoc want 0 (last xs)) (assoc big 0 (last xs))))
+      (is (= (assoc want n (first xs)) (assoc arv n (first xs))))
+      (is (= (conj want (first xs)) (persistent! (conj! (TransientVec/transientOf big) (first xs)))))
+      (is (= (butlast want) (seq arv)))))
+  (let [arv (with-meta (apply array-vector (range 32)) {:m 1})
+        big (conj arv 32)]
+    (is (instance? clojure.lang.PersistentVector big))
+    (is (= (range 33) big (seq big)))
+    (is (= {:m 1} (meta big)))
+    (is (= (range 34) (conj big 33)))
+    (is (= (range 32) (pop big) arv))
+    (is (nil? (meta (conj (apply array-vector (range 32)) 32))))))
+
+(deftest test-typed-access
+  (let [l (apply array-vector-of :long (range 10))
+        d (apply array-vector-of :double (range 10))
+        b (apply array-vector-of :byte (range 10))
+        c (array-vector-of :char \a \b)]
+    (is (instance? soac.java.pav.LongVector l))
+    (is (= 3 (get-long l 3) (.getLong ^soac.java.pav.LongVector l 3)))
+    (is (= 3.0 (get-double d 3)))
+    (is (= 3 (get-byte b 3) (get-int (array-vector-of :int 1 2 3 3) 3)))
+    (is (= \b (get-char c 1)))
+    (is (= (assoc (vec (range 10)) 2 -1) (assoc-long l 2 -1) (assoc-byte b 2 -1)))
+    (is (= (conj (vec (range 10)) 10) (conj-long l 10) (conj-short (apply array-vector-of :short (range 10)) 10)))
+    (is (= (conj (vec (range 10)) 10) (assoc-long l 10 10)))
+    (is (= 2.5 (get-float (assoc-float (array-vector-of :float 1 2) 1 2.5) 1)))
+    (is (= [\a \b \c] (conj-char c \c)))
+    (is (= (range 10) (seq (to-long-array l)) (seq (to-int-array (apply array-vector-of :int (range 10))))))
+    (is (not (identical? (to-long-array l) (to-long-array l))))
+    (is (= (map double (range 10)) (seq (to-double-array d))))
+    ;Past the threshold, or for other vectors, they still work, boxed
+    (let [big (reduce conj-long l (range 10 40))]
+      (is (instance? clojure.core.Vec big))
+      (is (= 35 (get-long big 35)))
+      (is (= (range 41) (conj-long big 40)))
+      (is (= (range 40) (seq (to-long-array big)))))
+    (is (= 2.0 (get-double [1 2] 1)))
+    (is (= [1 5] (assoc-long [1 2] 1 5)))
+    ;Higher-order use, without inlining
+    (is (= [1 2] (map get-long [l l] [1 2])))))
+
+(deftest test-reduce-seq-hash
+  (doseq [[t xs] [[:long (range -5 27)] [:double (concat [0.0 -0.0 1.5 -2.25] (range 20))]
+                  [:int (range -30 30)] [:float (map float (range -3 3 0.5))]
+                  [:short (range -60 60)] [:byte (range -100 100)]
+                  [:char (map char (range 65 90))]]]
+    (let [v (array-vec-of t xs)
+          gv (apply vector-of t xs)]
+      (is (= (seq gv) (seq v)))
+      (is (chunked-seq? (seq v)))
+      (is (= (count gv) (count (seq v)) (inc (count (rest (seq v))))))
+      (is (= (map identity gv) (map identity v) (doall (filter identity v))))
+      (is (= (reduce conj [] gv) (reduce conj [] v) (reduce conj [] (seq v))
+             (into [] v) (r/reduce conj [] v) (r/fold 4 (r/monoid into vector) conj v)))
+      (is (= (hash (vec gv)) (hash v) (hash (seq v))))
+      (is (= (.hashCode (vec gv)) (.hashCode v)))
+      (is (= v (apply array-vector-of t xs) gv (vec gv)))
+      (is (.equals v (apply array-vector-of t xs)))
+      (is (not= v (conj (pop v) (first xs))))
+      (is (not= v (pop v)))))
+  (let [v (apply array-vector-of :long (range 20))
+        d (apply array-vector-of :double (range 20))]
+    (is (= 190 (reduce + v) (reduce (fn ^long [^long acc ^long x] (+ acc x)) 0 v)
+           (reduce (fn [acc ^long x] (+ acc x)) 0 v) (reduce + (rest v))))
+    (is (= 190.0 (reduce (fn ^double [^double acc ^double x] (+ acc x)) 0.0 d)
+           (reduce (fn [acc ^double x] (+ acc x)) 0 d)))
+    (is (= 6 (reduce (fn [acc ^long x] (if (> x 2) (reduced acc) (+ acc x))) 3 v)))
+    (is (= 3 (reduce (fn [acc x] (if (= x 3) (reduced x) acc)) v)))
+    (is (= 0 (reduce + (array-vector-of :long))))
+    (is (= 5 (reduce + (array-vector-of :long 5))))
+    (is (nil? (seq (array-vector-of :int)))))
+  ;fold-vec folds Vec (a promoted array vector) in parallel
+  (let [v (apply vector-of :long (range 100000))]
+    (is (= (reduce + v) (fold-vec + v) (fold-vec 1000 + (fn ^long [^long acc ^long x] (+ acc x)) v)))
+    (is (= 7 (fold-vec 1000 + (fn [acc ^long x] (if (= x 7) (reduced x) acc)) (apply vector-of :long (range 10)))))
+    (is (= (reduce + (range 100)) (fold-vec + (array-vec (range 100))) (fold-vec + (vec (range 100))))))
+  (let [v (apply array-vector (range 20))
+        w (apply array-vector :a nil (range 18))]
+    (is (= (hash (vec v)) (hash v)))
+    (is (= (.hashCode (vec w)) (.hashCode w)))
+    (is (= (hash (vec w)) (hash w)))
+    (is (= (range 20) (seq v) (reduce conj [] v)))
+    (is (= w (apply array-vector :a nil (range 18))))
+    (is (= v (vec (range 20)) (apply array-vector-of :long (range 20))))))
+
+(deftest test-slices
+  (doseq [[t xs] [[:long (range 32)] [:double (range 32)] [:int (range 64)] [:float (range 64)]
+                  [:short (range 128)] [:byte (map #(mod % 100) (range 256))] [:char (map char (range 65 193))]]]
+    (let [v (array-vec-of t xs)
+          gv (apply vector-of t xs)
+          n (count gv)
+          s (slice v 5 20)
+          p (nth (iterate pop v) 10)]
+      (is (= (subvec gv 5 20) s (slice (vec gv) 5 20)))
+      (is (= (class v) (class s) (class p)))
+      (is (= (subvec gv 0 (- n 10)) p (compact p)))
+      (is (not (identical? p (compact p))))
+      (is (identical? v (compact v)))
+      (is (let [c (compact p)] (identical? c (compact c))))
+      (is (= 15 (count s) (count (seq s)) (count (to-array (seq s)))))
+      (is (= (nth gv 7) (nth s 2) (s 2) (first (rest (rest (seq s))))))
+      (is (thrown? IndexOutOfBoundsException (nth s 15)))
+      (is (thrown? IndexOutOfBoundsException (nth s -1)))
+      (is (= :x (nth s 15 :x)))
+      (is (= (conj (subvec gv 5 20) (first xs)) (conj s (first xs))))
+      (is (= (assoc (subvec gv 5 20) 0 (last xs)) (assoc s 0 (last xs))))
+      (is (= (subvec gv 7 10) (slice s 2 5) (slice (slice v 5 20) 2 5)))
+      (is (= (subvec gv 5 20) (reduce conj [] s) (into [] (map identity s))))
+      (is (= (hash (subvec gv 5 20)) (hash s)))
+      (is (= (.hashCode (subvec gv 5 20)) (.hashCode s)))
+      (is (= s (compact s) (slice (array-vec-of t (drop 5 xs)) 0 15)))
+      (is (= [] (slice v 3 3) (nth (iterate pop p) (- n 10))))
+      (is (thrown? IllegalStateException (pop (slice v 3 3))))
+      (is (thrown? IndexOutOfBoundsException (slice s 5 16)))
+      (is (= (subvec gv 5 20) (seq (to-array (seq (slice v 5 20))))))
+      ;A popped full vector regrows without touching what it shares
+      (is (= (conj (pop gv) (first xs)) (conj (pop v) (first xs))))
+      (is (= gv v))
+      ;Promoting a slice copies just its elements
+      (let [full (into (slice v 1 n) [(first xs) (second xs)])]
+        (is (= (into (subvec gv 1 n) [(first xs) (second xs)]) full))
+        (is (instance? clojure.core.Vec full)))))
+  (let [v (apply array-vector (range 32))
+        s (slice v 4 10)]
+    (is (= (range 4 10) s (seq s)))
+    (is (instance? PersistentArrayVector s))
+    (is (= (range 4 11) (conj s 10)))
+    (is (= (concat (range 1 32) [:x :y]) (conj (conj (slice v 1 32) :x) :y)))
+    (is (= (range 31) (pop v)))
+    (is (= (range 4 10) (compact s)))
+    (is (= (subvec [1 2 3] 1) (slice [1 2 3] 1)))
+    (is (= [] (compact [])))))
+
+(deftest test-thresholds
+  (let [before (thresholds)
+        defaults {:object 32 :byte 256 :char 128 :double 32 :float 64 :int 64 :long 32 :short 128}]
+    (try
+      (is (= defaults (reset-thresholds!)))
+      (let [v (array-vec-of :byte (range 100))
+            o (apply array-vector (range 20))]
+        (set-thresholds! {:object 8 :byte 64 :long 1024})
+        (is (= {:object 8 :byte 64 :long 1024} (select-keys (thresholds) [:object :byte :long])))
+        ;Made from then on
+        (is (instance? clojure.core.Vec (array-vec-of :byte (range 65))))
+        (is (instance? PersistentArrayVector (array-vec (range 8))))
+        (is (instance? clojure.lang.PersistentVector (array-vec (range 9))))
+        (is (not (instance? clojure.core.Vec (array-vec-of :long (range 1024)))))
+        (is (instance? clojure.core.Vec (array-vec-of :long (long-array 1025))))
+        (is (= (range 1025) (conj (array-vec-of :long (range 1024)) 1024)))
+        ;Long enough to be split by r/fold, and hashed once
+        (let [big (array-vec-of :long (range 1024))]
+          (is (= (reduce + big) (r/fold + big) (r/fold 100 + (fn ^long [^long acc ^long x] (+ acc x)) big)))
+          (is (= (hash (vec (range 1024))) (hash big) (hash big)))
+          (is (= (.hashCode (vec (range 1024))) (.hashCode big) (.hashCode big))))
+        ;Existing ones as they grow, past a threshold no longer a whole
+        ;number of leaves of theirs
+        (doseq [extra [1 28 40]]
+          (let [g (into v (range extra))]
+            (is (instance? clojure.core.Vec g))
+            (is (= (concat (range 100) (range extra)) g))
+            (is (= (into (apply vector-of :byte (range 100)) (range extra)) g))))
+        (is (= (conj (vec (range 20)) :x) (conj o :x)))
+        (is (= (conj (vec (range 3 20)) :x) (conj (slice o 3) :x)))
+        (is (= (conj (vec (range 30 94)) 0) (conj (slice v 30 94) 0)))
+        (is (instance? clojure.core.Vec (conj (slice v 30 94) 0))))
+      (is (thrown? IllegalArgumentException (set-thresholds! {:int 48})))
+      (is (thrown? IllegalArgumentException (set-thresholds! {:int 2048})))
+      (is (thrown? IllegalArgumentException (set-thresholds! {:object 0})))
+      (is (thrown? IllegalArgumentException (set-thresholds! {:bool 32})))
+      (reset-thresholds!)
+      (let [f (java.io.File/createTempFile "thresholds" ".edn")]
+        (set-thresholds! {:double 128 :object 10})
+        (save-thresholds f)
+        (reset-thresholds!)
+        (is (= defaults (thresholds)))
+        (load-thresholds! f)
+        (is (= (assoc defaults :double 128 :object 10) (thresholds)))
+        (.delete f))
+      (finally (set-thresholds! before)))
+    (is (= before (thresholds)))))
+
+;Saves the result to the file named by the soac.arrvec.thresholds property,
+;if it's set, for soac.arrvec to load from then on
+(deftest ^:performance test-calibration
+  (print "Calibrating array vector thresholds: ")
+  (let [t (time (calibrate-thresholds))]
+    (println t)
+    (is (= (set (keys (thresholds))) (set (keys t))))
+    (if-let [f (System/getProperty "soac.arrvec.thresholds")]
+      (let [before (thresholds)]
+        (set-thresholds! t)
+        (save-thresholds f)
+        (println "Saved to" f)
+        (set-thresholds! before))
+      (println "Set -Dsoac.arrvec.thresholds=<file> to save these as a profile"))))
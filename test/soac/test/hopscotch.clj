@@ -1,7 +1,8 @@
 (ns soac.test.hopscotch
   (:use clojure.test
         soac.hopscotch)
-  (:require [clojure.core.reducers :as r])
+  (:require [clojure.core.reducers :as r]
+            [clojure.set :as set])
   (:import [java.util HashMap HashSet]))
 
 (deftest test-set
@@ -9,7 +10,9 @@
         b (into #{} (repeatedly 100 #(rand-int 200)))
         c (into a b)]
     (is (every? #(contains? c %) b))
-    (is (= b c))))
+    (is (= b c))
+    (is (identical? c (conj c (first b))))
+    (is (= (conj b 500) (conj c 500)))))
 
 (deftest test-map
   (let [a (prim-hash-map :int :double)
@@ -43,14 +46,208 @@
 
 (deftest test-boxing
   (is (contains? (conj (prim-hash-set :int) (int 4)) (long 4)))
-  (is (== 1 (count (into (prim-hash-set :int) [(long 4) (int 4)])))))
+  (is (== 1 (count (into (prim-hash-set :int) [(long 4) (int 4)]))))
+  ;Boxed hashCodes of these pairs differ
+  (is (contains? (conj (prim-hash-set :int) (int -1)) (long -1)))
+  (is (contains? (into (prim-hash-set :long) (range -100 0)) (int -7)))
+  (is (contains? (conj (prim-hash-set :double) 1.5) (float 1.5)))
+  (is (contains? (conj (prim-hash-set :double) -0.0) 0.0)))
+
+(deftest test-hash-spreader
+  (let [a (map #(* 64 %) (range 2000))]
+    (doseq [spreader [:murmur :identity #(bit-xor % (unsigned-bit-shift-right % 7))]]
+      (is (= (set a) (into (prim-hash-set :long :hash-spreader spreader) a)))
+      (is (= (zipmap a a) (into (prim-hash-map :long :long :hash-spreader spreader) (map vector a a))))))
+  (is (thrown? IllegalArgumentException (prim-hash-set :long :hash-spreader :nope))))
+
+(deftest test-free-lookup
+  (doseq [storage [:vector :array]
+          cache [false true]]
+    (let [s (into (prim-hash-set :long :storage storage :cache-hashes cache) (range 10))
+          m (into (prim-hash-map :long :long :storage storage :cache-hashes cache) [[1 2]])]
+      (is (not (contains? s Long/MIN_VALUE)))
+      (is (not (contains? m Long/MIN_VALUE)))
+      (is (nil? (get m Long/MIN_VALUE))))))
+
+(deftest test-transient
+  (let [a (repeatedly 5000 #(rand-int 100000))
+        b (take 2000 (shuffle (distinct a)))
+        s (persistent! (reduce conj! (transient (prim-hash-set :long)) a))
+        m (persistent! (reduce #(assoc! %1 %2 (* 2 %2)) (transient (prim-hash-map :long :long)) a))]
+    (is (= s (set a)))
+    (is (= m (zipmap a (map #(* 2 %) a))))
+    (is (= (persistent! (reduce disj! (transient s) b))
+           (reduce disj (set a) b)))
+    (is (= (persistent! (reduce dissoc! (transient m) b))
+           (reduce dissoc (zipmap a (map #(* 2 %) a)) b)))
+    (is (= (into (prim-hash-set :object) (map str a)) (set (map str a)))))
+  (let [t (transient (prim-hash-set :int))]
+    (persistent! t)
+    (is (thrown? IllegalAccessError (conj! t 1)))))
+
+(deftest test-array-storage
+  (doseq [t [:int :long :double]]
+    (let [a (map (if (= t :double) double identity) (repeatedly 1000 #(rand-int 5000)))
+          b (take 300 (shuffle (distinct a)))
+          s (into (prim-hash-set t :storage :array) a)
+          m (into (prim-hash-map t :double :storage :array) (map vector a (repeat 1.5)))]
+      (is (= s (set a)))
+      (is (every? #(contains? s %) a))
+      (is (= (reduce disj s b) (reduce disj (set a) b)))
+      (is (= m (zipmap a (repeat 1.5))))
+      (is (= (reduce dissoc m b) (reduce dissoc (zipmap a (repeat 1.5)) b)))))
+  (is (not (contains? (into (prim-hash-set :long :storage :array) [1 2 3]) 2.0)))
+  (is (thrown? IllegalArgumentException (prim-hash-set :object :storage :array))))
+
+(deftest test-hop-info
+  ;Every bucket's hop bits should mark exactly the slots holding keys that
+  ;hash to it, through insertion, displacement, removal and rehashing.  Only
+  ;object keys and cached hashes keep them.
+  (doseq [[t storage cache] [[:object :vector false] [:long :vector true] [:long :array true]]]
+    (let [a (repeatedly 3000 #(rand-int 100000))
+          s (reduce disj (into (prim-hash-set t :storage storage :cache-hashes cache) a) (take 1000 a))
+          cap (.getCapacity s)
+          ks (.getRawKeys s)
+          hops (.getRawHops s)
+          expected (reduce (fn [acc i]
+                             (let [k (nth ks i)]
+                               (if (= k (.getFree s)) acc
+                                 (let [home (bit-and (.hashOf s k) (dec cap))]
+                                   (update-in acc [home] bit-or
+                                              (bit-shift-left 1 (bit-and (- i home) (dec cap))))))))
+                           (vec (repeat cap 0)) (range cap))]
+      (is (= (map #(bit-and % 0xffffffff) expected)
+             (map #(bit-and % 0xffffffff) hops)))))
+  (doseq [storage [:vector :array]]
+    (is (nil? (.getRawHops (into (prim-hash-set :long :storage storage) (range 100)))))))
+
+(deftest test-crowded-neighborhood
+  ;Keys sharing a home fill the slots after it, so lookups have to get past
+  ;the ones they scan to those the hop info marks
+  (doseq [storage [:vector :array], t [:long :int :double]]
+    (let [ks (map #(* 4096 %) (range 1 25))
+          ks (if (= t :double) (map double ks) ks)
+          missing (map #(* 4096 %) (range 25 50))
+          s (into (prim-hash-set t :storage storage :hash-spreader :identity) ks)
+          tr (transient s)]
+      (is (every? #(contains? s %) ks))
+      (is (every? #(.contains ^clojure.lang.ITransientSet tr %) ks))
+      (is (not-any? #(contains? s %) missing))
+      (is (not-any? #(.contains ^clojure.lang.ITransientSet tr %) missing))
+      (is (= (set ks) (reduce disj s missing))))))
+
+(deftest test-cached-hashes
+  (let [calls (atom 0)
+        ks (vec (for [i (range 3000)]
+                  (reify Object
+                    (hashCode [_] (swap! calls inc) (hash i))
+                    (equals [this o] (identical? this o)))))
+        s (into (prim-hash-set :object :cache-hashes true) ks)]
+    ;Once per key, however many rehashes and displacements it took
+    (is (== (count ks) @calls))
+    (is (every? #(contains? s %) ks))
+    (is (= (set (take 1000 ks)) (reduce disj s (drop 1000 ks)))))
+  (let [a (into {} (map #(vector (str %) %) (range 2000)))
+        m (into (prim-hash-map :object :long :cache-hashes true) a)]
+    (is (= a m))
+    (is (= (reduce dissoc a (take 500 (keys a)))
+           (reduce dissoc m (take 500 (keys a)))))
+    (is (.getRawHashes ^soac.java.hopscotch.PersistentPrimHashMap (empty m)))))
+
+(deftest test-fold-into
+  ;Enough to be split into several parts, with repeats
+  (let [a (vec (repeatedly 200000 #(rand-int 150000)))
+        pairs (map vector a (range))]
+    (doseq [storage [:vector :array]]
+      (is (= (set a) (fold-into-prim-hash-set :long a :storage storage)))
+      (is (= (into {} pairs) (fold-into-prim-hash-map :long :long pairs :storage storage)))))
+  ;Keys that crowd into a few neighborhoods, so many are left over
+  (let [a (map #(* 1024 %) (range 20000))]
+    (is (= (set a) (fold-into-prim-hash-set :long a :hash-spreader :identity)))
+    (is (= (zipmap a (range)) (fold-into-prim-hash-map :long :long (map vector a (range))
+                                                       :hash-spreader :identity))))
+  (is (= #{"a" "b"} (fold-into-prim-hash-set :object ["a" "b" "a"] :cache-hashes true)))
+  (is (empty? (fold-into-prim-hash-set :int [])))
+  ;The free value is caught however it's boxed, as lookups would match it
+  (is (thrown-with-msg? RuntimeException #"free value"
+                        (#'soac.hopscotch/bulk-load [1 (long Integer/MIN_VALUE)] (prim-hash-set :int)))))
 
 (deftest test-reducers
   (is (->> [1 2 3 4 5] (into (prim-hash-set :int)) (r/reduce +) (== 15)))
   (is (->> [[0 1][2 3][4 5]] (into (prim-hash-map :int :int)) (r/reduce +) (== 15) )))
 
+(deftest test-reduce
+  (doseq [storage [:vector :array]]
+    (let [s (into (prim-hash-set :long :storage storage) (range 1000))
+          m (into (prim-hash-map :long :double :storage storage) (map vector (range 1000) (range 1000)))]
+      (is (== 499500 (reduce + s)))
+      (is (== 499500 (reduce + 0 s)))
+      (is (== 499500 (reduce (fn [^long acc ^long k] (+ acc k)) 0 s)))
+      (is (== 499500 (r/reduce + s)))
+      (is (= 5 (reduce (fn [acc k] (if (= acc 4) (reduced 5) (inc acc))) 0 s)))
+      (is (= (set s) (reduce conj #{} s)))
+      (is (== 999000 (reduce-kv (fn [acc k v] (+ acc k v)) 0 m)))
+      (is (== 999000.0 (reduce-kv (fn [^double acc ^long k ^double v] (+ acc k v)) 0.0 m)))
+      (is (= 1 (reduce-kv (fn [acc k v] (reduced 1)) 0 m)))
+      (is (= (into {} m) (reduce conj {} m)))
+      (is (= (into {} m) (r/reduce (fn [acc k v] (assoc acc k v)) {} m)))))
+  (is (= 0 (reduce + (prim-hash-set :int))))
+  (is (= 0 (reduce-kv (fn [acc k v] (inc acc)) 0 (prim-hash-map :int :int))))
+  (is (= [3 4] (reduce (fn [_ e] e) (into (prim-hash-map :int :int) [[3 4]]))))
+  (is (= 7.5 (reduce-kv (fn [acc ^double k ^long v] (+ acc k v)) 0.0
+                        (into (prim-hash-map :double :long) [[1.5 2] [3.0 1]])))))
+
+(deftest test-set-algebra
+  (doseq [storage [:vector :array]
+          cache [false true]
+          [n1 n2] [[1000 1000] [1000 100] [100 5000] [5000 50000] [0 10]]]
+    (let [a (set (repeatedly n1 #(rand-int 10000)))
+          b (set (repeatedly n2 #(rand-int 10000)))
+          pa (into (prim-hash-set :long :storage storage :cache-hashes cache) a)
+          pb (into (prim-hash-set :long :storage storage :cache-hashes cache) b)]
+      (is (= (set/union a b) (union pa pb)))
+      (is (= (set/intersection a b) (intersection pa pb)))
+      (is (= (set/difference a b) (difference pa pb)))
+      (is (= (set/difference b a) (difference pb pa)))
+      (is (= (set/subset? a b) (subset? pa pb)))
+      (is (subset? (intersection pa pb) pa))
+      (is (= (set/union a b) (union pa b)))
+      ;Results are ordinary tables
+      (let [i (intersection pa pb)]
+        (is (= (conj (set/intersection a b) -1) (conj i -1)))
+        (is (= (count (set/intersection a b)) (count i))))))
+  (let [ints (into (prim-hash-set :int) (range 10))
+        longs (into (prim-hash-set :long :hash-spreader :identity) (range 5 20))]
+    (is (= (set (range 20)) (union ints longs)))
+    (is (= (set (range 5 10)) (intersection longs ints)))
+    (is (= (set (range 5)) (difference ints longs)))
+    (is (thrown? RuntimeException (union (into ints (range 100)) (conj longs Integer/MIN_VALUE))))))
+
+(deftest test-iterator
+  (doseq [storage [:vector :array]]
+    (let [s (into (prim-hash-set :long :storage storage) (range -500 500))
+          m (into (prim-hash-map :long :double :storage storage) (map vector (range 1000) (range 1000)))]
+      (is (= (set (range -500 500)) (set (iterator-seq (.iterator s)))))
+      (is (== -500 (let [it (.iterator s)]
+                     (loop [acc 0] (if (.hasNext it) (recur (+ acc (.nextLong it))) acc)))))
+      (is (== -500 (let [it (.iterator s)]
+                     (loop [acc 0] (if (.hasNext it) (recur (+ acc (.nextInt it))) acc)))))
+      (is (thrown? IllegalArgumentException (.nextInt (.iterator (into (prim-hash-set :long :storage storage) [(inc Integer/MAX_VALUE)])))))
+      (is (= (sort (range -500 500)) (sort (seq (.toArray s)))))
+      (is (= (into {} m) (into {} (iterator-seq (.iterator m)))))
+      (is (== 499500.0 (let [it (.valIterator m)]
+                         (loop [acc 0.0] (if (.hasNext it) (recur (+ acc (.nextDouble it))) acc)))))
+      (is (= (hash (into {} m)) (hash m)))
+      (is (= (.hashCode (into {} m)) (.hashCode m)))
+      (is (= (.hashCode (set s)) (.hashCode s)))))
+  (let [it (.iterator (prim-hash-set :int))]
+    (is (not (.hasNext it)))
+    (is (thrown? java.util.NoSuchElementException (.next it)))))
+
 (deftest ^:performance test-speed
   (let [to-insert (long-array (repeatedly 1000000 #(rand-int Integer/MAX_VALUE)))
+        ;Never present, since everything inserted is below Integer/MAX_VALUE
+        missing (long-array (repeatedly 1000000 #(+ Integer/MAX_VALUE (rand-int Integer/MAX_VALUE))))
         clj-set (do (print "Clojure set insert: ")
                   (time (into #{} to-insert)))
         java-set (do (print "Java set insert: ")
@@ -58,7 +255,13 @@
                            (doseq [e to-insert] (.add ^HashSet a e))
                            a)))
         imm-set (do (print "Immutable primitive set insert: ")
-                  (time (into (prim-hash-set :long) to-insert)))]
+                  (time (into (prim-hash-set :long) to-insert)))
+        arr-set (do (print "Array-backed primitive set insert: ")
+                  (time (into (prim-hash-set :long :storage :array) to-insert)))
+        _ (do (print "Parallel primitive set insert: ")
+            (time (fold-into-prim-hash-set :long to-insert)))
+        _ (do (print "Parallel array-backed primitive set insert: ")
+            (time (fold-into-prim-hash-set :long to-insert :storage :array)))]
     (println)
     (print "Clojure set lookup: ")
     (time (every? #(contains? clj-set %) to-insert))
@@ -66,6 +269,17 @@
     (time (every? #(.contains ^HashSet java-set %) to-insert))
     (print "Immutable primitive set lookup: ")
     (time (every? #(contains? imm-set %) to-insert))
+    (print "Array-backed primitive set lookup: ")
+    (time (every? #(contains? arr-set %) to-insert))
+    (println)
+    (print "Clojure set failed lookup: ")
+    (time (not-any? #(contains? clj-set %) missing))
+    (print "Java set failed lookup: ")
+    (time (not-any? #(.contains ^HashSet java-set %) missing))
+    (print "Immutable primitive set failed lookup: ")
+    (time (not-any? #(contains? imm-set %) missing))
+    (print "Array-backed primitive set failed lookup: ")
+    (time (not-any? #(contains? arr-set %) missing))
     (println)
     (print "Clojure set removal: ")
     (time (reduce disj clj-set to-insert))
@@ -73,10 +287,44 @@
     (time (doseq [e to-insert] (.remove ^HashSet java-set e)))
     (print "Immutable primitive set removal: ")
     (time (reduce disj imm-set to-insert))
+    (print "Array-backed primitive set removal: ")
+    (time (reduce disj arr-set to-insert))
     (println)
     (print "Clojure set traversal: ")
     (time (doseq [e clj-set]))
     (print "Java set traversal: ")
     (time (doseq [e java-set]))
     (print "Immutable primitive set traversal: ")
-    (time (doseq [e imm-set]))))
\ No newline at end of file
+    (time (doseq [e imm-set]))
+    (print "Array-backed primitive set traversal: ")
+    (time (doseq [e arr-set]))
+    (println)
+    (print "Clojure set reduce: ")
+    (time (reduce + clj-set))
+    (print "Immutable primitive set reduce: ")
+    (time (reduce + imm-set))
+    (print "Array-backed primitive set reduce: ")
+    (time (reduce + arr-set))
+    (print "Immutable primitive set reduce, primitive fn: ")
+    (time (reduce (fn [^long acc ^long k] (+ acc k)) 0 imm-set))))
+
+(deftest ^:performance test-collisions
+  ;Keys that share their low bits, which a raw hash maps to the same few
+  ;neighborhoods
+  (doseq [[desc ks] [["Sequential" (long-array (range 1000000))]
+                     ["Multiples of 64" (long-array (map #(* 64 %) (range 1000000)))]
+                     ["Multiples of 1024" (long-array (map #(* 1024 %) (range 100000)))]]
+          spreader [:identity :murmur]]
+    (let [loads (loop [s (prim-hash-set :long :hash-spreader spreader)
+                       [k & more] (take 100000 ks)
+                       loads []]
+                  (if-not k loads
+                    (let [s2 (conj s k)]
+                      (recur s2 more
+                             (if (== (.getCapacity s) (.getCapacity s2)) loads
+                               (conj loads (/ (double (count s)) (.getCapacity s))))))))]
+      (println desc "keys," spreader "spreader")
+      (println "  load at each rehash (first 100k inserts):"
+               (apply str (interpose " " (map #(format "%.2f" %) loads))))
+      (print "  insert: ")
+      (time (into (prim-hash-set :long :hash-spreader spreader) ks)))))
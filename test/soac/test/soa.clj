@@ -44,6 +44,83 @@
     (.add soa [0.0 -1 0.0])
     (is (== 1 (.lastIndexOf soa [0.0 (int -1) 0.0])))))
 
+(deftest test-vector-soa-transient
+  (let [rows (vec (for [i (range 2000)] [(double i) (int i) (keyword (str i))]))
+        cons-built (reduce conj (vector-SOA :double :int :object) rows)
+        t (transient (vector-SOA :double :int :object))]
+    (is (= rows (into (vector-SOA :double :int :object) rows) cons-built))
+    (is (= (vec (seq cons-built)) (seq (persistent! (transient cons-built)))))
+    (doseq [r (take 100 rows)] (conj! t r))
+    (is (= 100 (count t)))
+    (is (= (rows 5) (nth t 5) (t 5) (get t 5)))
+    (is (nil? (get t 100)))
+    (assoc! t 3 [0.5 -1 :x])
+    (pop! t)
+    (let [p (persistent! t)]
+      (is (instance? soac.java.soa.PersistentVectorSOA p))
+      (is (= (concat (take 3 rows) [[0.5 -1 :x]] (subvec rows 4 99)) (seq p)))
+      (is (= [0.5 -1 :x] (p 3)))
+      (is (thrown? IllegalAccessError (conj! t (rows 0))))
+      (is (= 100 (count (conj p [1.0 2 :y])))))))
+
+(deftest test-concurrent-append
+  (let [soa (concurrent-SOA {:chunk-shift 6} :long :double :object)
+        threads 8
+        per 5000
+        done (doall (for [t (range threads)]
+                      (future
+                        (dotimes [i per]
+                          (let [x (+ (* t per) i)]
+                            (if (zero? (mod i 100))
+                              (.appendColumns soa (object-array [(long-array [x]) (double-array [x]) (object-array [t])]))
+                              (append! soa [x (double x) t])))))))
+        early (snapshot soa)]
+    (doseq [f done] @f)
+    (let [s (snapshot soa)]
+      (is (= (* threads per) (count s)))
+      (is (<= (count early) (count s)))
+      (is (= (seq (take (count early) s)) (seq early)))
+      (is (= (range (* threads per)) (sort (map first s))))
+      (is (every? (fn [[x d t]] (and (== x d) (= t (quot x per)))) s))
+      (is (= (.getLong s 10 0) (long (.getDouble s 10 1)) (first (s 10))))
+      (let [more (conj s [-1 -1.0 :x])]
+        (is (instance? soac.java.soa.ImmutableArraySOA more))
+        (is (= (inc (count s)) (count more)))
+        (is (= (seq s) (butlast more))))
+      (is (= (butlast s) (seq (pop s))))
+      (append! soa [1 1.0 :a] [2 2.0 :b])
+      (is (= (* threads per) (count s)))
+      (is (= [[1 1.0 :a] [2 2.0 :b]] (take-last 2 (snapshot soa))))))
+  (let [base (into (immutable-SOA :int :long) (for [i (range 100)] [i i]))
+        soa (concurrent-SOA base)]
+    (append! soa [100 100])
+    (is (= (conj (vec base) [100 100]) (snapshot soa))))
+  ;A row that can't be coerced mustn't hold back the ones after it
+  (let [soa (concurrent-SOA :long)]
+    (append! soa [1])
+    (is (thrown? ClassCastException (append! soa ["bad"])))
+    (append! soa [2])
+    (is (thrown? ClassCastException (append! soa [3] ["bad"])))
+    (is (thrown? IllegalArgumentException (.appendColumns soa (object-array [(int-array 1)]))))
+    (append! soa [4])
+    (is (= [[1] [2] [4]] (snapshot soa)))
+    ;Nor a reservation that doesn't fit
+    (is (thrown? IllegalStateException (.reserve soa Integer/MAX_VALUE)))
+    (append! soa [5])
+    (is (= [[1] [2] [4] [5]] (snapshot soa))))
+  ;Across pages of the chunk directory
+  (let [soa (concurrent-SOA {:chunk-shift 6} :long)
+        n (+ (bit-shift-left 1 19) 100)]
+    (.appendColumns soa (object-array [(long-array (range n))]))
+    (append! soa [-1])
+    (let [^soac.java.soa.ConcurrentAppendSOA$Snapshot s (snapshot soa)]
+      (is (= (inc n) (count s)))
+      (is (= (dec n) (.getLong s (dec n) 0)))
+      (is (= -1 (.getLong s n 0)))))
+  (let [soa (concurrent-SOA)]
+    (.appendColumns soa (object-array 0))
+    (is (empty? (snapshot soa)))))
+
 (deftest test-immutable-SOA
   (let [s1 (-> (immutable-SOA :double :int :double)
              (conj [0.0 -1 0.0]))]
@@ -87,6 +164,293 @@
                 (partition 2 1 (map first (seq soa)))))))
 
 
+(deftest test-multi-sort
+  (let [rows (repeatedly 5000 #(vector (- (rand-int 20) 10) (rand-nth [-0.5 0.0 1.5 2.5 -1e10])
+                                       (long (rand-int 1000)) (rand-nth ["a" "b" "c"]) (char (+ 97 (rand-int 5)))
+                                       (rand-nth [true false]) (float (- (rand) 0.5))))
+        soa-of #(doto (mutable-SOA :int :double :long :object :char :boolean :float) (.addAll rows))
+        sorted-by (fn [keyfn cmp] (sort-by keyfn cmp rows))]
+    (is (= (sort-by #(nth % 2) rows) (seq (sort-by-columns! (soa-of) 2))))
+    (is (= (sort-by #(nth % 2) > rows) (seq (sort-by-columns! (soa-of) [2 :desc]))))
+    (is (= (sort-by (juxt first second) rows) (seq (sort-by-columns! (soa-of) 0 1))))
+    (is (= (sort-by (juxt first #(- (second %)) #(nth % 2)) rows)
+           (seq (sort-by-columns! (soa-of) 0 [1 :desc] 2))))
+    (is (= (sort-by (juxt #(nth % 3) #(nth % 2)) rows) (seq (sort-by-columns! (soa-of) 3 2))))
+    (is (= (sort-by (juxt #(nth % 4) #(nth % 5) #(nth % 6)) rows) (seq (sort-by-columns! (soa-of) 4 5 6))))
+    ;Stable, so rows equal on the key stay in insertion order
+    (is (= (sort-by first rows) (seq (sort-by-columns! (soa-of) 0))))
+    (is (= (sort-by #(nth % 3) rows) (seq (sort-by-columns! (soa-of) 3)))))
+  (is (empty? (sort-by-columns! (mutable-SOA :long) 0))))
+
+(deftest test-failed-insert
+  ;A row that can't be coerced leaves the SOA as it was
+  (let [rows (vec (for [i (range 10)] [i (double i) (str i)]))
+        soa (doto (mutable-SOA :long :double :object) (.addAll rows))]
+    (is (thrown? ClassCastException (.addAll soa 3 [[-1 -1.0 "a"] ["bad" 0.0 "b"]])))
+    (is (thrown? IndexOutOfBoundsException (.addAll soa [[-1 -1.0 "a"] [-2 -2.0]])))
+    (is (thrown? ClassCastException (.add soa 3 [-1 "bad" "a"])))
+    (is (= rows (seq soa)))
+    (.addAll soa 3 [[-1 -1.0 "a"]])
+    (is (= (concat (take 3 rows) [[-1 -1.0 "a"]] (drop 3 rows)) (seq soa))))
+  (let [rows (vec (for [i (range 10)] [i (double i)]))
+        soa (doto (buffer-SOA {} :long :double) (.addAll rows))]
+    (is (thrown? ClassCastException (.add soa 3 [-1 "bad"])))
+    (is (thrown? ClassCastException (.add soa [-1 "bad"])))
+    (is (thrown? ClassCastException (.addAll soa [[-1 -1.0] ["bad" 0.0]])))
+    (is (= rows (seq soa)))
+    (.add soa 3 [-1 -1.0])
+    (is (= (concat (take 3 rows) [[-1 -1.0]] (drop 3 rows)) (seq soa)))))
+
+(deftest test-schema-reflection
+  ;Every cell access in a compiled schema should be a direct array access
+  (let [err (java.io.StringWriter.)]
+    (binding [*warn-on-reflection* true *err* err]
+      (schema [:short :float :char :byte :boolean :object :int :long :double]))
+    (is (= "" (str err)))))
+
+(deftest test-typed-access
+  (let [rows (repeatedly 100 #(vector (rand) (rand-int 100) (rand-nth [:a :b :c]) (rand-nth [true false])))
+        soa (doto (mutable-SOA :double :int :object :boolean) (.addAll rows))
+        im-soa (into (immutable-SOA :double :int :object :boolean) rows)]
+    (is (identical? (.getSchema soa) (.getSchema im-soa)))
+    (is (= (map first rows) (map #(.getDouble soa % 0) (range 100))))
+    (is (= (map second rows) (map #(.getInt im-soa % 1) (range 100))))
+    (is (= (map #(nth % 3) rows) (map #(.getBoolean soa % 3) (range 100))))
+    (.setDouble soa 5 0 -1.0)
+    (.setInt soa 5 1 -1)
+    (is (= [-1.0 -1] (subvec (vec (.get soa 5)) 0 2)))
+    (is (thrown? ClassCastException (.getLong soa 0 1)))
+    (doseq [col [1 2 3]]
+      (.sortInPlaceByCol soa col)
+      (is (= (sort (map #(nth % col) (seq soa))) (map #(nth % col) (seq soa)))))
+    (is (= (set (map #(nth % 2) rows)) (set (map #(nth % 2) (seq soa)))))))
+
+(deftest test-cursor
+  (let [rows (repeatedly 100 #(vector (rand) (long (rand-int 100)) (rand)))
+        soa (doto (mutable-SOA :double :long :double) (.addAll rows))
+        im-soa (into (immutable-SOA :double :long :double) rows)]
+    (doseq [s [soa im-soa]]
+      (let [^soac.java.soa.RowCursor c (cursor s)]
+        (is (= (map second rows)
+               (loop [out []] (if (.next c) (recur (conj out (.getLong c 1))) out))))
+        (is (== (first (nth rows 42)) (.getDouble (.seek c 42) 0)))
+        (is (= (nth (nth rows 42) 2) (.get c 2)))
+        (is (thrown? IndexOutOfBoundsException (.seek c 100)))))
+    (let [^soac.java.soa.MutableSOA$Cursor c (cursor soa)]
+      (.setLong (.seek c 3) 1 -7)
+      (is (== -7 (second (.get soa 3))))
+      (.set c 0 1)
+      (is (= 1.0 (first (.get soa 3))))
+      (.add soa [0.0 100 0.0])
+      (is (== 100 (.getLong (.seek c 100) 1))))))
+
+(deftest test-column-reduce
+  (let [rows (repeatedly 10000 #(vector (rand) (long (rand-int 100)) (rand-int 100)))
+        soa (doto (mutable-SOA :double :long :int) (.addAll rows))
+        im-soa (into (immutable-SOA :double :long :int) rows)
+        dsum (reduce + (map first rows))
+        lsum (reduce + (map second rows))
+        isum (reduce + (map #(nth % 2) rows))
+        close? #(< (Math/abs (- (double %1) (double %2))) 1e-6)]
+    (doseq [s [soa im-soa]]
+      (is (close? dsum (reduce-columns (fn ^double [^double acc ^double x] (+ acc x)) 0.0 s [0])))
+      (is (close? dsum (reduce-columns + 0 s [0])))
+      (is (== lsum (reduce-columns (fn ^long [^long acc ^long x] (+ acc x)) 0 s [1])))
+      (is (== isum (reduce-columns (fn [acc ^long x] (+ acc x)) 0 s [2])))
+      (is (close? (+ dsum lsum) (reduce-columns (fn [acc ^long x ^double y] (+ acc x y)) 0.0 s [1 0])))
+      (is (== (+ lsum isum) (reduce-columns (fn [acc x y] (+ acc x y)) 0 s [1 2])))
+      (is (close? (+ dsum lsum isum) (reduce-columns + 0 s [0 1 2])))
+      (is (= 3 (reduce-columns (fn [acc x] (if (= acc 3) (reduced acc) (inc acc))) 0 s [0])))
+      (is (close? dsum (fold-column 100 + (fn ^double [^double acc ^double x] (+ acc x)) s 0)))
+      (is (== lsum (fold-column + + s 1)))
+      (is (close? (+ dsum lsum) (fold-columns 512 + (fn [acc ^double x ^long y] (+ acc x y)) s [0 1]))))
+    (is (= 0 (fold-column + + (mutable-SOA :double) 0)))))
+
+;; Row numbers of the rows of soa satisfying pred
+(defn- rows-where [pred ^java.util.List soa]
+  (filter #(pred (.get soa %)) (range (count soa))))
+
+(deftest test-sorted-search
+  (let [rows (repeatedly 2000 #(vector (long (rand-int 300)) (rand-nth [-1.5 0.0 2.5]) (int (rand-int 50))))
+        ^soac.java.soa.MutableSOA soa (doto (mutable-SOA :long :double :int) (.addAll rows))]
+    (is (thrown? IllegalStateException (lower-bound soa 0 5)))
+    (sort-by-columns! soa 0)
+    (is (.isSortedBy soa 0))
+    (doseq [k [-1 0 17 150 299 300]]
+      (let [hits (rows-where #(= k (first %)) soa)
+            [lo hi] (range-of soa 0 k)]
+        (is (= hits (range lo hi)))
+        (is (= lo (lower-bound soa 0 k) (lower-bound soa 0 (double k)) (.lowerBound soa 0 (long k))))
+        (is (= lo (count (rows-where #(< (first %) k) soa))))
+        (is (= hi (upper-bound soa 0 k) (.upperBound soa 0 (double k))))))
+    (is (= (count (rows-where #(<= 10.5 (first %) 20) soa))
+           (- (upper-bound soa 0 20) (lower-bound soa 0 10.5))))
+    (let [row (.get soa 1000)]
+      (is (= (.indexOf (vec (seq soa)) row) (.indexOf soa row)))
+      (is (= (.lastIndexOf (vec (seq soa)) row) (.lastIndexOf soa row)))
+      (is (.contains soa row))
+      (is (not (.contains soa (assoc row 2 (long (nth row 2))))))
+      (is (not (.contains soa [1000 0.0 (int 1)])))
+      (is (not (.contains soa [:a 0.0 (int 1)]))))
+    (sort-by-columns! soa [1 :desc] 0)
+    (is (.isSortedBy soa 1))
+    (is (.isSortedDescending soa))
+    (is (= (rows-where #(= 0.0 (second %)) soa) (apply range (range-of soa 1 0.0))))
+    (is (= (rows-where #(> (second %) 0.0) soa) (range (lower-bound soa 1 0.0))))
+    ;; In-order writes keep the marker, others drop it
+    (.setDouble soa 0 1 10.0)
+    (.add soa [0 -100.0 (int 0)])
+    (is (.isSortedBy soa 1))
+    (.setDouble soa 1 1 -200.0)
+    (is (not (.isSortedBy soa 1)))
+    (is (thrown? IllegalArgumentException (assume-sorted! soa 1 :desc)))
+    (let [s2 (doto (mutable-SOA :long) (.addAll (map vector (range 10))))]
+      (assume-sorted! s2 0)
+      (is (= [3 4] (range-of s2 0 3)))
+      (.setLong (.seek (cursor s2) 5) 0 100)
+      (is (not (.isSortedBy s2 0))))))
+
+(deftest test-merge-join
+  (let [left (doto (mutable-SOA :long :double) (.addAll (for [t (range 0 1000 3)] [t (double t)])))
+        right (doto (mutable-SOA :int :object) (.addAll (for [t (range 0 1000 2) d [:a :b]] [(int t) d])))
+        pairs #(merge-join (fn [acc l r] (conj acc [l r])) [] left 0 right 0)]
+    (is (thrown? IllegalStateException (pairs)))
+    (sort-by-columns! left 0)
+    (sort-by-columns! right 0)
+    (let [ps (pairs)]
+      (is (= (for [t (range 0 1000 6) d [:a :b]] [t t d])
+             (for [[l r] ps] [(.getLong left l 0) (.getInt right r 0) (.getRowAndCol right r 1)]))))
+    (is (= 334 (merge-join (fn [acc ^long l ^long r] (inc acc)) 0 left 0 right 0)))
+    (is (= 2 (merge-join (fn [acc l r] (if (= 2 acc) (reduced acc) (inc acc))) 0 left 0 right 0)))
+    (sort-by-columns! right [0 :desc])
+    (is (thrown? IllegalStateException (pairs)))
+    (sort-by-columns! left [0 :desc])
+    (is (= 334 (count (pairs))))))
+
+(deftest test-bulk
+  (let [rows (vec (for [i (range 100)] [(double i) (long i) (keyword (str i))]))
+        ^soac.java.soa.MutableSOA soa (mutable-SOA :double :long :object)]
+    (.ensureCapacity soa 50)
+    (is (<= 50 (.getRealLength soa)))
+    (.addAll soa (subvec rows 0 10))
+    (.addAll soa 5 (subvec rows 10 20))
+    (is (= (concat (subvec rows 0 5) (subvec rows 10 20) (subvec rows 5 10)) (seq soa)))
+    (.clear soa)
+    (is (empty? soa))
+    (is (every? nil? (take 20 (aget (.getRawData soa) 2))))
+    (append-columns! soa (double-array (range 100)) (long-array (range 100)) (object-array (map #(keyword (str %)) (range 100))))
+    (is (= rows (seq soa)))
+    (is (thrown? IllegalArgumentException (append-columns! soa (long-array 1) (long-array 1) (object-array 1))))
+    (is (thrown? IllegalArgumentException (append-columns! soa (double-array 1) (long-array 2) (object-array 1))))
+    (.clear (.subList soa 10 90))
+    (is (= (concat (subvec rows 0 10) (subvec rows 90)) (seq soa)))
+    (is (nil? (aget ^objects (aget (.getRawData soa) 2) 25)))
+    (.addAll soa 0 soa)
+    (is (= 40 (count soa)))
+    (is (= (concat (subvec rows 0 10) (subvec rows 90) (subvec rows 0 10) (subvec rows 90)) (seq soa)))
+    (let [other (doto (mutable-SOA :double :long :object) (.addAll (subvec rows 0 3)))]
+      (.addAll soa 1 other)
+      (is (= (concat [(rows 0)] (subvec rows 0 3) (subvec rows 1 10)) (take 13 soa))))
+    (let [s2 (doto (mutable-SOA :long) (.addAll (map vector (range 10))))]
+      (sort-by-columns! s2 0)
+      (append-columns! s2 (long-array (range 10 20)))
+      (is (.isSortedBy s2 0))
+      (.addAll s2 [[25] [30]])
+      (is (.isSortedBy s2 0))
+      (append-columns! s2 (long-array [29]))
+      (is (not (.isSortedBy s2 0))))))
+
+(defn- temp-dir []
+  (let [f (java.io.File/createTempFile "soa" "")]
+    (.delete f)
+    f))
+
+(defn- corrupt-byte
+  "Overwrites the byte at pos in file f with one that's no column type"
+  [f pos]
+  (with-open [raf (java.io.RandomAccessFile. (clojure.java.io/file f) "rw")]
+    (.seek raf (long pos))
+    (.write raf 99)))
+
+(deftest test-off-heap
+  (let [rows (vec (for [i (range 1000)] [(long i) (double i) (int (- i)) (even? i) (char (+ 65 (mod i 26))) (byte (mod i 100))]))
+        types [:long :double :int :boolean :char :byte]
+        dir (temp-dir)]
+    (doseq [opts [{:storage :direct :segment-shift 6} {:storage :mapped :path dir :segment-shift 7}]]
+      (let [^soac.java.soa.BufferSOA soa (apply buffer-SOA opts types)]
+        (is (not (.addAll soa [])))
+        (is (.addAll soa (subvec rows 0 500)))
+        (is (not (.addAll soa [])))
+        (is (= (subvec rows 0 500) (seq soa)))
+        (append-columns! soa (long-array (range 500 1000)) (double-array (range 500 1000))
+                         (int-array (map - (range 500 1000))) (boolean-array (map even? (range 500 1000)))
+                         (char-array (map #(char (+ 65 (mod % 26))) (range 500 1000))) (byte-array (map #(byte (mod % 100)) (range 500 1000))))
+        (is (= rows (seq soa)))
+        (is (= 1000 (.longSize soa)))
+        (is (= 999 (.getLong soa 999 0)))
+        (is (= -7 (.getInt soa 7 2)))
+        (is (= \C (.getChar soa 2 4)))
+        (is (thrown? ClassCastException (.getLong soa 0 1)))
+        (is (thrown? IndexOutOfBoundsException (.getLong soa 1000 0)))
+        (.setDouble soa 3 1 -1.5)
+        (is (= -1.5 (nth (.get soa 3) 1)))
+        (.set soa 3 (rows 3))
+        (.add soa 10 [1 2 3 true \a 4])
+        (is (= [1 2.0 3 true \a 4] (.get soa 10)))
+        (is (= (rows 10) (.get soa 11)))
+        (.remove soa 10)
+        (.clear (.subList soa 100 900))
+        (is (= (concat (subvec rows 0 100) (subvec rows 900)) (seq soa)))
+        (let [out (double-array 150)]
+          (.readColumn soa 1 50 out 0 150)
+          (is (= (map double (concat (range 50 100) (range 900 1000))) (seq out))))
+        (is (thrown? IllegalArgumentException (append-columns! soa (int-array 1) (double-array 1) (int-array 1)
+                                                                (boolean-array 1) (char-array 1) (byte-array 1))))
+        (.close soa)))
+    (let [^soac.java.soa.BufferSOA soa (open-SOA dir)]
+      (is (= (concat (subvec rows 0 100) (subvec rows 900)) (seq soa)))
+      (.add soa (rows 5))
+      (is (= 201 (count soa)))
+      (.close soa))
+    (is (= 201 (count (open-SOA dir))))
+    (corrupt-byte (java.io.File. dir "meta") 16)
+    (is (thrown-with-msg? java.io.IOException #"Unknown column type" (open-SOA dir)))
+    (corrupt-byte (java.io.File. dir "meta") 15)
+    (is (thrown-with-msg? java.io.IOException #"Bad column count" (open-SOA dir)))
+    (is (thrown? IllegalArgumentException (buffer-SOA {:storage :mapped :path dir} :long)))
+    (is (thrown? IllegalArgumentException (buffer-SOA {:storage :direct} :long :object)))))
+
+(deftest test-soa-file
+  (let [types [:long :double :int :boolean :char :byte :short :float]
+        rows (vec (for [i (range 3000)] [(long i) (double i) (int (- i)) (even? i) (char (+ 65 (mod i 26)))
+                                         (byte (mod i 100)) (short i) (float i)]))
+        f (java.io.File/createTempFile "soa" ".bin")]
+    (doseq [soa [(doto (apply mutable-SOA types) (.addAll rows))
+                 (into (apply immutable-SOA types) rows)
+                 (into (apply vector-SOA types) rows)
+                 (doto (apply buffer-SOA {:segment-shift 8} types) (.addAll rows))]]
+      (write-soa soa f)
+      (let [copied (read-soa f)
+            ^soac.java.soa.BufferSOA mapped (read-soa f {:mmap true})]
+        (is (instance? soac.java.soa.MutableSOA copied))
+        (is (= rows (seq copied) (seq mapped)))
+        (is (= 2999 (.getLong mapped 2999 0)))
+        (is (thrown? UnsupportedOperationException (.setLong mapped 0 0 1)))
+        (is (thrown? UnsupportedOperationException (.add mapped (rows 0))))
+        (.add ^java.util.List copied (rows 0))
+        (is (= 3001 (count copied)))))
+    (write-soa (mutable-SOA :long) f)
+    (is (empty? (read-soa f)))
+    (is (empty? (read-soa f {:mmap true})))
+    (is (thrown? IllegalArgumentException (write-soa (mutable-SOA :long :object) f)))
+    (corrupt-byte f 24)
+    (is (thrown-with-msg? java.io.IOException #"Unknown column type" (read-soa f)))
+    (is (thrown-with-msg? java.io.IOException #"Unknown column type" (read-soa f {:mmap true})))
+    (corrupt-byte f 11)
+    (is (thrown-with-msg? java.io.IOException #"Bad column count" (read-soa f)))
+    (is (thrown-with-msg? java.io.IOException #"Bad column count" (read-soa f {:mmap true})))
+    (.delete f)))
+
 (deftest ^:performance test-speed
   (let [s (vec (repeatedly 500000 
                  #(vector (rand) (rand-int 100) (rand))))
@@ -97,19 +461,53 @@
     (print "Immutable SOA construction: ")
     (time (into im-soa s))
     (print "Mutable SOA contruction: ")
-    (time (.addAll soa s)))
+    (time (.addAll soa s))
+    (print "Vector SOA construction: ")
+    (time (into (vector-SOA :double :int :double) s))
+    (print "Mutable SOA addAll from another: ")
+    (time (.addAll (mutable-SOA :double :int :double) soa))
+    (let [ds (double-array (map first s)) is (int-array (map second s)) ds2 (double-array (map last s))]
+      (print "Mutable SOA append-columns!: ")
+      (time (append-columns! (mutable-SOA :double :int :double) ds is ds2)))
+    (let [parts (partition-all 62500 s)]
+      (print "Immutable SOA conj from 8 threads, through an atom: ")
+      (time (let [a (atom (immutable-SOA :double :int :double))]
+              (doseq [f (doall (for [p parts] (future (doseq [r p] (swap! a conj r)))))] @f)))
+      (print "Concurrent SOA append! from 8 threads: ")
+      (time (let [c (concurrent-SOA :double :int :double)]
+              (doseq [f (doall (for [p parts] (future (doseq [r p] (append! c r)))))] @f)
+              (snapshot c)))))
   (let [v (conj (vec (repeatedly 500000
                  #(vector (rand) (rand-int 100) (rand))))
                 [0.0 1 0.0])
         im-soa (into (immutable-SOA :double :int :double) v)
-        soa (doto (mutable-SOA :double :int :double) (.addAll v))]
+        ^soac.java.soa.MutableSOA soa (doto (mutable-SOA :double :int :double) (.addAll v))]
     (print "Vector traversal: ")
     (time (last v))
     (print "Immutable SOA traversal: ")
     (time (last im-soa))
     (print "Mutable SOA traversal: ")
     (time (last soa))
+    (print "Mutable SOA column sum, boxed: ")
+    (time (loop [i 0 acc 0.0]
+            (if (< i (count soa)) (recur (inc i) (+ acc (double (.getRowAndCol soa i 0)))) acc)))
+    (print "Mutable SOA column sum, typed: ")
+    (time (loop [i 0 acc 0.0]
+            (if (< i (count soa)) (recur (inc i) (+ acc (.getDouble soa i 0))) acc)))
+    (print "Mutable SOA column sum, cursor: ")
+    (time (let [^soac.java.soa.RowCursor c (cursor soa)]
+            (loop [acc 0.0] (if (.next c) (recur (+ acc (.getDouble c 0))) acc))))
+    (print "Mutable SOA column sum, r/fold over rows: ")
+    (time (clojure.core.reducers/fold + (fn [acc r] (+ acc (first r))) soa))
+    (print "Mutable SOA column sum, fold-column: ")
+    (time (fold-column + (fn ^double [^double acc ^double x] (+ acc x)) soa 0))
+    (print "Mutable SOA indexOf, linear: ")
+    (time (.indexOf soa [0.0 (int 1) 0.0]))
     (print "Mutable SOA sort in-place: ")
     (time (.sortInPlaceByCol soa 0))
+    (print "Mutable SOA indexOf, sorted: ")
+    (time (.indexOf soa [0.0 (int 1) 0.0]))
+    (print "Mutable SOA merge-join with itself: ")
+    (time (merge-join (fn [acc ^long l ^long r] (inc acc)) 0 soa 0 soa 0))
     (print "Mutable SOA external sort: ")
     (time (sort-by first soa))))